@@ -20,16 +20,23 @@
 package airviewer;
 
 import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import airviewer.AbstractDocumentCommandWrapper.DocumentChange;
+import javafx.animation.AnimationTimer;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
@@ -45,6 +52,7 @@ import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
 import javafx.stage.FileChooser;
 import javafx.stage.Window;
+import javafx.util.Duration;
 
 /**
  * This class encapsulates the Controller in the Model-View-Controller Design
@@ -156,9 +164,97 @@ public class AIRViewerController implements Initializable {
      * identified a PDF file to load. Methods of this class implement reasonable
      * default behavior such as disabling inapplicable menu items when the model
      * is null. handle a null model.
+     *
+     * The Model is owned by executor, so use it only through executor:
+     * changes and hit testing run on executor's writer thread and their
+     * results arrive on the JavaFx application thread asynchronously. The
+     * user interface presents modelState and never waits for the Model.
      */
     private AIRViewerModel model;
 
+    /**
+     * Instances of this class are copies of the Model state presented by the
+     * menus and the selection overlay. They are made on executor's writer
+     * thread whenever the Model changes, so reading them on the JavaFx
+     * application thread never waits for a Command, rendering, or saving in
+     * progress.
+     */
+    private static final class ModelState {
+
+        final int pageCount;
+        final boolean canUndo;
+        final boolean canRedo;
+        final String undoTitle;
+        final String redoTitle;
+        final List<Rectangle> selectedAreas;
+        final List<String> selectedContents;
+        final List<Integer> selectedIds;
+
+        /**
+         * Constructor: Call this on the thread that may use aModel.
+         *
+         * @param aModel The Model to copy
+         */
+        ModelState(AIRViewerModel aModel) {
+            pageCount = aModel.getPageCount();
+            canUndo = aModel.getCanUndo();
+            canRedo = aModel.getCanRedo();
+            undoTitle = aModel.getSuggestedUndoTitle();
+            redoTitle = aModel.getSuggestedRedoTitle();
+            selectedAreas = aModel.getSelectedAreas();
+            selectedContents = aModel.getSelectedContents();
+            selectedIds = aModel.getSelectedIds();
+        }
+    }
+
+    /**
+     * The state of model most recently copied by executor's writer thread or
+     * null if model is null
+     */
+    private ModelState modelState;
+
+    /**
+     * Runs all changes to the Model on a writer thread so that slow Commands
+     * do not freeze the user interface. It is null whenever model is null.
+     */
+    private DocumentCommandExecutor<AIRViewerModel> executor;
+
+    /**
+     * True while an image of the current page is being rendered by executor
+     */
+    private boolean isPageImageRequested;
+
+    /**
+     * True if the page image needs to be rendered again once the image being
+     * rendered arrives
+     */
+    private boolean isPageImageStale;
+
+    /**
+     * True while executor is copying the Model state for requestModelState()
+     */
+    private boolean isModelStateRequested;
+
+    /**
+     * True if the Model state needs to be copied again once the copy being
+     * made arrives
+     */
+    private boolean isModelStateStale;
+
+    /**
+     * While the selection change caused by a pointer press is executing on
+     * executor's writer thread, this is the future of its hit test result,
+     * and pointer drags and releases are deferred until it arrives.
+     */
+    private CompletableFuture<Boolean> pendingPress;
+
+    /**
+     * The most recent pointer drag and release that happened while
+     * pendingPress was not null or null if there was none
+     */
+    private MouseEvent deferredDrag;
+    private MouseEvent deferredRelease;
+
     /**
      * This is the JavaFx node used to display an image of the PDF page
      * currently selected by the user. The image is obtain as needed from the
@@ -194,30 +290,207 @@ public class AIRViewerController implements Initializable {
     private float dragStartFlippedY;
 
     /**
-     * This is the cumulative distance along the X axis in the pageViewGroup
-     * coordinate system that the pointer (mouse or finger) within the current
-     * drag operation if any. This variable is used in conjunction with the
-     * isDragging instance variable is only true while a drag operation is
-     * currently happening.
+     * This variable is initialized to be false false, is set to true when a
+     * user pointer (mouse or finger) "drag" operations starts, and is set to
+     * false immediately after a "drag" operation concludes. While a drag is
+     * happening, a Model transaction is open so that all of the small
+     * movements on the way to the final drag destination become one undo
+     * entry.
      */
-    private float cumulativeDragDeltaX;
+    private boolean isDragging;
 
     /**
-     * This is the cumulative distance along the y axis in the pageViewGroup
-     * coordinate system that the pointer (mouse or finger) within the current
-     * drag operation if any. See the dragStartFlippedY description for an
-     * explanation of the "flipped" coordinate system. This variable is used in
-     * conjunction with the isDragging instance variable is only true while a
-     * drag operation is currently happening.
+     * This variable is set to true when the user presses the pointer where
+     * there is no annotation. Dragging then stretches marqueeRectangle from
+     * the pressed location, and every annotation that intersects
+     * marqueeRectangle is selected when the pointer is released.
      */
-    private float cumulativeDragDeltaFlippedY;
+    private boolean isMarqueeSelecting;
 
     /**
-     * This variable is initialized to be false false, is set to true when a
-     * user pointer (mouse or finger) "drag" operations starts, and is set to
-     * false immediately after a "drag" operation concludes.
+     * The "rubber band" displayed while isMarqueeSelecting is true. It is a
+     * child of selectionOverlay and is hidden when not in use.
      */
-    private boolean isDragging;
+    private javafx.scene.shape.Rectangle marqueeRectangle;
+
+    /**
+     * The layer above currentPageImageView that contains the selection knobs,
+     * selectionTextField, and marqueeRectangle. Its nodes are kept and reused
+     * between refreshes rather than recreated, so a refresh during a drag
+     * only moves existing nodes.
+     */
+    private Group selectionOverlay;
+
+    /**
+     * The knobs created for selectionOverlay. The first
+     * 4 * displayedAreas.size() knobs are visible and the rest are hidden
+     * until a larger selection needs them. See trimKnobPool().
+     */
+    private final List<Circle> knobPool = new ArrayList<>();
+
+    /**
+     * The number of hidden knobs that are always kept for reuse
+     */
+    private static final int MIN_KNOB_POOL_SIZE = 64;
+
+    /**
+     * The selected areas presented by the knobs after the last refresh
+     */
+    private List<Rectangle> displayedAreas = new ArrayList<>();
+
+    /**
+     * The page height used to position the knobs after the last refresh
+     */
+    private int displayedPageHeight = -1;
+
+    /**
+     * The text field shown over the selected annotation when exactly one
+     * annotation is selected
+     */
+    private TextField selectionTextField;
+
+    /**
+     * The contents last copied into selectionTextField and the ID of the
+     * annotation they came from, so that refreshes do not overwrite what the
+     * user is typing unless the selected annotation or its contents changed
+     */
+    private String displayedContents;
+    private int displayedContentsId = -1;
+
+    /**
+     * Flags for setNeedsRefresh() identifying parts of the user interface
+     */
+    private static final int REFRESH_MENUS = 1;
+    private static final int REFRESH_OVERLAY = 2;
+    private static final int REFRESH_PAGE_IMAGE = 4;
+    private static final int REFRESH_ALL = REFRESH_MENUS | REFRESH_OVERLAY | REFRESH_PAGE_IMAGE;
+
+    /**
+     * The parts of the user interface that need to be refreshed at the next
+     * JavaFx pulse
+     */
+    private int dirtyParts;
+
+    /**
+     * True while refreshTimer is waiting for the next pulse
+     */
+    private boolean isRefreshScheduled;
+
+    /**
+     * This timer runs only while a refresh is scheduled. It refreshes the
+     * dirty parts of the user interface once at the next pulse and then
+     * stops, so any number of changes between frames cost one refresh.
+     */
+    private final AnimationTimer refreshTimer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            stop();
+            isRefreshScheduled = false;
+            refreshDirtyParts();
+        }
+    };
+
+    /**
+     * How long pointer drags and page navigation must pause before the
+     * displayed page is rendered again at full quality
+     */
+    private static final Duration SETTLE_DELAY = Duration.millis(200);
+
+    /**
+     * True while the displayed page is rendered with
+     * AIRViewerModel.RenderQuality.DRAFT because the user is dragging or
+     * paging
+     */
+    private boolean isDraftQuality;
+
+    /**
+     * This timer restarts at every interaction step and, once the interaction
+     * has settled for SETTLE_DELAY, renders the displayed page again at full
+     * quality.
+     */
+    private final PauseTransition settleTimer = new PauseTransition(SETTLE_DELAY);
+
+    {
+        settleTimer.setOnFinished(e -> settleInteraction());
+    }
+
+    /**
+     * The listener registered with the Model to refresh the parts of the user
+     * interface affected whenever a Command, undo, redo, transaction, or
+     * selection change changes the Model. Changes to pages other than the
+     * displayed page only affect the menus.
+     */
+    private final AbstractDocumentCommandWrapper.DocumentChangeListener modelChangeListener
+            = (AbstractDocumentCommandWrapper aWrapper, List<DocumentChange> someChanges) -> {
+                int parts = REFRESH_MENUS; // Undo and redo titles
+                int displayedPageIndex = (null == pagination) ? -1 : pagination.getCurrentPageIndex();
+
+                for (DocumentChange change : someChanges) {
+                    if (DocumentChange.Kind.SELECTION_CHANGED == change.getKind()) {
+                        parts |= REFRESH_OVERLAY;
+                    } else if (displayedPageIndex == change.getPageIndex() || -1 == change.getPageIndex()) {
+                        parts = REFRESH_ALL;
+                    }
+                }
+                setNeedsRefresh(parts);
+            };
+
+    /**
+     * This method registers a listener with aModel that copies the state of
+     * aModel on the thread that changed it, i.e. executor's writer thread,
+     * and then passes the copy and the changes to modelChangeListener on the
+     * JavaFx application thread.
+     *
+     * @param aModel The new Model
+     */
+    private void observeModel(AIRViewerModel aModel) {
+        aModel.addChangeListener((AbstractDocumentCommandWrapper aWrapper, List<DocumentChange> someChanges) -> {
+            ModelState state = new ModelState(aModel);
+            Platform.runLater(() -> {
+                if (aModel == model) { // Not delivered after the Model was replaced
+                    modelState = state;
+                    modelChangeListener.documentDidChange(aWrapper, someChanges);
+                }
+            });
+        });
+    }
+
+    /**
+     * The Model does not notify listeners of changes inside a transaction,
+     * so this method asks executor for a copy of the Model state after the
+     * work submitted so far, e.g. during a drag, and refreshes the overlay
+     * when it arrives. Like page images, at most one copy is made at a time;
+     * requests made while one is being made are combined into one request
+     * made when it arrives, so a fast drag does not queue a copy per event.
+     */
+    private void requestModelState() {
+        if (isModelStateRequested) {
+            isModelStateStale = true;
+            return;
+        }
+
+        AIRViewerModel requestModel = model;
+
+        isModelStateRequested = true;
+        FXCommandAdapter.onFXThread(executor.submit(ModelState::new))
+                .whenComplete((ModelState aState, Throwable anException) -> {
+                    if (requestModel != model) {
+                        return; // The Model was replaced
+                    }
+                    isModelStateRequested = false;
+                    if (null != anException) {
+                        Logger.getLogger(AIRViewerController.class.getName()).log(
+                                Level.SEVERE, null, anException);
+                    } else {
+                        modelState = aState;
+                        setNeedsRefresh(REFRESH_MENUS | REFRESH_OVERLAY);
+                    }
+                    if (isModelStateStale) {
+                        isModelStateStale = false;
+                        requestModelState();
+                    }
+                });
+    }
 
     /**
      * Calling this method replaces any currently open Model with a new Model
@@ -264,60 +537,151 @@ public class AIRViewerController implements Initializable {
      * annotations are edited by the user e.g. dragged to no locations.
      */
     private void synchronizeSelectionKnobs() {
-        if (null != model && null != currentPageImageView && null != pageViewGroup) {
-            List<Rectangle> selectedAreas = model.getSelectedAreas();
-            ArrayList<Node> victims = new ArrayList<>(pageViewGroup.getChildren());
-
-            // Delete everything in the group that isn't currentPageImageView
-            victims.stream().filter((n) -> (n != currentPageImageView)).forEach((n) -> {
-                pageViewGroup.getChildren().remove(n);
-            });
+        if (null != selectionOverlay) {
+            List<Rectangle> selectedAreas = (null == modelState || null == currentPageImageView)
+                    ? new ArrayList<>() : modelState.selectedAreas;
+            int pageHeight = (null == currentPageImageView)
+                    ? 0 : (int) currentPageImageView.getBoundsInParent().getHeight();
+
+            // Only knobs whose annotation moved or changed are touched. The
+            // comparison is cheap compared to updating scene graph nodes.
+            boolean isPageHeightChanged = pageHeight != displayedPageHeight;
+            growKnobPool(4 * selectedAreas.size());
+            for (int i = 0; i < selectedAreas.size(); ++i) {
+                Rectangle r = selectedAreas.get(i);
+                if (isPageHeightChanged || i >= displayedAreas.size() || !r.equals(displayedAreas.get(i))) {
+                    placeKnob(knobPool.get(4 * i), r.getX(), pageHeight - r.getY());
+                    placeKnob(knobPool.get(4 * i + 1), r.getX() + r.getWidth(), pageHeight - r.getY());
+                    placeKnob(knobPool.get(4 * i + 2), r.getX() + r.getWidth(), pageHeight - (r.getY() + r.getHeight()));
+                    placeKnob(knobPool.get(4 * i + 3), r.getX(), pageHeight - (r.getY() + r.getHeight()));
+                }
+            }
+            for (int i = 4 * selectedAreas.size(); i < 4 * displayedAreas.size(); ++i) {
+                knobPool.get(i).setVisible(false);
+            }
+            trimKnobPool(4 * selectedAreas.size());
+            displayedAreas = selectedAreas;
+            displayedPageHeight = pageHeight;
+
+            if (1 == selectedAreas.size()) {
+                Rectangle r = selectedAreas.get(0);
+                String contents = modelState.selectedContents.get(0);
+                int id = modelState.selectedIds.get(0);
+                if (null == contents) {
+                    contents = "";
+                }
+                if (id != displayedContentsId || !contents.equals(displayedContents)) {
+                    selectionTextField.setText(contents);
+                    displayedContents = contents;
+                    displayedContentsId = id;
+                }
+                selectionTextField.setPrefWidth(r.getWidth());
+                selectionTextField.setLayoutX(r.getX() - selectionTextField.getLayoutBounds().getMinY());
+                selectionTextField.setLayoutY((pageHeight - r.getY()) - selectionTextField.getLayoutBounds().getMinY());
+                selectionTextField.setVisible(true);
+            } else {
+                selectionTextField.setVisible(false);
+                displayedContents = null;
+                displayedContentsId = -1;
+            }
+        }
 
-            // Add knobs to thegroup to indicate selection
-            selectedAreas.stream().map((r) -> {
-                Circle knobA = new Circle(r.getX(), (int) pageViewGroup.prefHeight(0) - r.getY(), 4);
-                knobA.setStroke(Color.YELLOW);
-                knobA.setStrokeWidth(2);
-                pageViewGroup.getChildren().add(knobA);
-                Circle knobB = new Circle(r.getX() + r.getWidth(), (int) pageViewGroup.prefHeight(0) - r.getY(), 4);
-                knobB.setStroke(Color.YELLOW);
-                knobB.setStrokeWidth(2);
-                pageViewGroup.getChildren().add(knobB);
-                Circle knobC = new Circle(r.getX() + r.getWidth(), (int) pageViewGroup.prefHeight(0) - (r.getY() + r.getHeight()), 4);
-                knobC.setStroke(Color.YELLOW);
-                knobC.setStrokeWidth(2);
-                pageViewGroup.getChildren().add(knobC);
-                Circle knobD = new Circle(r.getX(), (int) pageViewGroup.prefHeight(0) - (r.getY() + r.getHeight()), 4);
-                return knobD;
-            }).map((knobD) -> {
-                knobD.setStroke(Color.YELLOW);
-                return knobD;
-            }).map((knobD) -> {
-                knobD.setStrokeWidth(2);
-                return knobD;
-            }).forEach((knobD) -> {
-                pageViewGroup.getChildren().add(knobD);
-            });
-            if (1 == model.getSelectionCount()) {
-                Rectangle r = model.getSelectedAreas().get(0);
-                TextField textEntry = new TextField(model.getSelectedContents().get(0));
-                textEntry.setPrefWidth(r.getWidth());
-                textEntry.setLayoutX(r.getX() - textEntry.getLayoutBounds().getMinY());
-                textEntry.setLayoutY((pageViewGroup.prefHeight(0) - r.getY()) - textEntry.getLayoutBounds().getMinY());
-
-                textEntry.setOnAction((ActionEvent event) -> {
-                    System.out.println(textEntry.getText());
-                    if (null != pagination) {
-                        model.executeDocumentCommandWithNameAndArgs("ChangeSelectedAnnotationText",
-                                new String[]{Integer.toString(pagination.getCurrentPageIndex()), textEntry.getText()});
-                        refreshUserInterface();
-                    }
-                });
+    }
 
-                pageViewGroup.getChildren().add(textEntry);
+    /**
+     * This method adds hidden knobs to knobPool and selectionOverlay until
+     * knobPool contains at least aCount knobs. New knobs are added to
+     * selectionOverlay in one operation.
+     *
+     * @param aCount The number of knobs needed
+     */
+    private void growKnobPool(int aCount) {
+        if (knobPool.size() < aCount) {
+            List<Node> newKnobs = new ArrayList<>(aCount - knobPool.size());
+            while (knobPool.size() < aCount) {
+                Circle knob = new Circle(0, 0, 4);
+                knob.setStroke(Color.YELLOW);
+                knob.setStrokeWidth(2);
+                knob.setVisible(false);
+                knobPool.add(knob);
+                newKnobs.add(knob);
             }
+            // Knobs go below the text field and marquee
+            selectionOverlay.getChildren().addAll(0, newKnobs);
         }
+    }
 
+    /**
+     * This method removes hidden knobs from knobPool and selectionOverlay
+     * once knobPool holds more than twice aCount knobs, so that one very
+     * large selection does not leave thousands of hidden nodes in the scene
+     * graph. Knobs are removed from selectionOverlay in one operation.
+     *
+     * @param aCount The number of knobs needed
+     */
+    private void trimKnobPool(int aCount) {
+        int retainedCount = Math.max(MIN_KNOB_POOL_SIZE, aCount);
+
+        if (knobPool.size() > 2 * retainedCount) {
+            List<Circle> excessKnobs = knobPool.subList(retainedCount, knobPool.size());
+            selectionOverlay.getChildren().removeAll(new HashSet<>(excessKnobs));
+            excessKnobs.clear();
+        }
+    }
+
+    /**
+     *
+     * @param aKnob A knob from knobPool
+     * @param x An X coordinate in the pageViewGroup coordinate system
+     * @param y A Y coordinate in the pageViewGroup coordinate system
+     */
+    private static void placeKnob(Circle aKnob, double x, double y) {
+        aKnob.setCenterX(x);
+        aKnob.setCenterY(y);
+        aKnob.setVisible(true);
+    }
+
+    /**
+     * This method creates selectionOverlay and the nodes it always contains.
+     */
+    private void makeSelectionOverlay() {
+        selectionOverlay = new Group();
+
+        selectionTextField = new TextField();
+        selectionTextField.setVisible(false);
+        selectionTextField.setOnAction((ActionEvent event) -> {
+            if (null != executor && null != pagination) {
+                logFailure(executor.execute("ChangeSelectedAnnotationText",
+                        Integer.toString(pagination.getCurrentPageIndex()), selectionTextField.getText()));
+            }
+        });
+
+        marqueeRectangle = new javafx.scene.shape.Rectangle();
+        marqueeRectangle.setFill(Color.TRANSPARENT);
+        marqueeRectangle.setStroke(Color.DODGERBLUE);
+        marqueeRectangle.getStrokeDashArray().setAll(4.0, 4.0);
+        marqueeRectangle.setMouseTransparent(true);
+        marqueeRectangle.setVisible(false);
+
+        selectionOverlay.getChildren().addAll(selectionTextField, marqueeRectangle);
+    }
+
+    /**
+     * This method updates the geometry of marqueeRectangle to span from the
+     * location where the pointer was pressed to {x,y} adding marqueeRectangle
+     * to pageViewGroup if it is not already there.
+     *
+     * @param x An X coordinate in the pageViewGroup coordinate system
+     * @param y A Y coordinate in the pageViewGroup coordinate system
+     */
+    private void updateMarquee(double x, double y) {
+        double pageHeight = currentPageImageView.getBoundsInParent().getHeight();
+        double startY = pageHeight - dragStartFlippedY;
+        marqueeRectangle.setX(Math.min(dragStartX, x));
+        marqueeRectangle.setY(Math.min(startY, y));
+        marqueeRectangle.setWidth(Math.abs(x - dragStartX));
+        marqueeRectangle.setHeight(Math.abs(y - startY));
+        marqueeRectangle.setVisible(true);
     }
 
     /**
@@ -325,10 +689,56 @@ public class AIRViewerController implements Initializable {
      * items, setting the image displayed for the currently selected page in a
      * PDF document, etc. The user interface state is determined by the Model
      * state, and one valid Model state is "no model" i.e. model is null. This
-     * method should be called any time the Model subsystem changes state in any
-     * way that should be presented in the user interface.
+     * method refreshes everything immediately. Event handlers should call
+     * setNeedsRefresh() instead so that bursts of changes are presented once
+     * per frame.
      */
     private void refreshUserInterface() {
+        dirtyParts |= REFRESH_ALL;
+        refreshDirtyParts();
+    }
+
+    /**
+     * This method marks parts of the user interface as needing to be
+     * refreshed. The parts are refreshed together at the next JavaFx pulse
+     * (i.e. before the next frame is drawn) no matter how many times this
+     * method is called before then.
+     *
+     * @param someParts A combination of REFRESH_MENUS, REFRESH_OVERLAY, and
+     * REFRESH_PAGE_IMAGE
+     */
+    private void setNeedsRefresh(int someParts) {
+        dirtyParts |= someParts;
+        if (!isRefreshScheduled) {
+            isRefreshScheduled = true;
+            refreshTimer.start();
+        }
+    }
+
+    /**
+     * This method refreshes the parts of the user interface marked by
+     * setNeedsRefresh() and clears the marks.
+     */
+    private void refreshDirtyParts() {
+        int parts = dirtyParts;
+        dirtyParts = 0;
+
+        if (0 != (parts & REFRESH_MENUS)) {
+            refreshMenus();
+        }
+        if (0 != (parts & REFRESH_OVERLAY)) {
+            synchronizeSelectionKnobs();
+        }
+        if (0 != (parts & REFRESH_PAGE_IMAGE)) {
+            refreshPageImage();
+        }
+    }
+
+    /**
+     * This method enables or disables menu items and configures pagination
+     * to reflect modelState.
+     */
+    private void refreshMenus() {
         assert pagination != null : "fx:id=\"pagination\" was not injected: check the application's FXML file .";
         assert saveAsMenuItem != null : "fx:id=\"saveAsMenuItem\" was not injected: check the application's FXML file .";
         assert extractTextMenuItem != null : "fx:id=\"extractTextMenuItem\" was not injected: check the application's FXML file .";
@@ -339,10 +749,12 @@ public class AIRViewerController implements Initializable {
         assert addTextAnnotationMenuItem != null : "fx:id=\"addTextAnnotationMenuItem\" was not injected: check the application's FXML file .";
         assert deleteAnnotationMenuItem != null : "fx:id=\"deleteAnnotationMenuItem\" was not injected: check the application's FXML file .";
 
-        if (null == model) {
+        if (null == modelState) {
             pagination.setPageCount(0);
             pagination.setPageFactory(index -> {
-                return makePageViewGroup(null);
+                Group result = makePageViewGroup();
+                showPageImage(null, 1.0);
+                return result;
             });
             pagination.setDisable(true);
             saveAsMenuItem.setDisable(true);
@@ -355,25 +767,117 @@ public class AIRViewerController implements Initializable {
             deleteAnnotationMenuItem.setDisable(true);
 
         } else {
-            pagination.setPageCount(model.getPageCount());
+            pagination.setPageCount(modelState.pageCount);
             pagination.setDisable(false);
             saveAsMenuItem.setDisable(false);
             extractTextMenuItem.setDisable(false);
-            undoMenuItem.setDisable(!model.getCanUndo());
-            undoMenuItem.setText("Undo " + model.getSuggestedUndoTitle());
-            redoMenuItem.setDisable(!model.getCanRedo());
-            redoMenuItem.setText("Redo " + model.getSuggestedRedoTitle());
+            undoMenuItem.setDisable(!modelState.canUndo);
+            undoMenuItem.setText("Undo " + modelState.undoTitle);
+            redoMenuItem.setDisable(!modelState.canRedo);
+            redoMenuItem.setText("Redo " + modelState.redoTitle);
             addBoxAnnotationMenuItem.setDisable(false);
             addEllipseAnnotationMenuItem.setDisable(false);
             addTextAnnotationMenuItem.setDisable(false);
-            deleteAnnotationMenuItem.setDisable(0 >= model.getSelectionCount());
+            deleteAnnotationMenuItem.setDisable(modelState.selectedIds.isEmpty());
+        }
+    }
 
-            if (null != currentPageImageView) {
-                int pageIndex = pagination.getCurrentPageIndex();
-                currentPageImageView.setImage(model.getImage(pageIndex));
+    /**
+     * This method asks the Model to render a new image of the current page on
+     * executor's writer thread and displays it when it arrives. The previous
+     * image stays visible meanwhile. At most one image is rendered at a time;
+     * requests made while one is being rendered are combined into one request
+     * made when it arrives.
+     */
+    private void refreshPageImage() {
+        if (null != executor && null != currentPageImageView) {
+            if (isPageImageRequested) {
+                isPageImageStale = true;
+                return;
             }
+
+            int pageIndex = pagination.getCurrentPageIndex();
+            AIRViewerModel.RenderQuality quality = isDraftQuality
+                    ? AIRViewerModel.RenderQuality.DRAFT : AIRViewerModel.RenderQuality.FULL;
+            DocumentCommandExecutor<AIRViewerModel> requestExecutor = executor;
+
+            isPageImageRequested = true;
+            FXCommandAdapter.onFXThread(executor.submit(
+                    (AIRViewerModel aModel) -> aModel.getImage(pageIndex, 1.0f, quality)))
+                    .whenComplete((BufferedImage pageImage, Throwable anException) -> {
+                        isPageImageRequested = false;
+                        if (requestExecutor != executor) {
+                            return; // The Model was replaced
+                        }
+                        if (null != anException) {
+                            Logger.getLogger(AIRViewerController.class.getName()).log(
+                                    Level.WARNING, "Unable to render page " + pageIndex, anException);
+                        } else if (pageIndex == pagination.getCurrentPageIndex()) {
+                            showPageImage(SwingFXUtils.toFXImage(pageImage, null),
+                                    (AIRViewerModel.RenderQuality.DRAFT == quality) ? AIRViewerModel.DRAFT_SCALE : 1.0);
+                            // The page height may have changed
+                            setNeedsRefresh(REFRESH_OVERLAY);
+                        }
+                        if (isPageImageStale || pageIndex != pagination.getCurrentPageIndex()) {
+                            isPageImageStale = false;
+                            setNeedsRefresh(REFRESH_PAGE_IMAGE);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * This method displays anImage in currentPageImageView at the size of the
+     * page in PDF units even when anImage is a smaller draft rendering, so
+     * that pointer coordinates and the selection overlay do not depend on
+     * the render quality.
+     *
+     * @param anImage A rendering of the current page or null
+     * @param scale The scale at which anImage was rendered
+     */
+    private void showPageImage(Image anImage, double scale) {
+        assert null != currentPageImageView;
+
+        currentPageImageView.setImage(anImage);
+        currentPageImageView.setSmooth(1.0 == scale);
+        currentPageImageView.setFitWidth((null == anImage) ? 0 : anImage.getWidth() / scale);
+        currentPageImageView.setFitHeight((null == anImage) ? 0 : anImage.getHeight() / scale);
+    }
+
+    /**
+     * This method logs the failure, if any, of work submitted to executor.
+     *
+     * @param aFuture The result of the work
+     */
+    private static void logFailure(CompletableFuture<?> aFuture) {
+        aFuture.whenComplete((Object aValue, Throwable anException) -> {
+            if (null != anException) {
+                Logger.getLogger(AIRViewerController.class.getName()).log(
+                        Level.SEVERE, null, anException);
+            }
+        });
+    }
+
+    /**
+     * Call this method at each step of a continuous interaction such as a
+     * drag or page navigation. Pages are rendered at draft quality until no
+     * step has happened for SETTLE_DELAY.
+     */
+    private void beginInteractionStep() {
+        isDraftQuality = true;
+        settleTimer.playFromStart();
+    }
+
+    /**
+     * This method ends draft quality rendering, if any, and schedules a full
+     * quality rendering of the displayed page.
+     */
+    private void settleInteraction() {
+        settleTimer.stop();
+        if (isDraftQuality) {
+            isDraftQuality = false;
+            setNeedsRefresh(REFRESH_PAGE_IMAGE);
         }
-        synchronizeSelectionKnobs();
     }
 
     /**
@@ -389,104 +893,179 @@ public class AIRViewerController implements Initializable {
      * children of pageViewGroup (siblings of currentPageImageView) when
      * contextually appropriate.
      *
-     * @param anImage The image to be displayed by currentPageImageView or null
-     * if there is no appropriate image.
      * @return A fully configured JavaFx Node (pageViewGroup)
      */
-    private Group makePageViewGroup(Image anImage) {
+    private Group makePageViewGroup() {
         if (null == pageViewGroup) {
             pageViewGroup = new Group();
             currentPageImageView = new ImageView();
-            pageViewGroup.getChildren().add(currentPageImageView);
+            makeSelectionOverlay();
+            pageViewGroup.getChildren().addAll(currentPageImageView, selectionOverlay);
 
-            pageViewGroup.setOnMousePressed((MouseEvent me) -> {
-                if (null != model && null != currentPageImageView) {
+            pageViewGroup.setOnMousePressed(this::pointerPressed);
+            pageViewGroup.setOnMouseDragged(this::pointerDragged);
+            pageViewGroup.setOnMouseReleased(this::pointerReleased);
+        }
 
-                    float flippedY = (float) currentPageImageView.getBoundsInParent().getHeight() - (float) me.getY();
-                    float inPageX = (float) me.getX();
-                    float inPageY = flippedY;
+        assert null != currentPageImageView;
 
-                    // Remember pressed location in case this turns into a drag
-                    dragStartX = inPageX;
-                    dragStartFlippedY = flippedY;
-                    cumulativeDragDeltaX = 0;
-                    cumulativeDragDeltaFlippedY = 0;
+        if (null != executor) {
+            // Clear selection when page changes
+            logFailure(executor.submit((AIRViewerModel aModel) -> {
+                aModel.deselectAll();
+                return null;
+            }));
+            setNeedsRefresh(REFRESH_ALL);
+        }
 
-                    int pageIndex = pagination.getCurrentPageIndex();
-                    if (!me.isMetaDown() && !me.isShiftDown()) {
-                        model.deselectAll();
-                    }
-                    model.extendSelectionOnPageAtPoint(pageIndex,
-                            inPageX, inPageY);
+        return pageViewGroup;
+    }
 
-                    refreshUserInterface();
+    /**
+     * This method starts a selection change at the pressed location on
+     * executor's writer thread. Whether the press hit an annotation, and thus
+     * whether a drag moves the selection or stretches a marquee, is only
+     * known when the change completes, so drags and releases are deferred
+     * until then.
+     *
+     * @param me The pointer press
+     */
+    private void pointerPressed(MouseEvent me) {
+        if (null != model && null != currentPageImageView) {
+
+            float flippedY = (float) currentPageImageView.getBoundsInParent().getHeight() - (float) me.getY();
+            float inPageX = (float) me.getX();
+            float inPageY = flippedY;
+
+            // Remember pressed location in case this turns into a drag
+            dragStartX = inPageX;
+            dragStartFlippedY = flippedY;
+
+            int pageIndex = pagination.getCurrentPageIndex();
+            boolean isExtending = me.isMetaDown() || me.isShiftDown();
+            CompletableFuture<Boolean> press = FXCommandAdapter.onFXThread(executor.submit((AIRViewerModel aModel) -> {
+                if (!isExtending) {
+                    aModel.deselectAll();
+                }
+                return aModel.extendSelectionOnPageAtPoint(pageIndex, inPageX, inPageY);
+            }));
+            pendingPress = press;
+            deferredDrag = null;
+            deferredRelease = null;
+
+            press.whenComplete((Boolean isOnAnnotation, Throwable anException) -> {
+                if (press != pendingPress) {
+                    return; // Superseded or the Model was replaced
+                }
+                pendingPress = null;
+                if (null != anException) {
+                    Logger.getLogger(AIRViewerController.class.getName()).log(
+                            Level.SEVERE, null, anException);
+                }
+                // Pressing where there is no annotation starts a marquee. The
+                // Model notifies modelChangeListener of selection changes.
+                isMarqueeSelecting = !Boolean.TRUE.equals(isOnAnnotation);
+
+                MouseEvent drag = deferredDrag;
+                MouseEvent release = deferredRelease;
+                deferredDrag = null;
+                deferredRelease = null;
+                if (null != drag) {
+                    pointerDragged(drag);
+                }
+                if (null != release) {
+                    pointerReleased(release);
                 }
             });
+        }
+    }
 
-            pageViewGroup.setOnMouseDragged((MouseEvent me) -> {
-                if (null != model && null != currentPageImageView) {
-
-                    isDragging = true;
-                    float flippedY = (float) currentPageImageView.getBoundsInParent().getHeight() - (float) me.getY();
-                    float inPageX = (float) me.getX();
-                    float inPageY = flippedY;
-                    int pageIndex = pagination.getCurrentPageIndex();
-
-                    // Stop registering undo commands so we don't register a slew of move commands
-                    model.setIsUndoRegistrationInhibited(true);
-
-                    cumulativeDragDeltaX += inPageX - dragStartX;
-                    cumulativeDragDeltaFlippedY += flippedY - dragStartFlippedY;
-                    model.executeDocumentCommandWithNameAndArgs("MoveSelectedAnnotation",
-                            new String[]{Integer.toString(pageIndex),
-                                Float.toString(inPageX - dragStartX),
-                                Float.toString(flippedY - dragStartFlippedY)});
-                    dragStartX = inPageX;
-                    dragStartFlippedY = flippedY;
-                    refreshUserInterface();
-                }
+    /**
+     * This method stretches the marquee or moves the selected annotations.
+     *
+     * @param me The pointer drag
+     */
+    private void pointerDragged(MouseEvent me) {
+        if (null != pendingPress) {
+            // Only the most recent location matters
+            deferredDrag = me;
+
+        } else if (null != model && null != currentPageImageView && isMarqueeSelecting) {
+            updateMarquee(me.getX(), me.getY());
+
+        } else if (null != model && null != currentPageImageView) {
+
+            if (!isDragging) {
+                // Collect the slew of move commands into one undo entry
+                isDragging = true;
+                logFailure(executor.submit((AIRViewerModel aModel) -> {
+                    aModel.beginTransaction();
+                    return null;
+                }));
+            }
+            float flippedY = (float) currentPageImageView.getBoundsInParent().getHeight() - (float) me.getY();
+            float inPageX = (float) me.getX();
+            int pageIndex = pagination.getCurrentPageIndex();
+
+            logFailure(executor.execute("MoveSelectedAnnotation",
+                    Integer.toString(pageIndex),
+                    Float.toString(inPageX - dragStartX),
+                    Float.toString(flippedY - dragStartFlippedY)));
+            dragStartX = inPageX;
+            dragStartFlippedY = flippedY;
+            presentTransactionStep();
+        }
+    }
 
-            });
+    /**
+     * The Model does not notify modelChangeListener of changes made inside a
+     * transaction until the transaction is committed. Call this method after
+     * each step of a transaction, e.g. each move of a drag, so that the step
+     * is presented right away: the page is rendered at draft quality, and the
+     * overlay is refreshed with a fresh copy of the Model state.
+     */
+    private void presentTransactionStep() {
+        beginInteractionStep();
+        requestModelState();
+        setNeedsRefresh(REFRESH_PAGE_IMAGE | REFRESH_OVERLAY);
+    }
 
-            pageViewGroup.setOnMouseReleased((MouseEvent me) -> {
-                if (null != model && null != currentPageImageView) {
-                    if (isDragging) {
-                        isDragging = false;
-
-                        int pageIndex = pagination.getCurrentPageIndex();
-                        // Put everything back where where it was before drag started
-                        model.executeDocumentCommandWithNameAndArgs("MoveSelectedAnnotation",
-                                new String[]{Integer.toString(pageIndex),
-                                    Float.toString(-cumulativeDragDeltaX),
-                                    Float.toString(-cumulativeDragDeltaFlippedY)});
-
-                        // Resume registering undo commands
-                        model.setIsUndoRegistrationInhibited(false);
-
-                        // Move everything to final position in one big undoable operation
-                        model.executeDocumentCommandWithNameAndArgs("MoveSelectedAnnotation",
-                                new String[]{Integer.toString(pageIndex),
-                                    Float.toString(cumulativeDragDeltaX),
-                                    Float.toString(cumulativeDragDeltaFlippedY)});
-
-                        // register one cummulative command for undoing drag
-                        refreshUserInterface();
-                    }
-                }
+    /**
+     * This method selects the annotations in the marquee or ends the move of
+     * the selected annotations.
+     *
+     * @param me The pointer release
+     */
+    private void pointerReleased(MouseEvent me) {
+        if (null != pendingPress) {
+            deferredRelease = me;
 
-            });
-        }
+        } else if (null != model && null != currentPageImageView) {
+            if (isMarqueeSelecting) {
+                isMarqueeSelecting = false;
 
-        assert null != currentPageImageView;
+                if (marqueeRectangle.isVisible()) {
+                    float flippedY = (float) currentPageImageView.getBoundsInParent().getHeight() - (float) me.getY();
+                    int pageIndex = pagination.getCurrentPageIndex();
 
-        currentPageImageView.setImage(anImage);
+                    // Select everything in the marquee in one operation
+                    float x0 = dragStartX;
+                    float y0 = dragStartFlippedY;
+                    float x1 = (float) me.getX();
+                    logFailure(executor.submit((AIRViewerModel aModel)
+                            -> aModel.extendSelectionOnPageInRectangle(pageIndex, x0, y0, x1, flippedY)));
+                    marqueeRectangle.setVisible(false);
+                }
+            }
+            if (isDragging) {
+                isDragging = false;
 
-        if (null != model) {
-            model.deselectAll();   // Clear selection when page changes
-            refreshUserInterface();
+                // Register one undo entry for the whole drag. The Model
+                // notifies modelChangeListener once.
+                logFailure(executor.submit((AIRViewerModel aModel) -> aModel.commit()));
+                settleInteraction();
+            }
         }
-
-        return pageViewGroup;
     }
 
     /**
@@ -512,7 +1091,39 @@ public class AIRViewerController implements Initializable {
         assert addTextAnnotationMenuItem != null : "fx:id=\"addTextAnnotationMenuItem\" was not injected: check the application's FXML file .";
         assert deleteAnnotationMenuItem != null : "fx:id=\"deleteAnnotationMenuItem\" was not injected: check the application's FXML file .";
 
+        if (null != executor) {
+            // Work already submitted still finishes before the old Model is
+            // closed
+            logFailure(executor.submit((AIRViewerModel anOldModel) -> {
+                if (anOldModel.isInTransaction()) {
+                    anOldModel.commit();
+                }
+                anOldModel.close();
+                return null;
+            }));
+            executor.shutdown();
+            executor = null;
+        }
+        isDragging = false;
+        isMarqueeSelecting = false;
+        isPageImageRequested = false;
+        isPageImageStale = false;
+        isModelStateRequested = false;
+        isModelStateStale = false;
+        pendingPress = null;
+        deferredDrag = null;
+        deferredRelease = null;
+        if (null != marqueeRectangle) {
+            marqueeRectangle.setVisible(false);
+        }
         model = aModel;
+        modelState = null;
+        if (null != model) {
+            // Nothing else uses the new Model yet
+            modelState = new ModelState(model);
+            observeModel(model);
+            executor = new DocumentCommandExecutor<>(model);
+        }
 
         openMenuItem.setOnAction((ActionEvent e) -> {
             System.out.println("Open ...");
@@ -527,16 +1138,18 @@ public class AIRViewerController implements Initializable {
 
         if (null == model) {
             pagination.setPageFactory(index -> {
-                return makePageViewGroup(null);
+                Group result = makePageViewGroup();
+                showPageImage(null, 1.0);
+                return result;
             });
 
         } else {
 
             pagination.setPageFactory(index -> {
-                model.deselectAll(); // clear selection when changing page
-                return makePageViewGroup(model.getImage(index));
+                // Show a draft while the user is paging through the document
+                beginInteractionStep();
+                return makePageViewGroup(); // Clears the selection
             });
-            model.deselectAll();
 
             saveAsMenuItem.setOnAction((ActionEvent event) -> {
                 FileChooser fileChooser = new FileChooser();
@@ -544,43 +1157,43 @@ public class AIRViewerController implements Initializable {
                 fileChooser.getExtensionFilters().add(extFilter);
                 File file = fileChooser.showSaveDialog(pagination.getScene().getWindow());
                 if (null != file) {
-                    model.save(file);
+                    // Saving may take a while, so it runs on the writer
+                    // thread while the user interface stays responsive.
+                    logFailure(executor.submit((AIRViewerModel aSavedModel) -> {
+                        aSavedModel.save(file);
+                        return null;
+                    }));
                 }
             });
             extractTextMenuItem.setOnAction((ActionEvent e) -> {
                 System.out.println("extractTextMenuItem ...");
             });
+            // The Model notifies modelChangeListener after each of these
             undoMenuItem.setOnAction((ActionEvent e) -> {
-                model.undo();
-                refreshUserInterface();
+                logFailure(executor.undo());
             });
             redoMenuItem.setOnAction((ActionEvent e) -> {
-                model.redo();
-                refreshUserInterface();
+                logFailure(executor.redo());
             });
             addBoxAnnotationMenuItem.setOnAction((ActionEvent e) -> {
                 int pageIndex = pagination.getCurrentPageIndex();
-                model.executeDocumentCommandWithNameAndArgs("AddBoxAnnotation",
-                        new String[]{Integer.toString(pageIndex), "36.0", "36.0", "72.0", "72.0"});
-                refreshUserInterface();
+                logFailure(executor.execute("AddBoxAnnotation",
+                        Integer.toString(pageIndex), "36.0", "36.0", "72.0", "72.0"));
             });
             addEllipseAnnotationMenuItem.setOnAction((ActionEvent e) -> {
                 int pageIndex = pagination.getCurrentPageIndex();
-                model.executeDocumentCommandWithNameAndArgs("AddCircleAnnotation",
-                        new String[]{Integer.toString(pageIndex), "288", "576", "144.0", "72.0", "Sample Text!"});
-                refreshUserInterface();
+                logFailure(executor.execute("AddCircleAnnotation",
+                        Integer.toString(pageIndex), "288", "576", "144.0", "72.0", "Sample Text!"));
             });
             addTextAnnotationMenuItem.setOnAction((ActionEvent e) -> {
                 int pageIndex = pagination.getCurrentPageIndex();
-                model.executeDocumentCommandWithNameAndArgs("AddTextAnnotation",
-                        new String[]{Integer.toString(pageIndex), "36", "576", "144.0", "19.0", "A Bit More Sample Text!"});
-                refreshUserInterface();
+                logFailure(executor.execute("AddTextAnnotation",
+                        Integer.toString(pageIndex), "36", "576", "144.0", "19.0", "A Bit More Sample Text!"));
             });
             deleteAnnotationMenuItem.setOnAction((ActionEvent e) -> {
                 int pageIndex = pagination.getCurrentPageIndex();
-                model.executeDocumentCommandWithNameAndArgs("DeleteSelectedAnnotation",
-                        new String[]{Integer.toString(pageIndex)});
-                refreshUserInterface();
+                logFailure(executor.execute("DeleteSelectedAnnotation",
+                        Integer.toString(pageIndex)));
             });
         }
 
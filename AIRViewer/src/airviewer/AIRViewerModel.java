@@ -19,24 +19,30 @@
  */
 package airviewer;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import static java.lang.Float.parseFloat;
 import java.nio.file.Path;
-import java.rmi.server.UID;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javafx.embed.swing.SwingFXUtils;
-import javafx.scene.image.Image;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
 import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.rendering.PageDrawer;
+import org.apache.pdfbox.rendering.PageDrawerParameters;
 import static java.lang.Integer.parseInt;
 
 /**
@@ -72,6 +78,89 @@ public class AIRViewerModel extends DocumentCommandWrapper {
      */
     private final PDFRenderer renderer;
 
+    /**
+     * The qualities in which pages can be rendered. See getImage().
+     */
+    public enum RenderQuality {
+        /**
+         * Anti-aliased rendering at the requested scale
+         */
+        FULL,
+        /**
+         * Fast rendering for use while the user drags or pages. Pages are
+         * rendered at DRAFT_SCALE times the requested scale without
+         * anti-aliasing and with nearest neighbor image interpolation.
+         */
+        DRAFT
+    }
+
+    /**
+     * The fraction of the requested scale at which DRAFT images are rendered
+     */
+    public static final float DRAFT_SCALE = 0.5f;
+
+    /**
+     * PDFRenderer always turns anti-aliasing and bicubic interpolation on, so
+     * draft rendering uses PageDrawers that switch to fast rendering hints
+     * after PDFBox has set its own and before anything is drawn.
+     */
+    private static class DraftRenderer extends PDFRenderer {
+
+        DraftRenderer(PDDocument aDocument) {
+            super(aDocument);
+        }
+
+        @Override
+        protected PageDrawer createPageDrawer(PageDrawerParameters parameters) throws IOException {
+            return new PageDrawer(parameters) {
+                @Override
+                public void processPage(PDPage aPage) throws IOException {
+                    Graphics2D graphics = getGraphics();
+                    graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+                    graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+                    graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+                    super.processPage(aPage);
+                }
+            };
+        }
+    }
+
+    /**
+     * The renderer used for RenderQuality.DRAFT
+     */
+    private final PDFRenderer draftRenderer;
+
+    /**
+     * The maximum total number of pixels in imageCache, about 16 MB of
+     * images
+     */
+    private static final long MAX_CACHED_PIXELS = 4L * 1024L * 1024L;
+
+    /**
+     * Instances of this class are page images in imageCache.
+     */
+    private static final class CachedImage {
+
+        final long pageRevision;
+        final BufferedImage image;
+
+        CachedImage(long aPageRevision, BufferedImage anImage) {
+            pageRevision = aPageRevision;
+            image = anImage;
+        }
+    }
+
+    /**
+     * The most recently rendered page images in least recently used order
+     * keyed by page index, scale, and quality. An image is used again only
+     * while its page still has the page revision it was rendered at, e.g.
+     * when the user pages back or a change elsewhere in the document
+     * refreshes the display.
+     */
+    private final LinkedHashMap<String, CachedImage> imageCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedPixels;
+
     /**
      * Constructor: Loads the PDF document at the path (file system path).
      *
@@ -80,11 +169,49 @@ public class AIRViewerModel extends DocumentCommandWrapper {
      * valid PDF data.
      */
     AIRViewerModel(Path path) throws IOException {
-        super(PDDocument.load(path.toFile()), "");
+        this(path, false);
+    }
+
+    /**
+     * Constructor: Loads the PDF document at the path (file system path),
+     * optionally with the help of a DocumentStructureCache sidecar file, which
+     * makes loading the same large file again faster.
+     *
+     * @param path A file system path to a PDF file.
+     * @param shouldUseStructureCache If true, the sidecar of the file is used
+     * if it is valid and written otherwise.
+     * @throws IOException If the PDF file cannot be read or does not contain
+     * valid PDF data.
+     */
+    AIRViewerModel(Path path, boolean shouldUseStructureCache) throws IOException {
+        this(shouldUseStructureCache ? DocumentStructureCache.load(path.toFile())
+                : PDDocument.load(path.toFile()));
+        documentWasSavedIn(path.toFile());
+    }
+
+    /**
+     * Constructor: Loads the PDF document read from input, e.g. a document
+     * uploaded to AnnotationService.
+     *
+     * @param input A stream of PDF data. It is read to the end but not
+     * closed.
+     * @throws IOException If input cannot be read or does not contain valid
+     * PDF data.
+     */
+    AIRViewerModel(InputStream input) throws IOException {
+        this(PDDocument.load(input));
+    }
+
+    private AIRViewerModel(PDDocument aDocument) {
+        super(aDocument, "");
         renderer = new PDFRenderer(wrappedDocument);
+        draftRenderer = new DraftRenderer(wrappedDocument);
         AbstractDocumentCommandWrapper.registerCommandFactoryWithName((AbstractDocumentCommandWrapper owner, ArrayList<String> args) -> new MoveSelectedAnnotationDocumentCommand(owner, args), "MoveSelectedAnnotation");
         AbstractDocumentCommandWrapper.registerCommandFactoryWithName((AbstractDocumentCommandWrapper owner, ArrayList<String> args) -> new DeleteSelectedAnnotationDocumentCommand(owner, args), "DeleteSelectedAnnotation");
         AbstractDocumentCommandWrapper.registerCommandFactoryWithName((AbstractDocumentCommandWrapper owner, ArrayList<String> args) -> new ChangeSelectedTextAnnotationDocumentCommand(owner, args), "ChangeSelectedAnnotationText");
+
+        AbstractDocumentCommandWrapper.registerRestoreFactoryWithName((AbstractDocumentCommandWrapper owner, List<PDAnnotation> annotations, ArrayList<String> args, int[] indices) -> new MoveSelectedAnnotationDocumentCommand(owner, annotations, args), "MoveSelectedAnnotation");
+        AbstractDocumentCommandWrapper.registerRestoreFactoryWithName((AbstractDocumentCommandWrapper owner, List<PDAnnotation> annotations, ArrayList<String> args, int[] indices) -> new ChangeSelectedTextAnnotationDocumentCommand(owner, annotations, args), "ChangeSelectedAnnotationText");
     }
 
     /**
@@ -92,37 +219,98 @@ public class AIRViewerModel extends DocumentCommandWrapper {
      * @param pageIndex Must be pageIndex >= 0 && pageIndex < numPages() 
      * @return An image produced by rendering the PDF page specified by pageIndex. The page index
      * is an index starting with zero in an array of "pages" obtained from the
-     * loaded PDf document. Returns null if no such image can be produced.
+     * loaded PDf document. Returns null if no such image can be produced. The
+     * image is an AWT image so that the Model can be used without JavaFx, e.g.
+     * on servers. User interfaces convert it for display.
+     *
+     */
+    public BufferedImage getImage(int pageIndex) {
+        return getImage(pageIndex, 1.0f);
+    }
+
+    /**
      *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < numPages()
+     * @param scale The number of pixels per PDF point, e.g. 1 for 72 DPI
+     * @return An image produced by rendering the PDF page specified by
+     * pageIndex at scale. See getImage(int).
      */
-    public Image getImage(int pageIndex) {
+    public BufferedImage getImage(int pageIndex, float scale) {
+        return getImage(pageIndex, scale, RenderQuality.FULL);
+    }
+
+    /**
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < numPages()
+     * @param scale The number of pixels per PDF point, e.g. 1 for 72 DPI
+     * @param quality The rendering quality. DRAFT images are smaller than
+     * scale implies. See RenderQuality.DRAFT.
+     * @return An image produced by rendering the PDF page specified by
+     * pageIndex. See getImage(int). The image is reused for later requests
+     * while the page does not change, so it must not be modified.
+     */
+    public BufferedImage getImage(int pageIndex, float scale, RenderQuality quality) {
         assert pageIndex >= 0 && pageIndex < getPageCount();
+        assert 0 < scale;
 
-        Image result = null;
+        String key = pageIndex + " " + scale + " " + quality;
+        CachedImage cached = imageCache.get(key);
+        if (null != cached && getPageRevision(pageIndex) == cached.pageRevision) {
+            return cached.image;
+        }
+
+        BufferedImage result = null;
 
         try {
-            BufferedImage pageImage = renderer.renderImage(pageIndex);
-            result = SwingFXUtils.toFXImage(pageImage, null);
+            generateStaleAppearancesOnPage(pageIndex);
+            if (RenderQuality.DRAFT == quality) {
+                result = draftRenderer.renderImage(pageIndex, scale * DRAFT_SCALE);
+            } else {
+                result = renderer.renderImage(pageIndex, scale);
+            }
         } catch (IOException ex) {
             throw new UncheckedIOException(
                     "Unable to render the page at index:<" + Integer.toString(pageIndex) + ">", ex);
         }
+        cacheImage(key, new CachedImage(getPageRevision(pageIndex), result));
 
         return result;
     }
 
+    /**
+     * Adds anImage to imageCache and removes the least recently used images
+     * until the cache fits in MAX_CACHED_PIXELS.
+     */
+    private void cacheImage(String aKey, CachedImage anImage) {
+        CachedImage replaced = imageCache.put(aKey, anImage);
+        if (null != replaced) {
+            cachedPixels -= (long) replaced.image.getWidth() * replaced.image.getHeight();
+        }
+        cachedPixels += (long) anImage.image.getWidth() * anImage.image.getHeight();
+
+        Iterator<Map.Entry<String, CachedImage>> iterator = imageCache.entrySet().iterator();
+        while (cachedPixels > MAX_CACHED_PIXELS && iterator.hasNext()) {
+            BufferedImage evicted = iterator.next().getValue().image;
+            cachedPixels -= (long) evicted.getWidth() * evicted.getHeight();
+            iterator.remove();
+        }
+    }
+
     /**
      * Save the loaded PDF document (if any) by writing all of its content and
      * annotations as PDF data into file. This operation replaces the entire
      * content of file. Both regular PDF content streams and PDF annotation
-     * streams are stored.
+     * streams are stored. Nothing is written if file was loaded or saved by
+     * the receiver, has not been changed since, and the document has not
+     * changed since. See getRevision().
      *
      * @param file The file into which PDF data is written.
      */
     public void save(File file) {
     	assert file !=null;
         try {
-            wrappedDocument.save(file);
+            // Nothing is written if file already holds this revision
+            saveIfModified(file);
         } catch (IOException ex) {
             Logger.getLogger(AIRViewerModel.class.getName()).log(Level.SEVERE,
                     "Unable to save PDF data.", ex);
@@ -130,33 +318,18 @@ public class AIRViewerModel extends DocumentCommandWrapper {
     }
 
     /**
-     * Some PDF editors (and hand written files) produce unnamed annotations,
-     * but the Model relies on annotations having unique names. Call this method
-     * to ensure that all annotations on the specified page in wrappedDocument
-     * have unique names regardless of the presence or absence of pre-existing
-     * names.
+     * Save the loaded PDF document by writing it as PDF data to output. See
+     * save(File).
      *
-     * @param pageIndex pageIndex >= 0 && pageIndex < numPages()
-     * @return A list of uniquely named annotations.
+     * @param output The stream to which PDF data is written. PDFBox closes it
+     * when done.
+     * @throws IOException If output cannot be written
      */
-    private List<PDAnnotation> getAllSanitizedAnnotationsOnPage(int pageIndex) {
-        assert Integer.toString(pageIndex) != null;
-    	List<PDAnnotation> result = null;
-
-        try {
-            PDPage page = wrappedDocument.getPage(pageIndex);
-            result = page.getAnnotations();
-            for (PDAnnotation a : result) {
-                // Other programs neglect to provide a name, so provide one
-                // to uniquely identify selectde annotations.
-                a.setAnnotationName(new UID().toString());
-
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(AbstractDocumentCommandWrapper.class.getName()).log(Level.SEVERE, null, ex);
-        }
+    public void save(OutputStream output) throws IOException {
+        assert null != output;
 
-        return result;
+        generateStaleAppearances();
+        wrappedDocument.save(output);
     }
 
     /**
@@ -182,7 +355,7 @@ public class AIRViewerModel extends DocumentCommandWrapper {
          */
         public ChangeSelectedTextAnnotationDocumentCommand(AbstractDocumentCommandWrapper anOwner, List<PDAnnotation> annotations, ArrayList<String> args) {
             super(anOwner, annotations, args);
-            assert 1 == annotations.size();
+            assert 0 < annotations.size();
             assert 2 == args.size();
         }
 
@@ -217,11 +390,11 @@ public class AIRViewerModel extends DocumentCommandWrapper {
                     newArgs.set(1, candidates.get(0).getContents());
                     result = new ChangeSelectedTextAnnotationDocumentCommand(owner, new ArrayList<>(candidates), newArgs);
 
-                    candidates.stream().map((a) -> {
+                    candidates.stream().forEach((a) -> {
+                        String oldContents = a.getContents();
                         a.setContents(arguments.get(1));
-                        return a;
-                    }).forEach((a) -> {
-                        TextInAnnotationReplacer.replaceText(owner.wrappedDocument, a, arguments.get(1));
+                        TextInAnnotationReplacer.replaceText(owner.wrappedDocument, a, oldContents, arguments.get(1));
+                        owner.annotationWasEdited(a);
                     });
                 }
             } else {
@@ -243,6 +416,11 @@ public class AIRViewerModel extends DocumentCommandWrapper {
             return "Change Annotation Text";
         }
 
+        @Override
+        public String getRestoreName() {
+            return (null == annotations) ? null : "ChangeSelectedAnnotationText";
+        }
+
     }
 
     /**
@@ -268,7 +446,7 @@ public class AIRViewerModel extends DocumentCommandWrapper {
          */
         public MoveSelectedAnnotationDocumentCommand(AbstractDocumentCommandWrapper anOwner, List<PDAnnotation> annotations, ArrayList<String> args) {
             super(anOwner, annotations, args);
-            assert 1 == annotations.size();
+            assert 0 < annotations.size();
             assert 3 == args.size();
         }
 
@@ -296,7 +474,8 @@ public class AIRViewerModel extends DocumentCommandWrapper {
 
             if (0 < candidates.size()) {
 
-                 float dx = parseFloat(arguments.get(1));
+                int pageNumber = parseInt(arguments.get(0));
+                float dx = parseFloat(arguments.get(1));
                 float dy = parseFloat(arguments.get(2));
 
                 ArrayList<String> newArgs = new ArrayList<>(arguments);
@@ -311,6 +490,7 @@ public class AIRViewerModel extends DocumentCommandWrapper {
                     position.setUpperRightX(position.getUpperRightX() + dx);
                     position.setUpperRightY(position.getUpperRightY() + dy);
                     a.setRectangle(position);
+                    owner.annotationWasMovedOnPage(pageNumber, a);
                 });
             }
 
@@ -328,6 +508,11 @@ public class AIRViewerModel extends DocumentCommandWrapper {
             return "Move Annotation";
         }
 
+        @Override
+        public String getRestoreName() {
+            return (null == annotations) ? null : "MoveSelectedAnnotation";
+        }
+
     }
 
     /**
@@ -353,7 +538,6 @@ public class AIRViewerModel extends DocumentCommandWrapper {
         @Override
         public AbstractDocumentCommand execute() {
         	assert owner!=null;
-            List<PDAnnotation> oldAnnotations;
             List<PDAnnotation> selectedAnnotations = owner.getSelectedAnnotations();
             AbstractDocumentCommand result = null;
 
@@ -362,30 +546,10 @@ public class AIRViewerModel extends DocumentCommandWrapper {
 
                 try {
                     int pageNumber = parseInt(arguments.get(0));
-                    PDPage page = owner.wrappedDocument.getPage(pageNumber);
-                    oldAnnotations = getAllSanitizedAnnotationsOnPage(pageNumber);
-
-                    if (null != oldAnnotations) {
-                        result = new ReplaceAnnotationDocumentCommand(owner, new ArrayList<>(oldAnnotations), arguments);
-                        selectedAnnotations.stream().map((a) -> {
-                            List<PDAnnotation> itemsToRemove = new ArrayList<>();
-                            oldAnnotations.stream().map((p) -> {
-                                assert null != p && null != p.getAnnotationName();
-                                return p;
-                            }).forEach((p) -> {
-                                assert null != a && null != a.getAnnotationName();
-                                if (p.getAnnotationName().equals(a.getAnnotationName())) {
-                                    itemsToRemove.add(p);
-                                }
-                            });
-                            return itemsToRemove;
-                        }).forEach((itemsToRemove) -> {
-                            itemsToRemove.stream().forEach((pa) -> {
-                                oldAnnotations.remove(pa);
-                            });
-                        });
-                        page.setAnnotations(oldAnnotations);
-                    }
+
+                    // Selected annotations are the page's own annotations, so
+                    // they are removed by identity in one pass over the page.
+                    result = removeAnnotationsOnPage(pageNumber, selectedAnnotations, arguments);
                     owner.deselectAll();
                 } catch (NumberFormatException | NullPointerException ex) {
                     System.err.println("Non number encountered where floating point number expected.");
@@ -21,15 +21,26 @@
 package airviewer;
 
 import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
-import java.rmi.server.UID;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
@@ -51,11 +62,14 @@ public abstract class AbstractDocumentCommandWrapper {
 
     /**
      * The map from Command names to Command factories. Register Command
-     * factories by calling registerCommandFactoryWithName().
+     * factories by calling registerCommandFactoryWithName(). The map is
+     * concurrent because every wrapper registers its factories when it is
+     * constructed, possibly while other threads execute Commands in other
+     * documents.
      */
     /*private static HashMap<String, MakeCommand> nameToFactoryMap
             = nameToFactoryMap = new HashMap<>();*/
-    private static HashMap<String, MakeCommand> nameToFactoryMap= new HashMap<>();
+    private static final ConcurrentHashMap<String, MakeCommand> nameToFactoryMap = new ConcurrentHashMap<>();
 
     /**
      * This is the interface that Command factories stored in nameToFactoryMap
@@ -75,6 +89,41 @@ public abstract class AbstractDocumentCommandWrapper {
         public AbstractDocumentCommand make(AbstractDocumentCommandWrapper anOwner, ArrayList<String> args);
     }
 
+    /**
+     * The map from restore names to factories that rebuild Commands read back
+     * from disk. Register restore factories by calling
+     * registerRestoreFactoryWithName(). See nameToFactoryMap.
+     */
+    private static final ConcurrentHashMap<String, RestoreCommand> nameToRestoreFactoryMap = new ConcurrentHashMap<>();
+
+    /**
+     * The restore name used when writing a CompositeDocumentCommand. Composite
+     * Commands are written and read by writeCommand() and readCommand()
+     * directly rather than through a restore factory.
+     */
+    private static final String COMPOSITE_RESTORE_NAME = "Composite";
+
+    /**
+     * This is the interface that restore factories stored in
+     * nameToRestoreFactoryMap must implement. Commands that can be moved out of
+     * memory by CommandHistory are rebuilt from their annotations, arguments,
+     * and indices (if any) by a restore factory.
+     */
+    public static interface RestoreCommand {
+
+        /**
+         * Returns a new instance of a AbstractDocumentCommand subclass.
+         *
+         * @param anOwner The AbstractDocumentCommandWrapper that has the
+         * wrappedDocument that the Command will operate upon
+         * @param someAnnotations The annotations of the Command that was written
+         * @param args The arguments of the Command that was written
+         * @param someIndices The indices of the Command that was written or null
+         * @return
+         */
+        public AbstractDocumentCommand restore(AbstractDocumentCommandWrapper anOwner, List<PDAnnotation> someAnnotations, ArrayList<String> args, int[] someIndices);
+    }
+
     /**
      * The PDF document that commands will use when the commands are executed.
      * The wrapped document will never be null.
@@ -83,15 +132,16 @@ public abstract class AbstractDocumentCommandWrapper {
 
     /**
      * A stack that stores Commands that should be executed to "undo" previously
-     * executed commands.
+     * executed commands. Old entries are moved to disk when the history budget
+     * is exceeded. See setUndoHistoryBudget().
      */
-    private final Stack<AbstractDocumentCommand> undoStack;
+    private final CommandHistory undoStack;
 
     /**
      * A stack that stores Commands that should be executed to "redo" previously
      * undone commands.
      */
-    private final Stack<AbstractDocumentCommand> redoStack;
+    private final CommandHistory redoStack;
 
     /**
      * There are times when it makes sense to NOT push commands onto the undo
@@ -104,15 +154,276 @@ public abstract class AbstractDocumentCommandWrapper {
      * small movements on the way to the final drag destination. The solution is
      * to inhibit undo registration during the drag and then un-inhibit undo
      * registration at the end of the drag and execute a single undo-able
-     * command that encodes the entire movement.
+     * command that encodes the entire movement. Prefer beginTransaction() and
+     * commit() which produce the single undo-able command without repeating
+     * the movement.
      */
     private boolean isUndoRegistrationInhibited;
 
+    /**
+     * The reciprocals of the Commands executed since the outermost
+     * beginTransaction() in execution order, or null if no transaction is
+     * open.
+     */
+    private List<AbstractDocumentCommand> transactionReciprocals;
+
+    /**
+     * For each open (possibly nested) transaction, the size of
+     * transactionReciprocals when the transaction began. rollback() uses this
+     * to undo only the Commands of the innermost transaction.
+     */
+    private final List<Integer> transactionStarts;
+
+    /**
+     * The undo name of the outermost open transaction or null to use the undo
+     * name of the first Command executed in the transaction.
+     */
+    private String transactionUndoName;
+
+    /**
+     * This is the interface that objects interested in changes to the wrapped
+     * document must implement. See addChangeListener().
+     */
+    public static interface DocumentChangeListener {
+
+        /**
+         * Called after a Command, undo, or redo changed the wrapped document
+         * or the selection changed. Within a transaction, listeners are
+         * called once when the outermost transaction is committed or rolled
+         * back, and someChanges describes everything that changed within the
+         * transaction.
+         *
+         * @param aWrapper The wrapper whose document changed
+         * @param someChanges The changes in the order they happened. The list
+         * may be empty, e.g. if only the undo stack changed, and must not be
+         * modified.
+         */
+        public void documentDidChange(AbstractDocumentCommandWrapper aWrapper, List<DocumentChange> someChanges);
+    }
+
+    /**
+     * Instances of this class describe one kind of change to some annotations
+     * on one page. Consecutive changes of the same kind on the same page are
+     * recorded in one instance, so moving or importing thousands of
+     * annotations produces one instance per page rather than one per
+     * annotation.
+     */
+    public static final class DocumentChange {
+
+        /**
+         * The kinds of change
+         */
+        public enum Kind {
+            /**
+             * Annotations were inserted into the page
+             */
+            ANNOTATIONS_ADDED,
+            /**
+             * Annotations were removed from the page
+             */
+            ANNOTATIONS_REMOVED,
+            /**
+             * The bounding boxes of annotations on the page changed
+             */
+            ANNOTATIONS_MOVED,
+            /**
+             * The contents and appearance of annotations on the page changed
+             */
+            ANNOTATIONS_EDITED,
+            /**
+             * Something on the page changed that is not described by the
+             * other kinds, e.g. its annotation array was replaced. Anything
+             * derived from the page should be rebuilt.
+             */
+            PAGE_CONTENT_CHANGED,
+            /**
+             * The selection changed. The page index is -1 and there are no
+             * annotation IDs. See getSelectedIds().
+             */
+            SELECTION_CHANGED
+        }
+
+        private final Kind kind;
+        private final int pageIndex;
+        private int[] annotationIds;
+        private int annotationCount;
+
+        DocumentChange(Kind aKind, int aPageIndex) {
+            kind = aKind;
+            pageIndex = aPageIndex;
+            annotationIds = new int[4];
+        }
+
+        /**
+         * Appends anId to the IDs of the changed annotations.
+         *
+         * @param anId An annotationRegistry ID
+         */
+        void add(int anId) {
+            if (annotationCount == annotationIds.length) {
+                annotationIds = Arrays.copyOf(annotationIds, annotationCount * 2);
+            }
+            annotationIds[annotationCount++] = anId;
+        }
+
+        /**
+         *
+         * @return The kind of change
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         *
+         * @return The index of the changed page or -1 if the change is not
+         * specific to a page or the page is unknown.
+         */
+        public int getPageIndex() {
+            return pageIndex;
+        }
+
+        /**
+         *
+         * @return The number of changed annotations with an ID. Annotations
+         * that were never registered with the annotationRegistry are not
+         * counted.
+         */
+        public int getAnnotationCount() {
+            return annotationCount;
+        }
+
+        /**
+         *
+         * @param i Must be i >= 0 && i < getAnnotationCount()
+         * @return The annotationRegistry ID of the i-th changed annotation
+         */
+        public int getAnnotationId(int i) {
+            assert 0 <= i && i < annotationCount;
+
+            return annotationIds[i];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s page %d (%d annotations)", kind, pageIndex, annotationCount);
+        }
+    }
+
+    /**
+     * The objects to notify when the wrapped document changes.
+     */
+    private final List<DocumentChangeListener> changeListeners;
+
+    /**
+     * The changes recorded since listeners were last notified in the order
+     * they happened. See recordChange().
+     */
+    private List<DocumentChange> pendingChanges;
+
+    /**
+     * The number of Commands being executed. Changes recorded while a Command
+     * executes are delivered after its reciprocal has been registered.
+     */
+    private int commandExecutionDepth;
+
     /**
      * A collection of "selected" annotations. Add annotations to the collection
-     * by calling extendSelectionOnPageAtPoint(). See also deselectAll().
+     * by calling extendSelectionOnPageAtPoint(). See also deselectAll(). Each
+     * annotation is keyed by its annotationRegistry ID because PDFBox may
+     * create several PDAnnotation instances for the same annotation. The map
+     * preserves selection order.
      */
-    private final List<PDAnnotation> selectedAnnotations;
+    private final LinkedHashMap<Integer, PDAnnotation> selectedAnnotations;
+
+    /**
+     * Stable IDs for every annotation in wrappedDocument. See
+     * AnnotationRegistry.
+     */
+    protected final AnnotationRegistry annotationRegistry;
+
+    /**
+     * Spatial indexes of the annotations on each page keyed by page index.
+     * Indexes are built the first time a page is hit-tested and then
+     * maintained by the Commands that insert, remove, or move annotations. See
+     * getSpatialIndexOnPage().
+     */
+    private final HashMap<Integer, AnnotationSpatialIndex> spatialIndexes;
+
+    /**
+     * The most recently published snapshot of every annotation or null until
+     * it is first requested. It is replaced, never changed, so other threads
+     * may read it at any time. See getAnnotationSnapshot().
+     */
+    private volatile AnnotationSnapshot annotationSnapshot;
+
+    /**
+     * The number of snapshots that would have been published while
+     * annotationSnapshot was null. It becomes the version of the first one.
+     */
+    private long unpublishedSnapshotCount;
+
+    /**
+     * Instances of this class record how one entry of the Undo or Redo stack
+     * changes the revisions of the document and its pages, so that undo and
+     * redo can return to the exact earlier revisions. See getRevision().
+     */
+    private static final class RevisionStep {
+
+        final long revisionBefore;
+        long revisionAfter;
+        final HashMap<Integer, Long> pageRevisionsBefore = new HashMap<>();
+        final HashMap<Integer, Long> pageRevisionsAfter = new HashMap<>();
+
+        RevisionStep(long aRevisionBefore) {
+            revisionBefore = aRevisionBefore;
+            revisionAfter = aRevisionBefore;
+        }
+    }
+
+    /**
+     * The current revision of the document. See getRevision().
+     */
+    private long revision;
+
+    /**
+     * The greatest revision assigned so far. New revisions are never reused
+     * even after undo.
+     */
+    private long lastRevision;
+
+    /**
+     * The revision of each page indexed by page index. See getPageRevision().
+     */
+    private final long[] pageRevisions;
+
+    /**
+     * The pages changed by the executing Command but not yet given a new
+     * revision
+     */
+    private final TreeSet<Integer> pendingModifiedPages;
+
+    /**
+     * The revision changes of the Commands executed since the last entry was
+     * pushed onto the Undo stack, e.g. during a transaction, or null
+     */
+    private RevisionStep openRevisionStep;
+
+    /**
+     * The RevisionSteps of the entries on the Undo and Redo stacks from oldest
+     * to most recent. Entries that changed nothing have null steps.
+     */
+    private final ArrayList<RevisionStep> undoRevisionSteps;
+    private final ArrayList<RevisionStep> redoRevisionSteps;
+
+    /**
+     * The file most recently written by saveIfModified() or registered by
+     * documentWasSavedIn() and what is known about its content
+     */
+    private File savedFile;
+    private long savedRevision = -1;
+    private long savedFileLastModified;
+    private long savedFileLength;
 
     /**
      * Constructor: Post condition, none of wrappedDocument, undoStack,
@@ -123,9 +434,570 @@ public abstract class AbstractDocumentCommandWrapper {
      */
     protected AbstractDocumentCommandWrapper(PDDocument aDocument) {
         wrappedDocument = aDocument;
-        undoStack = new Stack<>();
-        redoStack = new Stack<>();
-        selectedAnnotations = new ArrayList<>();
+        undoStack = new CommandHistory(this);
+        redoStack = new CommandHistory(this);
+        selectedAnnotations = new LinkedHashMap<>();
+        transactionStarts = new ArrayList<>();
+        changeListeners = new ArrayList<>();
+        pendingChanges = new ArrayList<>();
+        spatialIndexes = new HashMap<>();
+        annotationRegistry = new AnnotationRegistry(aDocument);
+
+        pageRevisions = new long[(null == aDocument) ? 0 : aDocument.getNumberOfPages()];
+        pendingModifiedPages = new TreeSet<>();
+        undoRevisionSteps = new ArrayList<>();
+        redoRevisionSteps = new ArrayList<>();
+    }
+
+    /**
+     * Registers aListener to be notified whenever the wrapped document changes.
+     *
+     * @param aListener The listener to add
+     */
+    public void addChangeListener(DocumentChangeListener aListener) {
+        assert null != aListener;
+
+        changeListeners.add(aListener);
+    }
+
+    /**
+     * Stops notifying aListener.
+     *
+     * @param aListener The listener to remove
+     */
+    public void removeChangeListener(DocumentChangeListener aListener) {
+        changeListeners.remove(aListener);
+    }
+
+    /**
+     * Notifies every registered DocumentChangeListener of the changes recorded
+     * since the last notification unless a transaction is open or a Command
+     * is executing, in which case the changes keep accumulating.
+     */
+    protected void notifyChangeListeners() {
+        if (!isInTransaction() && 0 == commandExecutionDepth) {
+            List<DocumentChange> changes = Collections.emptyList();
+
+            if (!pendingChanges.isEmpty()) {
+                changes = Collections.unmodifiableList(pendingChanges);
+                pendingChanges = new ArrayList<>();
+                publishAnnotationSnapshot(changes);
+            }
+            for (DocumentChangeListener listener : new ArrayList<>(changeListeners)) {
+                listener.documentDidChange(this, changes);
+            }
+        }
+    }
+
+    /**
+     * Records a change for the next notification of listeners. If the most
+     * recently recorded change has the same kind and page, anId is added to
+     * it instead of recording a new change.
+     *
+     * @param aKind The kind of change
+     * @param pageIndex The index of the changed page or -1
+     * @param anId The annotationRegistry ID of the changed annotation or -1
+     * if there is none.
+     */
+    protected void recordChange(DocumentChange.Kind aKind, int pageIndex, int anId) {
+        DocumentChange change = pendingChanges.isEmpty() ? null : pendingChanges.get(pendingChanges.size() - 1);
+
+        if (null == change || aKind != change.getKind() || pageIndex != change.getPageIndex()) {
+            change = new DocumentChange(aKind, pageIndex);
+            pendingChanges.add(change);
+        }
+        if (0 <= anId) {
+            change.add(anId);
+        }
+
+        if (DocumentChange.Kind.SELECTION_CHANGED != aKind) {
+            if (0 <= pageIndex && pageIndex < pageRevisions.length) {
+                pendingModifiedPages.add(pageIndex);
+            } else {
+                for (int i = 0; i < pageRevisions.length; ++i) {
+                    pendingModifiedPages.add(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Every change to the document's pages gives the document a new revision
+     * number, and gives each changed page the same number as its page
+     * revision. Undo and redo restore the revisions that the document and
+     * its pages had before and after the undone or redone change, so
+     * comparing revisions tells whether the document or a page is in the same
+     * state as when it was saved, rendered, indexed, etc.
+     *
+     * Changes made in an open transaction get revisions too. Rolling back
+     * the outermost transaction restores the revisions from before it
+     * began.
+     *
+     * @return The revision of the document. The revision of a newly loaded
+     * document is 0.
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @return The revision of the document when the page with pageIndex
+     * reached its current state or 0 if it has not changed since the
+     * document was loaded. See getRevision().
+     */
+    public long getPageRevision(int pageIndex) {
+        return pageRevisions[pageIndex];
+    }
+
+    /**
+     * Gives the pages in pendingModifiedPages a new revision and records the
+     * change in aStep.
+     *
+     * @param aStep The step that records the change
+     */
+    private void advanceRevision(RevisionStep aStep) {
+        if (!pendingModifiedPages.isEmpty()) {
+            long newRevision = ++lastRevision;
+
+            for (int pageIndex : pendingModifiedPages) {
+                aStep.pageRevisionsBefore.putIfAbsent(pageIndex, pageRevisions[pageIndex]);
+                aStep.pageRevisionsAfter.put(pageIndex, newRevision);
+                pageRevisions[pageIndex] = newRevision;
+            }
+            pendingModifiedPages.clear();
+            revision = newRevision;
+            aStep.revisionAfter = newRevision;
+        }
+    }
+
+    /**
+     * Gives the pages changed by the Command that just executed a new
+     * revision and records the change in openRevisionStep.
+     */
+    private void advanceOpenRevision() {
+        if (!pendingModifiedPages.isEmpty()) {
+            if (null == openRevisionStep) {
+                openRevisionStep = new RevisionStep(revision);
+            }
+            advanceRevision(openRevisionStep);
+        }
+    }
+
+    /**
+     * Ends openRevisionStep.
+     *
+     * @param isRegistered true if an entry was just pushed onto the Undo
+     * stack for the changes recorded in openRevisionStep
+     */
+    private void closeOpenRevisionStep(boolean isRegistered) {
+        if (isRegistered) {
+            pushRevisionStep(undoRevisionSteps, undoStack, openRevisionStep);
+        }
+        openRevisionStep = null;
+    }
+
+    /**
+     * Adds aStep to someSteps, the steps of aHistory, and discards the oldest
+     * steps if aHistory has discarded the oldest Commands.
+     */
+    private static void pushRevisionStep(ArrayList<RevisionStep> someSteps,
+            CommandHistory aHistory, RevisionStep aStep) {
+        someSteps.add(aStep);
+        if (someSteps.size() > aHistory.size()) {
+            someSteps.subList(0, someSteps.size() - aHistory.size()).clear();
+        }
+    }
+
+    /**
+     *
+     * @return The most recent step removed from someSteps or null if there
+     * is none
+     */
+    private static RevisionStep popRevisionStep(ArrayList<RevisionStep> someSteps) {
+        return someSteps.isEmpty() ? null : someSteps.remove(someSteps.size() - 1);
+    }
+
+    /**
+     * Updates revisions after the reciprocal of the Command that recorded
+     * aStep was executed by undo or redo.
+     *
+     * @param aStep The step of the undone or redone entry or null
+     * @param isUndo true for undo and false for redo
+     * @return The step to push with the reciprocal onto the other stack
+     */
+    private RevisionStep applyRevisionStep(RevisionStep aStep, boolean isUndo) {
+        RevisionStep result;
+
+        if (null != aStep && revision == (isUndo ? aStep.revisionAfter : aStep.revisionBefore)) {
+            Map<Integer, Long> restoredPageRevisions = isUndo
+                    ? aStep.pageRevisionsBefore : aStep.pageRevisionsAfter;
+            for (Map.Entry<Integer, Long> entry : restoredPageRevisions.entrySet()) {
+                pageRevisions[entry.getKey()] = entry.getValue();
+            }
+            revision = isUndo ? aStep.revisionBefore : aStep.revisionAfter;
+            pendingModifiedPages.clear();
+            result = aStep;
+        } else {
+            // The document is not in the state in which aStep was recorded,
+            // e.g. because Commands were executed between undo and redo, so
+            // the result is a new revision.
+            if (null != aStep) {
+                pendingModifiedPages.addAll(aStep.pageRevisionsBefore.keySet());
+            }
+            result = pendingModifiedPages.isEmpty() ? null : new RevisionStep(revision);
+            if (null != result) {
+                advanceRevision(result);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Saves the wrapped document into aFile unless aFile already contains
+     * the current revision because it was written by this method or
+     * registered with documentWasSavedIn() and has not been changed since.
+     *
+     * @param aFile The destination
+     * @return true if aFile was written and false if it was up to date
+     * @throws IOException If aFile can not be written
+     */
+    protected boolean saveIfModified(File aFile) throws IOException {
+        boolean result = false;
+
+        if (!isSavedIn(aFile)) {
+            generateStaleAppearances();
+            wrappedDocument.save(aFile);
+            documentWasSavedIn(aFile);
+            result = true;
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param aFile A file
+     * @return true if aFile is known to contain the current revision
+     */
+    private boolean isSavedIn(File aFile) {
+        File file = aFile.getAbsoluteFile();
+
+        return revision == savedRevision && file.equals(savedFile) && file.isFile()
+                && file.lastModified() == savedFileLastModified && file.length() == savedFileLength;
+    }
+
+    /**
+     * Records that aFile contains the current revision of the wrapped
+     * document, e.g. because the document was just loaded from it.
+     *
+     * @param aFile A file
+     */
+    protected void documentWasSavedIn(File aFile) {
+        savedFile = aFile.getAbsoluteFile();
+        savedRevision = revision;
+        savedFileLastModified = savedFile.lastModified();
+        savedFileLength = savedFile.length();
+    }
+
+    /**
+     *
+     * @return true if the document changed since it was last saved into or
+     * loaded from a file
+     */
+    public boolean isModifiedSinceSave() {
+        return revision != savedRevision;
+    }
+
+    /**
+     * Publishes a new annotation snapshot in which the pages affected by
+     * someChanges are copied from the wrapped document again. Nothing is
+     * published if only the selection changed.
+     *
+     * @param someChanges Changes about to be delivered to listeners
+     */
+    private void publishAnnotationSnapshot(List<DocumentChange> someChanges) {
+        HashMap<Integer, List<AnnotationSnapshot.Entry>> changedPages = new HashMap<>();
+        final AnnotationSnapshot previous = annotationSnapshot;
+
+        if (null == previous) {
+            // Nobody asked for a snapshot yet, so nothing is copied
+            if (someChanges.stream().anyMatch((c) -> DocumentChange.Kind.SELECTION_CHANGED != c.getKind())) {
+                ++unpublishedSnapshotCount;
+            }
+            return;
+        }
+
+        final int pageCount = previous.getPageCount();
+        for (DocumentChange change : someChanges) {
+            int pageIndex = change.getPageIndex();
+
+            if (DocumentChange.Kind.SELECTION_CHANGED == change.getKind()) {
+                continue;
+            }
+            if (0 <= pageIndex && pageIndex < pageCount) {
+                changedPages.computeIfAbsent(pageIndex,
+                        (i) -> snapshotAnnotationsOnPage(i, wrappedDocument.getPage(i)));
+            } else {
+                // The page is unknown, so copy every page
+                for (int i = 0; i < pageCount; ++i) {
+                    changedPages.computeIfAbsent(i,
+                            (j) -> snapshotAnnotationsOnPage(j, wrappedDocument.getPage(j)));
+                }
+            }
+        }
+        if (!changedPages.isEmpty()) {
+            annotationSnapshot = previous.withChangedPages(changedPages);
+        }
+    }
+
+    /**
+     *
+     * @param pageIndex The index of aPage
+     * @param aPage A page of the wrapped document
+     * @return Immutable copies of the annotations on aPage in annotation array
+     * order. The page is not modified even if it has no annotation array.
+     * The annotation dictionaries are read directly rather than through
+     * PDAnnotation objects.
+     */
+    private List<AnnotationSnapshot.Entry> snapshotAnnotationsOnPage(int pageIndex, PDPage aPage) {
+        List<AnnotationSnapshot.Entry> result = new ArrayList<>();
+        COSBase annotationsBase = aPage.getCOSObject().getDictionaryObject(COSName.ANNOTS);
+
+        if (annotationsBase instanceof COSArray) {
+            COSArray pageAnnotations = (COSArray) annotationsBase;
+
+            annotationRegistry.registerPage(pageIndex);
+            for (int i = 0; i < pageAnnotations.size(); ++i) {
+                COSBase candidate = pageAnnotations.getObject(i);
+                if (candidate instanceof COSDictionary) {
+                    COSDictionary dictionary = (COSDictionary) candidate;
+                    PDRectangle rectangle = toRectangle(dictionary.getDictionaryObject(COSName.RECT));
+                    result.add(new AnnotationSnapshot.Entry(annotationRegistry.getId(dictionary),
+                            pageIndex, dictionary.getNameAsString(COSName.SUBTYPE),
+                            dictionary.getString(COSName.NM),
+                            (null == rectangle) ? 0 : rectangle.getLowerLeftX(),
+                            (null == rectangle) ? 0 : rectangle.getLowerLeftY(),
+                            (null == rectangle) ? 0 : rectangle.getWidth(),
+                            (null == rectangle) ? 0 : rectangle.getHeight(),
+                            dictionary.getString(COSName.CONTENTS)));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Assigns annotationRegistry IDs to the annotations of every page in page
+     * and array order. IDs are otherwise assigned in the order in which pages
+     * are first used, so call this right after loading when the same
+     * document must get the same IDs every time it is loaded, e.g. before a
+     * journal of Commands is replayed.
+     */
+    public void registerAllAnnotations() {
+        for (int i = 0; i < getPageCount(); ++i) {
+            annotationRegistry.registerPage(i);
+        }
+    }
+
+    /**
+     *
+     * @param aRectangleBase The /Rect entry of an annotation or null
+     * @return The rectangle described by aRectangleBase or null if it is not
+     * an array of four numbers
+     */
+    private static PDRectangle toRectangle(COSBase aRectangleBase) {
+        PDRectangle result = null;
+
+        if (aRectangleBase instanceof COSArray && 4 == ((COSArray) aRectangleBase).size()) {
+            COSArray array = (COSArray) aRectangleBase;
+            boolean isValid = true;
+            for (int i = 0; isValid && i < 4; ++i) {
+                isValid = array.getObject(i) instanceof COSNumber;
+            }
+            if (isValid) {
+                result = new PDRectangle(array);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * The result describes the annotations as they were when listeners were
+     * last notified, so changes made inside an open transaction are not
+     * visible until it is committed.
+     *
+     * No snapshot is made when the document is loaded. The first call copies
+     * every page, so like other methods it must be made by the thread that
+     * uses the wrapper, and if that happens inside an open transaction the
+     * first snapshot includes the transaction's changes. After that, only the
+     * pages named by each notification are copied again, and any thread may
+     * call this method at any time.
+     *
+     * @return The most recently published immutable snapshot of every
+     * annotation in the wrapped document
+     */
+    public AnnotationSnapshot getAnnotationSnapshot() {
+        AnnotationSnapshot result = annotationSnapshot;
+
+        if (null == result) {
+            List<List<AnnotationSnapshot.Entry>> pageEntries = new ArrayList<>();
+            if (null != wrappedDocument) {
+                for (PDPage page : wrappedDocument.getPages()) {
+                    pageEntries.add(snapshotAnnotationsOnPage(pageEntries.size(), page));
+                }
+            }
+            result = new AnnotationSnapshot(unpublishedSnapshotCount, pageEntries);
+            annotationSnapshot = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Records that the selection changed and notifies listeners unless a
+     * transaction is open or a Command is executing.
+     */
+    private void selectionDidChange() {
+        recordChange(DocumentChange.Kind.SELECTION_CHANGED, -1, -1);
+        notifyChangeListeners();
+    }
+
+    /**
+     * Opens a transaction. Until the matching commit() or rollback(), the
+     * reciprocals of executed Commands are collected instead of being pushed
+     * onto the Undo stack, and change listeners are not notified. The changes
+     * made within the transaction are delivered to listeners in one batch
+     * when the outermost transaction ends. Transactions
+     * may be nested, in which case only the outermost commit() registers
+     * anything.
+     */
+    public void beginTransaction() {
+        beginTransaction(null);
+    }
+
+    /**
+     * Opens a transaction. See beginTransaction().
+     *
+     * @param anUndoName The undo name of the single undo entry produced by the
+     * outermost commit() or null to use the name of the first Command
+     * executed. Ignored for nested transactions.
+     */
+    public void beginTransaction(String anUndoName) {
+        if (!isInTransaction()) {
+            transactionReciprocals = new ArrayList<>();
+            transactionUndoName = anUndoName;
+        }
+        transactionStarts.add(transactionReciprocals.size());
+    }
+
+    /**
+     *
+     * @return true if beginTransaction() has been called more often than
+     * commit() and rollback() combined.
+     */
+    public boolean isInTransaction() {
+        return 0 < transactionStarts.size();
+    }
+
+    /**
+     * Closes the innermost transaction keeping its changes. When the outermost
+     * transaction is committed, the reciprocals of all Commands executed within
+     * it are pushed onto the Undo stack as a single CompositeDocumentCommand
+     * and change listeners are notified once.
+     *
+     * @return true if the outermost transaction was committed and changed the
+     * document, false otherwise.
+     */
+    public boolean commit() {
+        assert isInTransaction();
+
+        boolean result = false;
+
+        if (isInTransaction()) {
+            transactionStarts.remove(transactionStarts.size() - 1);
+
+            if (!isInTransaction()) {
+                List<AbstractDocumentCommand> reciprocals = transactionReciprocals;
+                boolean isRegistered = false;
+                transactionReciprocals = null;
+
+                if (0 < reciprocals.size()) {
+                    String undoName = (null != transactionUndoName)
+                            ? transactionUndoName : reciprocals.get(0).getUndoName();
+                    AbstractDocumentCommand entry;
+
+                    if (1 == reciprocals.size()) {
+                        entry = reciprocals.get(0);
+                    } else {
+                        // Undo must happen in the opposite order of execution
+                        Collections.reverse(reciprocals);
+                        entry = new CompositeDocumentCommand(this, reciprocals);
+                    }
+                    entry.setUndoName(undoName);
+                    if (!isUndoRegistrationInhibited) {
+                        undoStack.push(entry);
+                        isRegistered = true;
+                    }
+                    result = true;
+                }
+                closeOpenRevisionStep(isRegistered);
+                // Changes such as selection changes are delivered even if
+                // no Command was executed
+                notifyChangeListeners();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Closes the innermost transaction discarding its changes. The reciprocals
+     * of the Commands executed within the innermost transaction are executed
+     * in reverse order and nothing is pushed onto the Undo stack.
+     *
+     * @return true if any changes were undone and false otherwise.
+     */
+    public boolean rollback() {
+        assert isInTransaction();
+
+        boolean result = false;
+
+        if (isInTransaction()) {
+            int start = transactionStarts.remove(transactionStarts.size() - 1);
+
+            ++commandExecutionDepth;
+            try {
+                for (int i = transactionReciprocals.size() - 1; i >= start; --i) {
+                    transactionReciprocals.remove(i).execute();
+                    result = true;
+                }
+            } finally {
+                --commandExecutionDepth;
+            }
+            if (!isInTransaction()) {
+                // The document is back in the state it was in before the
+                // transaction began
+                if (null != openRevisionStep) {
+                    for (Map.Entry<Integer, Long> entry : openRevisionStep.pageRevisionsBefore.entrySet()) {
+                        pageRevisions[entry.getKey()] = entry.getValue();
+                    }
+                    revision = openRevisionStep.revisionBefore;
+                }
+                pendingModifiedPages.clear();
+                closeOpenRevisionStep(false);
+                transactionReciprocals = null;
+                notifyChangeListeners();
+            } else {
+                advanceOpenRevision();
+            }
+        }
+
+        return result;
     }
 
     /**
@@ -140,37 +1012,104 @@ public abstract class AbstractDocumentCommandWrapper {
      * Clear selectedAnnotations.
      */
     public void deselectAll() {
-        getSelectedAnnotations().clear();
+        if (!selectedAnnotations.isEmpty()) {
+            selectedAnnotations.clear();
+            selectionDidChange();
+        }
     }
 
     /**
      * This method finds the "last" (upper most) annotation that contains the
      * specified x and y coordinates and adds the annotation to
-     * selectedAnnotations if it is not already in selectedAnnotations. As a
-     * side effect, this method adds unique annotation names to any selected
-     * annotation that does not already have a name. At all times, every
-     * selected annotation must have a name - subclasses may rely on this
-     * property.
+     * selectedAnnotations if it is not already in selectedAnnotations. Every
+     * selected annotation has an ID in annotationRegistry.
      *
      * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
      * @param x An X coordinate in the PDF coordinate system
      * @param y A Y coordinate in the PDF coordinate system
+     * @return true if there is a selectable annotation at {x,y} (whether or
+     * not it was already selected) and false otherwise.
      */
-    public void extendSelectionOnPageAtPoint(int pageIndex, float x, float y) {
+    public boolean extendSelectionOnPageAtPoint(int pageIndex, float x, float y) {
         assert 0 <= pageIndex && pageIndex < getPageCount();
 
         PDAnnotation candidate = getLastAnnotationOnPageAtPoint(pageIndex, x, y);
-        if (null != candidate && !selectedAnnotations.contains(candidate)) {
-            if (null == candidate.getAnnotationName()) {
-                // Other programs neglect to provide a name, so provide one 
-                // to uniquely identify selectde annotations.
-                candidate.setAnnotationName(new UID().toString());
-            }
+        if (null != candidate && !isSelected(candidate)) {
+            addToSelection(candidate, pageIndex);
+            selectionDidChange();
+        }
+
+        return null != candidate;
+    }
 
-            getSelectedAnnotations().add(candidate);
-            //System.out.println("Selected: " + selectedAnnotations.toString());
+    /**
+     * This method adds every annotation that intersects the rectangle with
+     * corners {x0,y0} and {x1,y1} and is neither hidden nor read only to
+     * selectedAnnotations in one operation. The corners may be given in any
+     * order.
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @param x0 An X coordinate in the PDF coordinate system
+     * @param y0 A Y coordinate in the PDF coordinate system
+     * @param x1 An X coordinate in the PDF coordinate system
+     * @param y1 A Y coordinate in the PDF coordinate system
+     * @return The number of annotations added to the selection.
+     */
+    public int extendSelectionOnPageInRectangle(int pageIndex, float x0, float y0, float x1, float y1) {
+        assert 0 <= pageIndex && pageIndex < getPageCount();
 
+        PDRectangle area = new PDRectangle(Math.min(x0, x1), Math.min(y0, y1),
+                Math.abs(x1 - x0), Math.abs(y1 - y0));
+        int result = 0;
+
+        for (PDAnnotation candidate : getAnnotationsOnPageInRectangle(pageIndex, area)) {
+            if (!isSelected(candidate)) {
+                addToSelection(candidate, pageIndex);
+                ++result;
+            }
+        }
+        if (0 < result) {
+            selectionDidChange();
         }
+
+        return result;
+    }
+
+    /**
+     * Adds aCandidate to selectedAnnotations. The annotation is not modified.
+     *
+     * @param aCandidate An annotation that is not already selected
+     * @param pageIndex The index of the page containing aCandidate
+     */
+    private void addToSelection(PDAnnotation aCandidate, int pageIndex) {
+        int id = annotationRegistry.register(aCandidate.getCOSObject(), pageIndex, false);
+        selectedAnnotations.put(id, aCandidate);
+    }
+
+    /**
+     *
+     * @param anAnnotation An annotation
+     * @return true if and only if anAnnotation is selected.
+     */
+    public boolean isSelected(PDAnnotation anAnnotation) {
+        return selectedAnnotations.containsKey(annotationRegistry.getId(anAnnotation));
+    }
+
+    /**
+     *
+     * @return The IDs in annotationRegistry of the selected annotations in the
+     * order they were selected
+     */
+    public List<Integer> getSelectedIds() {
+        return new ArrayList<>(selectedAnnotations.keySet());
+    }
+
+    /**
+     *
+     * @return The registry of stable annotation IDs for the wrapped document
+     */
+    public AnnotationRegistry getAnnotationRegistry() {
+        return annotationRegistry;
     }
 
     /**
@@ -183,7 +1122,7 @@ public abstract class AbstractDocumentCommandWrapper {
     public List<Rectangle> getSelectedAreas() {
         ArrayList<Rectangle> result = new ArrayList<>();
 
-        getSelectedAnnotations().stream().map((a) -> a.getRectangle()).map((aBBox) -> new Rectangle((int) aBBox.getLowerLeftX(),
+        selectedAnnotations.values().stream().map((a) -> a.getRectangle()).map((aBBox) -> new Rectangle((int) aBBox.getLowerLeftX(),
                 (int) aBBox.getLowerLeftY(),
                 (int) aBBox.getWidth(), (int) aBBox.getHeight())).forEach((intBBox) -> {
             result.add(intBBox);
@@ -201,7 +1140,7 @@ public abstract class AbstractDocumentCommandWrapper {
     public List<String> getSelectedContents() {
         ArrayList<String> result = new ArrayList<>();
 
-        getSelectedAnnotations().stream().forEach((a) -> {
+        selectedAnnotations.values().stream().forEach((a) -> {
             result.add(a.getContents());
         });
         return result;
@@ -212,15 +1151,16 @@ public abstract class AbstractDocumentCommandWrapper {
      * @return The number of selected annotations.
      */
     public int getSelectionCount() {
-        return getSelectedAnnotations().size();
+        return selectedAnnotations.size();
     }
 
     /**
      *
-     * @return The collection of selected annotations.
+     * @return A new list of the selected annotations in the order they were
+     * selected. Changing the list does not change the selection.
      */
     protected List<PDAnnotation> getSelectedAnnotations() {
-        return selectedAnnotations;
+        return new ArrayList<>(selectedAnnotations.values());
     }
 
     /**
@@ -256,11 +1196,7 @@ public abstract class AbstractDocumentCommandWrapper {
      * this string may be used as the title of an undo menu item.
      */
     public String getSuggestedUndoTitle() {
-        if (0 < undoStack.size()) {
-            return undoStack.lastElement().getUndoName();
-        }
-
-        return "";
+        return undoStack.peekUndoName();
     }
 
     /**
@@ -269,11 +1205,44 @@ public abstract class AbstractDocumentCommandWrapper {
      * this string may be used as the title of an redo menu item.
      */
     public String getSuggestedRedoTitle() {
-        if (0 < redoStack.size()) {
-            return redoStack.lastElement().getUndoName();
-        }
+        return redoStack.peekUndoName();
+    }
+
+    /**
+     * Set the amount of undo and redo history kept in memory. When either limit
+     * is exceeded, the oldest entries are written to a temporary file and read
+     * back only if the user undoes (or redoes) that far. The defaults are
+     * CommandHistory.DEFAULT_MAX_RESIDENT_COMMANDS and
+     * CommandHistory.DEFAULT_MAX_RESIDENT_BYTES.
+     *
+     * @param maxResidentCommands The maximum number of Commands kept in memory
+     * per stack
+     * @param maxResidentBytes The maximum estimated size in bytes of the
+     * Commands kept in memory per stack
+     */
+    public void setUndoHistoryBudget(int maxResidentCommands, long maxResidentBytes) {
+        undoStack.setBudget(maxResidentCommands, maxResidentBytes);
+        redoStack.setBudget(maxResidentCommands, maxResidentBytes);
+    }
 
-        return "";
+    /**
+     * Closes the wrapped document and discards the undo and redo history
+     * including any temporary files. The wrapper must not be used afterwards.
+     * Long running processes that open many documents should call this
+     * instead of relying on garbage collection.
+     */
+    public void close() {
+        undoStack.clear();
+        redoStack.clear();
+        undoRevisionSteps.clear();
+        redoRevisionSteps.clear();
+        selectedAnnotations.clear();
+        spatialIndexes.clear();
+        try {
+            wrappedDocument.close();
+        } catch (IOException ex) {
+            Logger.getLogger(AbstractDocumentCommandWrapper.class.getName()).log(Level.WARNING, null, ex);
+        }
     }
 
     /**
@@ -287,6 +1256,176 @@ public abstract class AbstractDocumentCommandWrapper {
         nameToFactoryMap.put(aName, command);
     }
 
+    /**
+     *
+     * @return The names of every registered Command factory in alphabetical
+     * order. See registerCommandFactoryWithName().
+     */
+    public static List<String> getCommandNames() {
+        List<String> result = new ArrayList<>(nameToFactoryMap.keySet());
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Call this method to register a restore factory with a String name so
+     * that Commands whose getRestoreName() returns aName can be written to disk
+     * and rebuilt later. See the RestoreCommand interface.
+     *
+     * @param factory A restore factory.
+     * @param aName
+     */
+    protected static void registerRestoreFactoryWithName(RestoreCommand factory, String aName) {
+        nameToRestoreFactoryMap.put(aName, factory);
+    }
+
+    /**
+     * This method estimates the heap retained by aCommand. Annotations that
+     * are still on a page according to annotationRegistry are counted only by
+     * reference because the document retains them anyway.
+     *
+     * @param aCommand The command to measure
+     * @return An estimated size in bytes
+     */
+    long estimateCommandSize(AbstractDocumentCommand aCommand) {
+        long result = 64;
+
+        if (null != aCommand.arguments) {
+            for (String argument : aCommand.arguments) {
+                result += 40 + 2 * argument.length();
+            }
+        }
+        if (null != aCommand.annotations) {
+            for (PDAnnotation annotation : aCommand.annotations) {
+                result += 8;
+                if (0 > annotationRegistry.getPageIndex(annotationRegistry.getId(annotation))) {
+                    result += AnnotationSerializer.estimateSize(wrappedDocument, annotation.getCOSObject());
+                }
+            }
+        }
+        if (null != aCommand.getIndices()) {
+            result += 4 * aCommand.getIndices().length;
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes aCommand to out so that readCommand() can rebuild it.
+     *
+     * @param out The destination
+     * @param aCommand The Command to write
+     * @return false if aCommand does not support being written and true
+     * otherwise.
+     * @throws IOException If out can not be written
+     */
+    boolean writeCommand(DataOutput out, AbstractDocumentCommand aCommand) throws IOException {
+        String restoreName = aCommand.getRestoreName();
+        boolean result = false;
+
+        if (aCommand instanceof CompositeDocumentCommand) {
+            List<AbstractDocumentCommand> children = ((CompositeDocumentCommand) aCommand).commands;
+            AnnotationSerializer.writeString(out, COMPOSITE_RESTORE_NAME);
+            AnnotationSerializer.writeString(out, aCommand.getUndoName());
+            out.writeInt(children.size());
+            result = true;
+            for (int i = 0; result && i < children.size(); ++i) {
+                result = writeCommand(out, children.get(i));
+            }
+        } else if (null != restoreName && nameToRestoreFactoryMap.containsKey(restoreName)) {
+            AnnotationSerializer.writeString(out, restoreName);
+            AnnotationSerializer.writeString(out, aCommand.getUndoName());
+
+            List<String> args = (null == aCommand.arguments) ? new ArrayList<>() : aCommand.arguments;
+            out.writeInt(args.size());
+            for (String argument : args) {
+                AnnotationSerializer.writeString(out, argument);
+            }
+
+            List<PDAnnotation> someAnnotations = (null == aCommand.annotations) ? new ArrayList<>() : aCommand.annotations;
+            out.writeInt(someAnnotations.size());
+            for (PDAnnotation annotation : someAnnotations) {
+                // The ID is used to find the annotation again
+                out.writeInt(annotationRegistry.getId(annotation));
+                AnnotationSerializer.writeObject(wrappedDocument, out, annotation.getCOSObject());
+            }
+
+            int[] indices = aCommand.getIndices();
+            out.writeInt((null == indices) ? -1 : indices.length);
+            if (null != indices) {
+                for (int index : indices) {
+                    out.writeInt(index);
+                }
+            }
+            result = true;
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads a Command written by writeCommand(). Annotations that still exist
+     * are found by their annotationRegistry ID so that the rebuilt Command
+     * operates on the live annotations rather than copies. Otherwise, the copy
+     * takes over the ID.
+     *
+     * @param in The source
+     * @return The rebuilt Command
+     * @throws IOException If in can not be read or is corrupt
+     */
+    AbstractDocumentCommand readCommand(DataInput in) throws IOException {
+        String restoreName = AnnotationSerializer.readString(in);
+        String undoName = AnnotationSerializer.readString(in);
+
+        if (COMPOSITE_RESTORE_NAME.equals(restoreName)) {
+            int count = in.readInt();
+            List<AbstractDocumentCommand> children = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                children.add(readCommand(in));
+            }
+            AbstractDocumentCommand result = new CompositeDocumentCommand(this, children);
+            result.setUndoName(undoName);
+            return result;
+        }
+
+        int argumentCount = in.readInt();
+        ArrayList<String> args = new ArrayList<>(argumentCount);
+        for (int i = 0; i < argumentCount; ++i) {
+            args.add(AnnotationSerializer.readString(in));
+        }
+
+        int annotationCount = in.readInt();
+        List<PDAnnotation> someAnnotations = new ArrayList<>(annotationCount);
+        for (int i = 0; i < annotationCount; ++i) {
+            int id = in.readInt();
+            COSBase copy = AnnotationSerializer.readObject(wrappedDocument, in);
+            PDAnnotation live = annotationRegistry.getAnnotation(id);
+            if (null == live) {
+                live = PDAnnotation.createAnnotation(copy);
+                if (0 <= id && copy instanceof COSDictionary) {
+                    annotationRegistry.rebind(id, (COSDictionary) copy);
+                }
+            }
+            someAnnotations.add(live);
+        }
+
+        int indexCount = in.readInt();
+        int[] indices = (0 > indexCount) ? null : new int[indexCount];
+        for (int i = 0; i < indexCount; ++i) {
+            indices[i] = in.readInt();
+        }
+
+        RestoreCommand factory = nameToRestoreFactoryMap.get(restoreName);
+        if (null == factory) {
+            throw new IOException("No restore factory named <" + restoreName + ">");
+        }
+        AbstractDocumentCommand result = factory.restore(this, someAnnotations, args, indices);
+        result.setUndoName(undoName);
+
+        return result;
+    }
+
+
     /**
      * Call this method to execute the command and if not inhibited, push a
      * reciprocal command onto the Undo stack.
@@ -297,14 +1436,32 @@ public abstract class AbstractDocumentCommandWrapper {
      */
     private boolean executeDocumentCommand(AbstractDocumentCommand command) {
         boolean result = false;
-        AbstractDocumentCommand reciprocal = command.execute();
+        AbstractDocumentCommand reciprocal;
+
+        ++commandExecutionDepth;
+        try {
+            reciprocal = command.execute();
+        } finally {
+            --commandExecutionDepth;
+        }
+        advanceOpenRevision();
+        boolean isRegistered = false;
         if (null != reciprocal) {
             reciprocal.setUndoName(command.getName());
-            if (!isUndoRegistrationInhibited) {
+            if (isInTransaction()) {
+                transactionReciprocals.add(reciprocal);
+            } else if (!isUndoRegistrationInhibited) {
                 undoStack.push(reciprocal);
+                isRegistered = true;
             }
             result = true;
         }
+        if (!isInTransaction()) {
+            closeOpenRevisionStep(isRegistered);
+        }
+        if (null != reciprocal || !pendingChanges.isEmpty()) {
+            notifyChangeListeners();
+        }
 
         return result;
     }
@@ -367,15 +1524,22 @@ public abstract class AbstractDocumentCommandWrapper {
      * otherwise.
      */
     public boolean undo() {
+        assert !isInTransaction();
+
         boolean result = false;
 
-        if (0 < undoStack.size()) {
+        if (0 < undoStack.size() && !isInTransaction()) {
             AbstractDocumentCommand command = undoStack.pop();
-            AbstractDocumentCommand reciprocal = command.execute();
+            RevisionStep step = popRevisionStep(undoRevisionSteps);
+            AbstractDocumentCommand reciprocal = executeReciprocal(command);
             if (null != reciprocal) {
                 reciprocal.setUndoName(command.getUndoName());
                 redoStack.push(reciprocal);
+                pushRevisionStep(redoRevisionSteps, redoStack, applyRevisionStep(step, true));
+                notifyChangeListeners();
                 result = true;
+            } else {
+                applyRevisionStep(null, true);
             }
         }
 
@@ -392,20 +1556,108 @@ public abstract class AbstractDocumentCommandWrapper {
      * otherwise.
      */
     public boolean redo() {
+        assert !isInTransaction();
+
         boolean result = false;
 
-        if (0 < redoStack.size()) {
+        if (0 < redoStack.size() && !isInTransaction()) {
             AbstractDocumentCommand command = redoStack.pop();
-            AbstractDocumentCommand reciprocal = command.execute();
+            RevisionStep step = popRevisionStep(redoRevisionSteps);
+            AbstractDocumentCommand reciprocal = executeReciprocal(command);
             if (null != reciprocal) {
                 reciprocal.setUndoName(command.getUndoName());
                 undoStack.push(reciprocal);
+                pushRevisionStep(undoRevisionSteps, undoStack, applyRevisionStep(step, false));
+                notifyChangeListeners();
                 result = true;
+            } else {
+                applyRevisionStep(null, false);
+            }
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Executes a Command popped from the Undo or Redo stack.
+     *
+     * @param command The Command or null
+     * @return The reciprocal of command or null if command is null or failed
+     */
+    private AbstractDocumentCommand executeReciprocal(AbstractDocumentCommand command) {
+        AbstractDocumentCommand result = null;
+
+        if (null != command) {
+            ++commandExecutionDepth;
+            try {
+                result = command.execute();
+            } finally {
+                --commandExecutionDepth;
             }
         }
 
         return result;
+    }
+
+    /**
+     * This method returns the PDF array that stores the annotations of the page
+     * with pageIndex. Unlike PDPage.getAnnotations(), which builds a new list
+     * of annotation objects on every call, the returned array is the page's
+     * own storage, so Commands can insert or remove individual annotations
+     * without copying the whole list. An empty array is attached to the page
+     * if the page does not have one yet.
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @return The page's annotation array. The result is never null.
+     */
+    protected COSArray getAnnotationArrayOnPage(int pageIndex) {
+        assert 0 <= pageIndex && pageIndex < getPageCount();
+
+        COSDictionary pageDictionary = wrappedDocument.getPage(pageIndex).getCOSObject();
+        COSBase annotationsBase = pageDictionary.getDictionaryObject(COSName.ANNOTS);
+        COSArray result;
+
+        if (annotationsBase instanceof COSArray) {
+            result = (COSArray) annotationsBase;
+        } else {
+            result = new COSArray();
+            pageDictionary.setItem(COSName.ANNOTS, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * This method generates the appearance of every annotation on the page
+     * with pageIndex that was made without one. Call it before the page is
+     * rendered. See AppearanceTemplateCache.markStale().
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @return The number of appearances generated
+     */
+    public int generateStaleAppearancesOnPage(int pageIndex) {
+        assert 0 <= pageIndex && pageIndex < getPageCount();
+
+        return AppearanceTemplateCache.forDocument(wrappedDocument)
+                .generateStaleAppearances(getAnnotationArrayOnPage(pageIndex));
+    }
+
+    /**
+     * This method generates the appearance of every annotation in the
+     * document that was made without one. Call it before the document is
+     * saved.
+     *
+     * @return The number of appearances generated
+     */
+    public int generateStaleAppearances() {
+        int result = 0;
 
+        for (int i = 0; i < getPageCount(); ++i) {
+            result += generateStaleAppearancesOnPage(i);
+        }
+
+        return result;
     }
 
     /**
@@ -422,16 +1674,163 @@ public abstract class AbstractDocumentCommandWrapper {
     protected PDAnnotation getLastAnnotationOnPageAtPoint(int pageIndex, float x, float y) {
         assert 0 <= pageIndex && pageIndex < getPageCount();
 
-        try {
-            PDPage page = wrappedDocument.getPage(pageIndex);
-            List<PDAnnotation> annotations = page.getAnnotations();
+        return getSpatialIndexOnPage(pageIndex).getLastAnnotationAtPoint(x, y);
+    }
 
-            return getLastAnnotationAtPoint(annotations, x, y);
-        } catch (IOException ex) {
-            Logger.getLogger(AbstractDocumentCommandWrapper.class.getName()).log(Level.SEVERE, null, ex);
+    /**
+     * This method finds every annotation on the page with pageIndex that
+     * intersects aRectangle and is neither hidden nor read only.
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @param aRectangle A rectangle in the PDF coordinate system
+     * @return The annotations found ordered from lowest to upper most. The
+     * result is never null.
+     */
+    public List<PDAnnotation> getAnnotationsOnPageInRectangle(int pageIndex, PDRectangle aRectangle) {
+        assert 0 <= pageIndex && pageIndex < getPageCount();
+
+        return getSpatialIndexOnPage(pageIndex).getAnnotationsIntersecting(aRectangle);
+    }
+
+    /**
+     * This method returns the spatial index of the annotations on the page
+     * with pageIndex building it first if there is none. The index is kept
+     * current by the notification methods below, and pageContentDidChange()
+     * discards it, so it is never compared with the page.
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @return The page's spatial index. The result is never null.
+     */
+    protected AnnotationSpatialIndex getSpatialIndexOnPage(int pageIndex) {
+        AnnotationSpatialIndex result = spatialIndexes.get(pageIndex);
+
+        if (null == result) {
+            result = new AnnotationSpatialIndex(getAnnotationArrayOnPage(pageIndex));
+            spatialIndexes.put(pageIndex, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Commands call this method after inserting annotations into the
+     * annotation array of the page with pageIndex.
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @param arrayIndices The indices of the inserted annotations in the
+     * page's annotation array in ascending order
+     * @param someAnnotations The inserted annotations in the same order
+     */
+    protected void annotationsWereInsertedOnPage(int pageIndex, int[] arrayIndices, List<PDAnnotation> someAnnotations) {
+        // New annotations get their ID (and a name if they have none) here
+        someAnnotations.stream().forEach((a) -> {
+            int id = annotationRegistry.register(a.getCOSObject(), pageIndex, true);
+            recordChange(DocumentChange.Kind.ANNOTATIONS_ADDED, pageIndex, id);
+        });
+
+        AnnotationSpatialIndex index = spatialIndexes.get(pageIndex);
+
+        if (null != index) {
+            index.insertAll(arrayIndices, someAnnotations);
+        }
+    }
+
+    /**
+     * Commands call this method after removing anAnnotation from the
+     * annotation array of the page with pageIndex.
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @param anAnnotation The removed annotation
+     */
+    protected void annotationWasRemovedOnPage(int pageIndex, PDAnnotation anAnnotation) {
+        // Registered first so that undo restores it with the same ID
+        int id = annotationRegistry.register(anAnnotation.getCOSObject(), pageIndex, false);
+        annotationRegistry.wasRemoved(id);
+        recordChange(DocumentChange.Kind.ANNOTATIONS_REMOVED, pageIndex, id);
+
+        AnnotationSpatialIndex index = spatialIndexes.get(pageIndex);
+
+        if (null != index) {
+            index.remove(anAnnotation.getCOSObject());
+        }
+    }
+
+    /**
+     * Commands call this method after changing the bounding box of
+     * anAnnotation on the page with pageIndex.
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @param anAnnotation The moved annotation
+     */
+    protected void annotationWasMovedOnPage(int pageIndex, PDAnnotation anAnnotation) {
+        recordChange(DocumentChange.Kind.ANNOTATIONS_MOVED, pageIndex,
+                annotationRegistry.register(anAnnotation.getCOSObject(), pageIndex, false));
+
+        AnnotationSpatialIndex index = spatialIndexes.get(pageIndex);
+
+        if (null != index) {
+            index.update(anAnnotation.getCOSObject());
+        }
+    }
+
+    /**
+     * Commands call this method after changing the contents or appearance of
+     * anAnnotation. The page is the one recorded for anAnnotation in
+     * annotationRegistry. If anAnnotation is not registered yet, its page is
+     * found and it is registered. Nothing is recorded for an annotation that
+     * is not on any page, so such an edit never marks every page as changed.
+     *
+     * @param anAnnotation The edited annotation
+     */
+    protected void annotationWasEdited(PDAnnotation anAnnotation) {
+        int id = annotationRegistry.getId(anAnnotation);
+        int pageIndex = annotationRegistry.getPageIndex(id);
+
+        if (0 > pageIndex) {
+            pageIndex = findPageIndexOf(anAnnotation.getCOSObject());
+            if (0 <= pageIndex) {
+                id = annotationRegistry.register(anAnnotation.getCOSObject(), pageIndex, false);
+            }
+        }
+        if (0 <= pageIndex) {
+            recordChange(DocumentChange.Kind.ANNOTATIONS_EDITED, pageIndex, id);
+        }
+    }
+
+    /**
+     *
+     * @param aDictionary An annotation dictionary
+     * @return The index of the first page whose annotation array contains
+     * aDictionary or -1 if there is none. No page is modified.
+     */
+    private int findPageIndexOf(COSDictionary aDictionary) {
+        for (int i = 0; i < getPageCount(); ++i) {
+            COSBase annotationsBase = wrappedDocument.getPage(i).getCOSObject().getDictionaryObject(COSName.ANNOTS);
+            if (annotationsBase instanceof COSArray) {
+                COSArray pageAnnotations = (COSArray) annotationsBase;
+                for (int j = 0; j < pageAnnotations.size(); ++j) {
+                    if (pageAnnotations.getObject(j) == aDictionary) {
+                        return i;
+                    }
+                }
+            }
         }
 
-        return null;
+        return -1;
+    }
+
+    /**
+     * Call this method after changing the page with pageIndex in a way that is
+     * not described by the other notification methods, e.g. replacing its
+     * annotation array. Only Commands may call it: it records a change, so
+     * calling it from a query would give the page a new revision and force a
+     * full refresh although nothing changed.
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     */
+    protected void pageContentDidChange(int pageIndex) {
+        spatialIndexes.remove(pageIndex);
+        recordChange(DocumentChange.Kind.PAGE_CONTENT_CHANGED, pageIndex, -1);
     }
 
     /**
@@ -584,6 +1983,27 @@ public abstract class AbstractDocumentCommandWrapper {
             return undoName;
         }
 
+        /**
+         * Override this method to allow CommandHistory to move the Command
+         * out of memory. A restore factory must be registered with the
+         * returned name via registerRestoreFactoryWithName().
+         *
+         * @return The name of the restore factory that rebuilds this Command
+         * or null if the Command can not be written to disk.
+         */
+        public String getRestoreName() {
+            return null;
+        }
+
+        /**
+         *
+         * @return The indices (if any) that must be stored along with the
+         * annotations and arguments to rebuild this Command.
+         */
+        public int[] getIndices() {
+            return null;
+        }
+
         /**
          *
          * @return If execute() succeeds, a Command that is the reciprocal of
@@ -642,6 +2062,77 @@ public abstract class AbstractDocumentCommandWrapper {
         }
     }
 
+    /**
+     * A Command that executes a list of Commands in order. Transactions
+     * register instances of this class as a single undo entry. See commit().
+     */
+    public class CompositeDocumentCommand extends AbstractDocumentCommand {
+
+        /**
+         * The Commands to execute in order.
+         */
+        protected final List<AbstractDocumentCommand> commands;
+
+        /**
+         * Constructor: Initialize with the specified owner and Commands.
+         *
+         * @param anOwner The AbstractDocumentCommandWrapper that has the
+         * wrappedDocument that the Command will operate upon
+         * @param someCommands The Commands to execute in order
+         */
+        public CompositeDocumentCommand(AbstractDocumentCommandWrapper anOwner, List<AbstractDocumentCommand> someCommands) {
+            super(anOwner, new ArrayList<String>());
+            commands = someCommands;
+
+            assert null != commands;
+        }
+
+        /**
+         *
+         * @return If execute() succeeds, a Command that is the reciprocal of
+         * the receiver is returned. Otherwise, null is returned.
+         */
+        @Override
+        public AbstractDocumentCommand execute() {
+            List<AbstractDocumentCommand> reciprocals = new ArrayList<>(commands.size());
+
+            for (AbstractDocumentCommand command : commands) {
+                AbstractDocumentCommand reciprocal = command.execute();
+                if (null != reciprocal) {
+                    reciprocal.setUndoName(command.getUndoName());
+                    reciprocals.add(reciprocal);
+                }
+            }
+            Collections.reverse(reciprocals);
+
+            return (0 < reciprocals.size()) ? new CompositeDocumentCommand(owner, reciprocals) : null;
+        }
+
+        /**
+         *
+         * @return The name of the command as it will appear in a user interface
+         * for undo and redo operations e.g. "Undo Delete Annotation" where the
+         * string after "Undo " is returned from getName().
+         */
+        @Override
+        public String getName() {
+            return getUndoName();
+        }
+
+        @Override
+        public String getRestoreName() {
+            String result = COMPOSITE_RESTORE_NAME;
+
+            for (int i = 0; null != result && i < commands.size(); ++i) {
+                if (null == commands.get(i).getRestoreName()) {
+                    result = null;
+                }
+            }
+
+            return result;
+        }
+    }
+
     /**
      * A Command that calls its owner's redo() method when executed.
      */
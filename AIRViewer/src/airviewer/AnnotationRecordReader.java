@@ -0,0 +1,344 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * This class reads annotation records for import from CSV or JSON text one
+ * record at a time, so files of any size can be imported without holding
+ * their text in memory. Each record is passed to a Consumer as a map from
+ * field name to value. The fields used by ImportAnnotationsDocumentCommand
+ * are FIELDS.
+ *
+ * CSV input may start with a header line naming the columns. Otherwise the
+ * columns are FIELDS in order. Fields may be quoted with " and quotes inside
+ * quoted fields are doubled, as described in RFC 4180. Empty lines are
+ * skipped.
+ *
+ * JSON input is either an array of objects or a sequence of objects, e.g.
+ * one per line. Object values must be strings, numbers, booleans, or null.
+ * Nested objects and arrays are not supported.
+ */
+public class AnnotationRecordReader {
+
+    /**
+     * The supported input formats
+     */
+    public enum Format {
+        CSV, JSON
+    }
+
+    /**
+     * The names of the fields of an annotation record in default CSV column
+     * order
+     */
+    public static final List<String> FIELDS = Arrays.asList(
+            "type", "page", "x", "y", "width", "height", "contents");
+
+    private static final int END = -1;
+
+    private final Reader in;
+
+    /**
+     * The last character read by peek() but not yet consumed or -2 if none
+     */
+    private int pending = -2;
+
+    /**
+     * The number of the line being read for error messages
+     */
+    private int lineNumber = 1;
+
+    private AnnotationRecordReader(Reader aReader) {
+        in = aReader;
+    }
+
+    /**
+     *
+     * @param aFileName A file name
+     * @return The format implied by the extension of aFileName. Files ending
+     * in .json or .jsonl are JSON. Everything else is CSV.
+     */
+    public static Format formatForFileName(String aFileName) {
+        String lowerCaseName = aFileName.toLowerCase();
+        return (lowerCaseName.endsWith(".json") || lowerCaseName.endsWith(".jsonl"))
+                ? Format.JSON : Format.CSV;
+    }
+
+    /**
+     * Reads every record from aReader and passes each one to aConsumer in
+     * input order.
+     *
+     * @param aReader The source. It should be buffered.
+     * @param aFormat The format of the source
+     * @param aConsumer Receives each record
+     * @return The number of records read
+     * @throws IOException If aReader can not be read or its content is not
+     * valid aFormat
+     */
+    public static int read(Reader aReader, Format aFormat, Consumer<Map<String, String>> aConsumer) throws IOException {
+        AnnotationRecordReader reader = new AnnotationRecordReader(aReader);
+        return (Format.JSON == aFormat) ? reader.readJson(aConsumer) : reader.readCsv(aConsumer);
+    }
+
+    private int peek() throws IOException {
+        if (-2 == pending) {
+            pending = in.read();
+        }
+        return pending;
+    }
+
+    private int next() throws IOException {
+        int result = peek();
+        pending = -2;
+        if ('\n' == result) {
+            ++lineNumber;
+        }
+        return result;
+    }
+
+    private IOException syntaxError(String aMessage) {
+        return new IOException(aMessage + " at line " + lineNumber);
+    }
+
+    private int readCsv(Consumer<Map<String, String>> aConsumer) throws IOException {
+        int result = 0;
+        List<String> columns = null;
+        List<String> values;
+
+        while (null != (values = readCsvLine())) {
+            if (1 == values.size() && values.get(0).isEmpty()) {
+                continue;
+            }
+            if (null == columns) {
+                if (FIELDS.get(0).equalsIgnoreCase(values.get(0).trim())) {
+                    columns = new ArrayList<>(values.size());
+                    for (String value : values) {
+                        columns.add(value.trim().toLowerCase());
+                    }
+                    continue;
+                }
+                columns = FIELDS;
+            }
+
+            Map<String, String> record = new HashMap<>();
+            for (int i = 0; i < values.size() && i < columns.size(); ++i) {
+                record.put(columns.get(i), values.get(i));
+            }
+            aConsumer.accept(record);
+            ++result;
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @return The fields of the next CSV line or null at the end of input
+     */
+    private List<String> readCsvLine() throws IOException {
+        if (END == peek()) {
+            return null;
+        }
+
+        List<String> result = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean isQuoted = false;
+        int c;
+
+        while (END != (c = next())) {
+            if (isQuoted) {
+                if ('"' == c) {
+                    if ('"' == peek()) {
+                        field.append((char) next());
+                    } else {
+                        isQuoted = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if ('"' == c) {
+                isQuoted = true;
+            } else if (',' == c) {
+                result.add(field.toString());
+                field.setLength(0);
+            } else if ('\n' == c) {
+                break;
+            } else if ('\r' != c) {
+                field.append((char) c);
+            }
+        }
+        if (isQuoted) {
+            throw syntaxError("Unterminated quoted field");
+        }
+        result.add(field.toString());
+
+        return result;
+    }
+
+    private int readJson(Consumer<Map<String, String>> aConsumer) throws IOException {
+        int result = 0;
+        boolean isInArray = false;
+        int c;
+
+        while (END != (c = skipWhitespace())) {
+            if ('[' == c && !isInArray && 0 == result) {
+                next();
+                isInArray = true;
+            } else if (',' == c) {
+                next();
+            } else if (']' == c && isInArray) {
+                next();
+                isInArray = false;
+            } else if ('{' == c) {
+                aConsumer.accept(readJsonObject());
+                ++result;
+            } else {
+                throw syntaxError("Unexpected character '" + (char) c + "'");
+            }
+        }
+        if (isInArray) {
+            throw syntaxError("Unterminated array");
+        }
+
+        return result;
+    }
+
+    private int skipWhitespace() throws IOException {
+        while (Character.isWhitespace(peek())) {
+            next();
+        }
+        return peek();
+    }
+
+    private Map<String, String> readJsonObject() throws IOException {
+        Map<String, String> result = new HashMap<>();
+
+        next(); // '{'
+        if ('}' == skipWhitespace()) {
+            next();
+            return result;
+        }
+
+        while (true) {
+            if ('"' != skipWhitespace()) {
+                throw syntaxError("Expected a string");
+            }
+            String key = readJsonString();
+            if (':' != skipWhitespace()) {
+                throw syntaxError("Expected ':'");
+            }
+            next();
+            result.put(key.toLowerCase(), readJsonValue());
+
+            int c = skipWhitespace();
+            next();
+            if ('}' == c) {
+                break;
+            } else if (',' != c) {
+                throw syntaxError("Expected ',' or '}'");
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @return The text of a string, number, or boolean value or null
+     */
+    private String readJsonValue() throws IOException {
+        int c = skipWhitespace();
+
+        if ('"' == c) {
+            return readJsonString();
+        }
+        if ('{' == c || '[' == c) {
+            throw syntaxError("Nested values are not supported");
+        }
+
+        StringBuilder literal = new StringBuilder();
+        while (END != (c = peek()) && ',' != c && '}' != c && !Character.isWhitespace(c)) {
+            literal.append((char) next());
+        }
+        String result = literal.toString();
+        if (result.isEmpty()) {
+            throw syntaxError("Expected a value");
+        }
+
+        return "null".equals(result) ? null : result;
+    }
+
+    private String readJsonString() throws IOException {
+        StringBuilder result = new StringBuilder();
+        int c;
+
+        next(); // '"'
+        while ('"' != (c = next())) {
+            if (END == c) {
+                throw syntaxError("Unterminated string");
+            } else if ('\\' == c) {
+                c = next();
+                switch (c) {
+                    case 'b':
+                        result.append('\b');
+                        break;
+                    case 'f':
+                        result.append('\f');
+                        break;
+                    case 'n':
+                        result.append('\n');
+                        break;
+                    case 'r':
+                        result.append('\r');
+                        break;
+                    case 't':
+                        result.append('\t');
+                        break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < hex.length; ++i) {
+                            hex[i] = (char) next();
+                        }
+                        try {
+                            result.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException ex) {
+                            throw syntaxError("Invalid escape sequence");
+                        }
+                        break;
+                    case END:
+                        throw syntaxError("Unterminated string");
+                    default:
+                        result.append((char) c);
+                        break;
+                }
+            } else {
+                result.append((char) c);
+            }
+        }
+
+        return result.toString();
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+
+/**
+ * Instances of this class give every annotation in one document a compact
+ * integer ID that stays the same for as long as the document is open, even
+ * while the annotation is deleted and later restored by undo. IDs are
+ * assigned once and lazily: to the existing annotations of a page in array
+ * order the first time registerPage() is called for it, to single existing
+ * annotations when a Command first touches them, and to new annotations when
+ * they are first inserted into a page. Loading a document therefore does not
+ * visit any annotation.
+ *
+ * The owner keeps the page index of each record current by calling
+ * register() from its insert and move paths and wasRemoved() from its delete
+ * path.
+ *
+ * Looking up the annotation or page index for an ID and the ID for an
+ * annotation both take constant time. Unlike annotation names (the PDF /NM
+ * entry), IDs are not stored in the document, so assigning them does not
+ * modify any annotation.
+ *
+ * The registry refers to annotations weakly. An annotation that has been
+ * deleted and is no longer referenced by anything else (e.g. because the
+ * Command that could restore it was moved out of memory by CommandHistory)
+ * may be collected. rebind() associates the ID with a restored copy.
+ */
+public class AnnotationRegistry {
+
+    /**
+     * Instances of this class store what the registry knows about one ID.
+     */
+    private static class Record {
+
+        WeakReference<COSDictionary> dictionary;
+
+        /**
+         * The index of the page containing the annotation or -1 if it has
+         * been removed from its page
+         */
+        int pageIndex;
+
+        Record(COSDictionary aDictionary, int aPageIndex) {
+            dictionary = new WeakReference<>(aDictionary);
+            pageIndex = aPageIndex;
+        }
+    }
+
+    /**
+     * The prefix of annotation names generated by nextUnusedName().
+     */
+    private static final String NAME_PREFIX = "AIR";
+
+    /**
+     * Records indexed by ID.
+     */
+    private final ArrayList<Record> records;
+
+    /**
+     * IDs keyed by annotation dictionary. COSDictionary does not override
+     * equals() or hashCode(), so this map compares keys by identity.
+     */
+    private final WeakHashMap<COSDictionary, Integer> idsByDictionary;
+
+    /**
+     * Every annotation name that is known to be in use in the document. It is
+     * filled in by collectUsedNames() before the first name is generated.
+     */
+    private final HashSet<String> usedNames;
+
+    private boolean areUsedNamesCollected;
+
+    private long nameCounter;
+
+    /**
+     * The document whose annotations are registered or null
+     */
+    private final PDDocument document;
+
+    /**
+     * The indices of the pages passed to registerPage()
+     */
+    private final BitSet registeredPages;
+
+    /**
+     * Constructor: No annotation is registered until it or its page is
+     * first used.
+     *
+     * @param aDocument The document whose annotations are registered
+     */
+    public AnnotationRegistry(PDDocument aDocument) {
+        records = new ArrayList<>();
+        idsByDictionary = new WeakHashMap<>();
+        usedNames = new HashSet<>();
+        document = aDocument;
+        registeredPages = new BitSet();
+    }
+
+    /**
+     * Assigns IDs to the annotations on the page with aPageIndex in array
+     * order unless this was done before. Call it before looking up the IDs
+     * of annotations that have not been touched by a Command.
+     *
+     * @param aPageIndex The index of a page of the document
+     */
+    public void registerPage(int aPageIndex) {
+        if (null != document && !registeredPages.get(aPageIndex)) {
+            registeredPages.set(aPageIndex);
+            COSArray pageAnnotations = getAnnotationArray(document.getPage(aPageIndex));
+            if (null != pageAnnotations) {
+                for (int i = 0; i < pageAnnotations.size(); ++i) {
+                    COSBase candidate = pageAnnotations.getObject(i);
+                    if (candidate instanceof COSDictionary
+                            && !idsByDictionary.containsKey(candidate)) {
+                        register((COSDictionary) candidate, aPageIndex, false);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the annotation with anId was removed from its page. The ID
+     * is kept so that undo can restore the annotation with the same ID.
+     *
+     * @param anId An ID returned by register() or -1
+     */
+    public void wasRemoved(int anId) {
+        if (0 <= anId && anId < records.size()) {
+            records.get(anId).pageIndex = -1;
+        }
+    }
+
+    /**
+     * Assigns an ID to aDictionary unless it already has one. In either case,
+     * the page index recorded for the ID becomes aPageIndex.
+     *
+     * @param aDictionary An annotation dictionary
+     * @param aPageIndex The index of the page containing the annotation
+     * @param shouldName If true and aDictionary is newly registered without a
+     * name, a short name that is unique within the document is given to it.
+     * @return The ID of aDictionary
+     */
+    public int register(COSDictionary aDictionary, int aPageIndex, boolean shouldName) {
+        assert null != aDictionary;
+
+        Integer existingId = idsByDictionary.get(aDictionary);
+        int result;
+
+        if (null != existingId) {
+            result = existingId;
+            records.get(result).pageIndex = aPageIndex;
+        } else {
+            result = records.size();
+            records.add(new Record(aDictionary, aPageIndex));
+            idsByDictionary.put(aDictionary, result);
+
+            String name = aDictionary.getString(COSName.NM);
+            if (null != name) {
+                usedNames.add(name);
+            } else if (shouldName) {
+                aDictionary.setString(COSName.NM, nextUnusedName());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Associates anId with aDictionary, which is usually a copy of the
+     * annotation that previously had anId.
+     *
+     * @param anId An ID returned by register()
+     * @param aDictionary The annotation dictionary to associate with anId
+     */
+    public void rebind(int anId, COSDictionary aDictionary) {
+        assert 0 <= anId && anId < records.size();
+
+        Record existingRecord = records.get(anId);
+        COSDictionary oldDictionary = existingRecord.dictionary.get();
+        if (null != oldDictionary) {
+            idsByDictionary.remove(oldDictionary);
+        }
+        existingRecord.dictionary = new WeakReference<>(aDictionary);
+        idsByDictionary.put(aDictionary, anId);
+    }
+
+    /**
+     *
+     * @param anAnnotation An annotation
+     * @return The ID of anAnnotation or -1 if it is not registered.
+     */
+    public int getId(PDAnnotation anAnnotation) {
+        return getId(anAnnotation.getCOSObject());
+    }
+
+    /**
+     *
+     * @param aDictionary An annotation dictionary
+     * @return The ID of aDictionary or -1 if it is not registered.
+     */
+    public int getId(COSDictionary aDictionary) {
+        Integer result = idsByDictionary.get(aDictionary);
+        return (null == result) ? -1 : result;
+    }
+
+    /**
+     *
+     * @param anId An ID
+     * @return The annotation dictionary with anId or null if there is none or
+     * it has been collected.
+     */
+    public COSDictionary getDictionary(int anId) {
+        COSDictionary result = null;
+
+        if (0 <= anId && anId < records.size()) {
+            result = records.get(anId).dictionary.get();
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param anId An ID
+     * @return A PDAnnotation for the annotation with anId or null if there is
+     * none.
+     */
+    public PDAnnotation getAnnotation(int anId) {
+        PDAnnotation result = null;
+        COSDictionary dictionary = getDictionary(anId);
+
+        if (null != dictionary) {
+            try {
+                result = PDAnnotation.createAnnotation(dictionary);
+            } catch (IOException ex) {
+                Logger.getLogger(AnnotationRegistry.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param anId An ID
+     * @return The index of the page that contains the annotation with anId or
+     * -1 if anId is not valid or the annotation was removed from its page.
+     */
+    public int getPageIndex(int anId) {
+        return (0 <= anId && anId < records.size()) ? records.get(anId).pageIndex : -1;
+    }
+
+    /**
+     *
+     * @return The number of IDs assigned so far
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     *
+     * @return A short annotation name that is not used by any annotation known
+     * to the receiver
+     */
+    private String nextUnusedName() {
+        String result;
+
+        collectUsedNames();
+        do {
+            result = NAME_PREFIX + Long.toString(nameCounter++, Character.MAX_RADIX);
+        } while (usedNames.contains(result));
+        usedNames.add(result);
+
+        return result;
+    }
+
+    /**
+     * Adds the names of all annotations in the document to usedNames the
+     * first time it is called. Only the /NM entries are read, so this is
+     * much cheaper than registering every annotation.
+     */
+    private void collectUsedNames() {
+        if (!areUsedNamesCollected) {
+            areUsedNamesCollected = true;
+            if (null != document) {
+                for (PDPage page : document.getPages()) {
+                    COSArray pageAnnotations = getAnnotationArray(page);
+                    if (null != pageAnnotations) {
+                        for (int i = 0; i < pageAnnotations.size(); ++i) {
+                            COSBase candidate = pageAnnotations.getObject(i);
+                            if (candidate instanceof COSDictionary) {
+                                String name = ((COSDictionary) candidate).getString(COSName.NM);
+                                if (null != name) {
+                                    usedNames.add(name);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @param aPage A page
+     * @return The annotation array of aPage or null if it has none. The page
+     * is not modified.
+     */
+    private static COSArray getAnnotationArray(PDPage aPage) {
+        COSBase annotationsBase = aPage.getCOSObject().getDictionaryObject(COSName.ANNOTS);
+        return (annotationsBase instanceof COSArray) ? (COSArray) annotationsBase : null;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * This is a helper class that writes the PDF objects that make up an
+ * annotation into a compact binary form and reads them back. It is used to
+ * move old undo history out of memory.
+ *
+ * Only the objects owned by the annotation are written in full. Indirect
+ * objects that already live in the document (for example appearance streams
+ * loaded from the file or the page an annotation points to) are written as
+ * references and resolved against the same document when read back, so an
+ * annotation never drags the rest of the document along with it. Appearance
+ * templates shared through AppearanceTemplateCache are written as their
+ * template key, and reading them back reuses the document's template or
+ * makes it again.
+ */
+public class AnnotationSerializer {
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_BOOLEAN = 1;
+    private static final int TAG_INTEGER = 2;
+    private static final int TAG_FLOAT = 3;
+    private static final int TAG_NAME = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_ARRAY = 6;
+    private static final int TAG_DICTIONARY = 7;
+    private static final int TAG_STREAM = 8;
+    private static final int TAG_REFERENCE = 9;
+    private static final int TAG_PAGE = 10;
+    private static final int TAG_BACK_REFERENCE = 11;
+    private static final int TAG_TEMPLATE = 12;
+
+    /**
+     * Writes anObject and everything it directly owns into out.
+     *
+     * @param document The document that anObject belongs to
+     * @param out The destination
+     * @param anObject The object to write. May be null.
+     * @throws IOException If out can not be written
+     */
+    public static void writeObject(PDDocument document, DataOutput out, COSBase anObject) throws IOException {
+        assert null != document && null != out;
+
+        new Writer(document, out).write(anObject);
+    }
+
+    /**
+     * Reads an object previously written by writeObject().
+     *
+     * @param document The document that the object belonged to when written
+     * @param in The source
+     * @return The object read. The result may be null.
+     * @throws IOException If in can not be read or is corrupt
+     */
+    public static COSBase readObject(PDDocument document, DataInput in) throws IOException {
+        assert null != document && null != in;
+
+        return new Reader(document, in).read();
+    }
+
+    /**
+     * This method returns a rough estimate of the heap used by anObject and
+     * the objects it directly owns. Indirect objects stored in the document
+     * are not counted because they stay in memory regardless of anObject.
+     * Appearance templates are shared by every annotation that looks the
+     * same and are retained by the document's AppearanceTemplateCache, so
+     * only their key is counted.
+     *
+     * @param document The document that anObject belongs to
+     * @param anObject The object to measure. May be null.
+     * @return An estimated size in bytes
+     */
+    public static long estimateSize(PDDocument document, COSBase anObject) {
+        assert null != document;
+
+        return estimateSize(AppearanceTemplateCache.forDocument(document), anObject, new IdentityHashMap<>());
+    }
+
+    /**
+     * Writes aString as an int length followed by UTF-8 bytes. Unlike
+     * DataOutput.writeUTF() there is no 64K limit.
+     *
+     * @param out The destination
+     * @param aString The string to write. May be null.
+     * @throws IOException If out can not be written
+     */
+    public static void writeString(DataOutput out, String aString) throws IOException {
+        if (null == aString) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = aString.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a string written by writeString().
+     *
+     * @param in The source
+     * @return The string read. The result may be null.
+     * @throws IOException If in can not be read or is corrupt
+     */
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        String result = null;
+
+        if (0 <= length) {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            result = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return result;
+    }
+
+    private static long estimateSize(AppearanceTemplateCache templates, COSBase anObject, Map<COSBase, Boolean> visited) {
+        long result = 16;
+        AppearanceTemplateCache.Key templateKey = (anObject instanceof COSStream)
+                ? templates.getKey((COSStream) anObject) : null;
+
+        if (null != templateKey) {
+            result += 16 + templateKey.contents.length() * 2;
+        } else if (anObject instanceof COSObject) {
+            COSObject reference = (COSObject) anObject;
+            if (0 >= reference.getObjectNumber()) {
+                result += estimateSize(templates, reference.getObject(), visited);
+            }
+        } else if (anObject instanceof COSName) {
+            result += ((COSName) anObject).getName().length() * 2;
+        } else if (anObject instanceof COSString) {
+            result += ((COSString) anObject).getBytes().length;
+        } else if ((anObject instanceof COSArray || anObject instanceof COSDictionary)
+                && null == visited.put(anObject, Boolean.TRUE)) {
+            if (anObject instanceof COSArray) {
+                for (COSBase item : (COSArray) anObject) {
+                    result += 8 + estimateSize(templates, item, visited);
+                }
+            } else if (!COSName.PAGE.equals(((COSDictionary) anObject).getDictionaryObject(COSName.TYPE))) {
+                for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) anObject).entrySet()) {
+                    result += 32 + estimateSize(templates, entry.getValue(), visited);
+                }
+                if (anObject instanceof COSStream) {
+                    result += Math.max(0, ((COSStream) anObject).getLength());
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Instances of this class write one object graph. Containers are numbered
+     * in the order written so that shared or cyclic containers are written
+     * once and referred to by number afterwards.
+     */
+    private static class Writer {
+
+        private final PDDocument document;
+        private final AppearanceTemplateCache templates;
+        private final DataOutput out;
+        private final Map<COSBase, Integer> visited = new IdentityHashMap<>();
+
+        Writer(PDDocument aDocument, DataOutput anOut) {
+            document = aDocument;
+            templates = AppearanceTemplateCache.forDocument(aDocument);
+            out = anOut;
+        }
+
+        void write(COSBase anObject) throws IOException {
+            AppearanceTemplateCache.Key templateKey = (anObject instanceof COSStream)
+                    ? templates.getKey((COSStream) anObject) : null;
+
+            if (null != templateKey) {
+                // Shared, so never copied. See AppearanceTemplateCache.
+                out.writeByte(TAG_TEMPLATE);
+                writeString(out, templateKey.style.name());
+                out.writeFloat(templateKey.width);
+                out.writeFloat(templateKey.height);
+                writeString(out, templateKey.contents);
+            } else if (null == anObject || anObject instanceof COSNull) {
+                out.writeByte(TAG_NULL);
+            } else if (anObject instanceof COSObject) {
+                COSObject reference = (COSObject) anObject;
+                if (0 < reference.getObjectNumber()) {
+                    out.writeByte(TAG_REFERENCE);
+                    out.writeLong(reference.getObjectNumber());
+                    out.writeInt(reference.getGenerationNumber());
+                } else {
+                    write(reference.getObject());
+                }
+            } else if (anObject instanceof COSBoolean) {
+                out.writeByte(TAG_BOOLEAN);
+                out.writeBoolean(((COSBoolean) anObject).getValue());
+            } else if (anObject instanceof COSInteger) {
+                out.writeByte(TAG_INTEGER);
+                out.writeLong(((COSInteger) anObject).longValue());
+            } else if (anObject instanceof COSFloat) {
+                out.writeByte(TAG_FLOAT);
+                out.writeFloat(((COSFloat) anObject).floatValue());
+            } else if (anObject instanceof COSName) {
+                out.writeByte(TAG_NAME);
+                writeString(out, ((COSName) anObject).getName());
+            } else if (anObject instanceof COSString) {
+                byte[] bytes = ((COSString) anObject).getBytes();
+                out.writeByte(TAG_STRING);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else if (visited.containsKey(anObject)) {
+                out.writeByte(TAG_BACK_REFERENCE);
+                out.writeInt(visited.get(anObject));
+            } else if (anObject instanceof COSArray) {
+                COSArray array = (COSArray) anObject;
+                visited.put(anObject, visited.size());
+                out.writeByte(TAG_ARRAY);
+                out.writeInt(array.size());
+                for (int i = 0; i < array.size(); ++i) {
+                    write(array.get(i));
+                }
+            } else if (anObject instanceof COSDictionary) {
+                COSDictionary dictionary = (COSDictionary) anObject;
+
+                if (COSName.PAGE.equals(dictionary.getDictionaryObject(COSName.TYPE))) {
+                    // Never copy pages: refer to them by position instead
+                    out.writeByte(TAG_PAGE);
+                    out.writeInt(document.getPages().indexOf(new PDPage(dictionary)));
+                } else {
+                    visited.put(anObject, visited.size());
+                    out.writeByte((anObject instanceof COSStream) ? TAG_STREAM : TAG_DICTIONARY);
+                    out.writeInt(dictionary.size());
+                    for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+                        writeString(out, entry.getKey().getName());
+                        write(entry.getValue());
+                    }
+                    if (anObject instanceof COSStream) {
+                        byte[] bytes;
+                        try (InputStream rawStream = ((COSStream) anObject).createRawInputStream()) {
+                            bytes = IOUtils.toByteArray(rawStream);
+                        }
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                }
+            } else {
+                out.writeByte(TAG_NULL);
+            }
+        }
+    }
+
+    /**
+     * Instances of this class read one object graph written by Writer.
+     */
+    private static class Reader {
+
+        private final PDDocument document;
+        private final DataInput in;
+        private final List<COSBase> visited = new ArrayList<>();
+
+        Reader(PDDocument aDocument, DataInput anIn) {
+            document = aDocument;
+            in = anIn;
+        }
+
+        COSBase read() throws IOException {
+            COSBase result;
+            int tag = in.readByte();
+
+            switch (tag) {
+                case TAG_NULL:
+                    result = null;
+                    break;
+                case TAG_BOOLEAN:
+                    result = COSBoolean.getBoolean(in.readBoolean());
+                    break;
+                case TAG_INTEGER:
+                    result = COSInteger.get(in.readLong());
+                    break;
+                case TAG_FLOAT:
+                    result = new COSFloat(in.readFloat());
+                    break;
+                case TAG_NAME:
+                    result = COSName.getPDFName(readString(in));
+                    break;
+                case TAG_STRING: {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    result = new COSString(bytes);
+                    break;
+                }
+                case TAG_REFERENCE: {
+                    long number = in.readLong();
+                    int generation = in.readInt();
+                    result = document.getDocument().getObjectFromPool(new COSObjectKey(number, generation));
+                    break;
+                }
+                case TAG_PAGE: {
+                    int pageIndex = in.readInt();
+                    result = (0 <= pageIndex && pageIndex < document.getNumberOfPages())
+                            ? document.getPage(pageIndex).getCOSObject() : null;
+                    break;
+                }
+                case TAG_BACK_REFERENCE:
+                    result = visited.get(in.readInt());
+                    break;
+                case TAG_TEMPLATE: {
+                    AppearanceTemplateCache.Style style;
+                    try {
+                        style = AppearanceTemplateCache.Style.valueOf(readString(in));
+                    } catch (IllegalArgumentException | NullPointerException ex) {
+                        throw new IOException("Corrupt annotation data: unknown template style", ex);
+                    }
+                    float width = in.readFloat();
+                    float height = in.readFloat();
+                    String contents = readString(in);
+                    result = AppearanceTemplateCache.forDocument(document)
+                            .getTemplate(style, width, height, contents).getCOSObject();
+                    break;
+                }
+                case TAG_ARRAY: {
+                    COSArray array = new COSArray();
+                    visited.add(array);
+                    int count = in.readInt();
+                    for (int i = 0; i < count; ++i) {
+                        COSBase item = read();
+                        array.add(null == item ? COSNull.NULL : item);
+                    }
+                    result = array;
+                    break;
+                }
+                case TAG_DICTIONARY:
+                case TAG_STREAM: {
+                    COSDictionary dictionary = (TAG_STREAM == tag)
+                            ? document.getDocument().createCOSStream() : new COSDictionary();
+                    visited.add(dictionary);
+                    int count = in.readInt();
+                    for (int i = 0; i < count; ++i) {
+                        COSName key = COSName.getPDFName(readString(in));
+                        dictionary.setItem(key, read());
+                    }
+                    if (TAG_STREAM == tag) {
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        try (OutputStream rawStream = ((COSStream) dictionary).createRawOutputStream()) {
+                            rawStream.write(bytes);
+                        }
+                    }
+                    result = dictionary;
+                    break;
+                }
+                default:
+                    throw new IOException("Corrupt annotation data: unknown tag <" + tag + ">");
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,770 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * This class is an HTTP service that lets other processes on the same host
+ * open documents and drive AIRViewer's Commands without starting a JVM per
+ * job. It uses the JDK's built in HttpServer and listens on the loopback
+ * interface only. Requests and responses are JSON except for PDF and PNG
+ * data, which are streamed.
+ *
+ * Web pages in a browser on the same host can also reach the loopback
+ * interface, so every request must carry the random token generated when the
+ * service is created (see getToken()) in a TOKEN_HEADER header, must name
+ * the service's own host and port in its Host header, and must not carry an
+ * Origin header. Browsers do not let pages set the token header without a
+ * preflight that the service never answers, and DNS rebinding changes the
+ * Host header. Session IDs are random as well.
+ *
+ * File system paths, i.e. the path query parameter when opening a document
+ * and the first argument of the Commands in
+ * DocumentCommandWrapper.FILE_COMMAND_NAMES, are only accepted if the
+ * service was given a file root directory, and they must name files inside
+ * it. Relative paths are resolved against the file root.
+ *
+ * <pre>
+ * GET    /commands                           names of the available Commands
+ * POST   /documents[?path=file]              open the PDF in the body or file
+ * GET    /documents                          IDs of the open documents
+ * GET    /documents/{id}                     page count, undo state, selection
+ * DELETE /documents/{id}                     close a document
+ * POST   /documents/{id}/commands/{name}     execute a Command; the body is a
+ *                                            JSON array of string arguments
+ * POST   /documents/{id}/undo
+ * POST   /documents/{id}/redo
+ * GET    /documents/{id}/annotations[?page=n] annotations of every page or
+ *                                            page n without waiting for
+ *                                            other requests
+ * GET    /documents/{id}/pages/{n}[?scale=s] page n rendered as PNG
+ * GET    /documents/{id}/pdf                 the document saved as PDF
+ * GET    /pool                               DocumentSessionPool metrics
+ * </pre>
+ *
+ * Each request is handled on its own virtual thread when the JVM supports
+ * them and on a pooled thread otherwise. Documents are kept in a
+ * DocumentSessionPool, which serializes requests for the same document
+ * because AIRViewerModel is not thread safe and evicts idle documents when
+ * too many are open. Requests for different documents run concurrently.
+ */
+public class AnnotationService {
+
+    /**
+     * The port used by main() if none is given
+     */
+    public static final int DEFAULT_PORT = 8642;
+
+    /**
+     * The largest scale accepted for page images
+     */
+    private static final float MAX_SCALE = 8.0f;
+
+    /**
+     * The request header that must contain the token returned by getToken()
+     */
+    public static final String TOKEN_HEADER = "X-AIRViewer-Token";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Logger LOGGER = Logger.getLogger(AnnotationService.class.getName());
+
+    /**
+     * Thrown by request handlers to send an error response
+     */
+    private static class RequestException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        RequestException(int aStatus, String aMessage) {
+            super(aMessage);
+            status = aStatus;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final DocumentSessionPool pool;
+    private final String token;
+
+    /**
+     * The real path of the directory that contains every file the service
+     * may read or write or null if file system paths are not accepted
+     */
+    private final Path fileRoot;
+
+    /**
+     * Constructor: The service does not accept requests until start() is
+     * called. Documents are kept in a pool with the default limits. File
+     * system paths are not accepted.
+     *
+     * @param port The loopback port to listen on or 0 for any free port
+     * @throws IOException If the port can not be bound
+     */
+    public AnnotationService(int port) throws IOException {
+        this(port, new DocumentSessionPool(DocumentSessionPool.DEFAULT_MAX_OPEN_DOCUMENTS,
+                DocumentSessionPool.DEFAULT_MAX_OPEN_BYTES));
+    }
+
+    /**
+     * Constructor: The service does not accept requests until start() is
+     * called. File system paths are not accepted.
+     *
+     * @param port The loopback port to listen on or 0 for any free port
+     * @param aPool The pool that keeps the documents opened by requests
+     * @throws IOException If the port can not be bound
+     */
+    public AnnotationService(int port, DocumentSessionPool aPool) throws IOException {
+        this(port, aPool, null);
+    }
+
+    /**
+     * Constructor: The service does not accept requests until start() is
+     * called.
+     *
+     * @param port The loopback port to listen on or 0 for any free port
+     * @param aPool The pool that keeps the documents opened by requests
+     * @param aFileRoot The directory that contains every file that requests
+     * may open, import, or save to or null to accept no file system paths
+     * @throws IOException If the port can not be bound or aFileRoot is not
+     * an existing directory
+     */
+    public AnnotationService(int port, DocumentSessionPool aPool, Path aFileRoot) throws IOException {
+        if (null != aFileRoot && !Files.isDirectory(aFileRoot)) {
+            throw new IOException("Not a directory: " + aFileRoot);
+        }
+
+        pool = aPool;
+        fileRoot = (null == aFileRoot) ? null : aFileRoot.toRealPath();
+        token = newToken();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    /**
+     * Java 8 does not have virtual threads, so they are looked up
+     * reflectively.
+     *
+     * @return An executor that runs each task on a new virtual thread if
+     * supported and a cached thread pool otherwise
+     */
+    static ExecutorService newRequestExecutor() {
+        ExecutorService result;
+
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            result = (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            result = Executors.newCachedThreadPool();
+        }
+
+        return result;
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[24];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder result = new StringBuilder(2 * bytes.length);
+
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, waits up to delaySeconds for requests in
+     * progress, and closes every open document.
+     *
+     * @param delaySeconds The maximum time to wait for requests in progress
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        pool.closeAll();
+    }
+
+    /**
+     *
+     * @return The port the service listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     *
+     * @return The pool that keeps the documents opened by requests
+     */
+    public DocumentSessionPool getPool() {
+        return pool;
+    }
+
+    /**
+     *
+     * @return The secret that clients must send in a TOKEN_HEADER header
+     * with every request
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @throws RequestException If exchange does not come from a local client
+     * that knows the token
+     */
+    private void authorize(HttpExchange exchange) {
+        if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+            throw new RequestException(403, "Only local requests are accepted");
+        }
+        if (null != exchange.getRequestHeaders().getFirst("Origin")) {
+            throw new RequestException(403, "Requests from web pages are not accepted");
+        }
+
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        int port = getPort();
+        if (!(("localhost:" + port).equalsIgnoreCase(host) || ("127.0.0.1:" + port).equals(host)
+                || ("[::1]:" + port).equals(host))) {
+            throw new RequestException(403, "Unexpected Host: " + host);
+        }
+
+        String requestToken = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        if (null == requestToken || !MessageDigest.isEqual(token.getBytes(UTF_8), requestToken.getBytes(UTF_8))) {
+            throw new RequestException(401, "Missing or invalid " + TOKEN_HEADER + " header");
+        }
+    }
+
+    /**
+     *
+     * @param aPath A file system path from a request
+     * @return The absolute path of aPath resolved against fileRoot
+     * @throws RequestException If file system paths are not accepted or
+     * aPath is not inside fileRoot. Symbolic links are followed before
+     * checking.
+     */
+    private String resolveFile(String aPath) {
+        if (null == fileRoot) {
+            throw new RequestException(403, "File system paths are not accepted by this service");
+        }
+
+        Path result;
+        try {
+            result = fileRoot.resolve(aPath).normalize();
+            if (Files.exists(result)) {
+                result = result.toRealPath();
+            } else if (null != result.getParent() && Files.isDirectory(result.getParent())) {
+                // A file to be created
+                result = result.getParent().toRealPath().resolve(result.getFileName());
+            }
+        } catch (IOException | InvalidPathException ex) {
+            throw new RequestException(400, "Invalid path: " + aPath);
+        }
+        if (!result.startsWith(fileRoot) || result.equals(fileRoot)) {
+            throw new RequestException(403, "Path is outside the file root: " + aPath);
+        }
+
+        return result.toString();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            authorize(exchange);
+            route(exchange);
+        } catch (RequestException ex) {
+            sendJson(exchange, ex.status, "{\"error\":" + quote(ex.getMessage()) + "}");
+        } catch (NoSuchElementException ex) {
+            sendJson(exchange, 404, "{\"error\":" + quote(ex.getMessage()) + "}");
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            sendJson(exchange, 500, "{\"error\":" + quote(String.valueOf(ex.getMessage())) + "}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        List<String> path = new ArrayList<>();
+
+        for (String segment : exchange.getRequestURI().getPath().split("/")) {
+            if (!segment.isEmpty()) {
+                path.add(segment);
+            }
+        }
+
+        if (1 == path.size() && "commands".equals(path.get(0)) && "GET".equals(method)) {
+            sendJson(exchange, 200, toJsonArray(AbstractDocumentCommandWrapper.getCommandNames()));
+
+        } else if (1 == path.size() && "pool".equals(path.get(0)) && "GET".equals(method)) {
+            sendJson(exchange, 200, String.format(
+                    "{\"sessions\":%d,\"openDocuments\":%d,\"openBytes\":%d,\"hits\":%d,\"misses\":%d,\"evictions\":%d,\"replayedEntries\":%d}",
+                    pool.getSessionIds().size(), pool.getOpenDocumentCount(), pool.getOpenBytes(),
+                    pool.getHitCount(), pool.getMissCount(), pool.getEvictionCount(),
+                    pool.getReplayedEntryCount()));
+
+        } else if (1 == path.size() && "documents".equals(path.get(0))) {
+            if ("POST".equals(method)) {
+                openDocument(exchange);
+            } else if ("GET".equals(method)) {
+                sendJson(exchange, 200, toJsonArray(pool.getSessionIds()));
+            } else {
+                throw new RequestException(405, "Method not allowed: " + method);
+            }
+
+        } else if (2 <= path.size() && "documents".equals(path.get(0))) {
+            String id = path.get(1);
+            String action = (2 < path.size()) ? path.get(2) : "";
+
+            if (2 == path.size() && "DELETE".equals(method)) {
+                if (!pool.close(id)) {
+                    throw new RequestException(404, "No such document: " + id);
+                }
+                sendJson(exchange, 200, "{\"closed\":" + quote(id) + "}");
+            } else if (2 == path.size() && "GET".equals(method)) {
+                withSession(id, (session) -> sendJson(exchange, 200, describe(id, session.getModel())));
+            } else if (4 == path.size() && "commands".equals(action) && "POST".equals(method)) {
+                String name = path.get(3);
+                ArrayList<String> args = parseStringArray(readBody(exchange));
+                if (DocumentCommandWrapper.FILE_COMMAND_NAMES.contains(name) && !args.isEmpty()) {
+                    args.set(0, resolveFile(args.get(0)));
+                }
+                withSession(id, (session) -> {
+                    boolean isExecuted = session.executeDocumentCommandWithNameAndArgs(name, args);
+                    sendJson(exchange, 200, "{\"executed\":" + isExecuted + ",\"document\":" + describe(id, session.getModel()) + "}");
+                });
+            } else if (3 == path.size() && ("undo".equals(action) || "redo".equals(action)) && "POST".equals(method)) {
+                withSession(id, (session) -> {
+                    boolean isExecuted = "undo".equals(action) ? session.undo() : session.redo();
+                    sendJson(exchange, 200, "{\"executed\":" + isExecuted + ",\"document\":" + describe(id, session.getModel()) + "}");
+                });
+            } else if (3 == path.size() && "annotations".equals(action) && "GET".equals(method)) {
+                sendAnnotations(exchange, id);
+            } else if (4 == path.size() && "pages".equals(action) && "GET".equals(method)) {
+                sendPageImage(exchange, id, path.get(3));
+            } else if (3 == path.size() && "pdf".equals(action) && "GET".equals(method)) {
+                sendPdf(exchange, id);
+            } else {
+                throw new RequestException(404, "No such resource: " + exchange.getRequestURI().getPath());
+            }
+
+        } else {
+            throw new RequestException(404, "No such resource: " + exchange.getRequestURI().getPath());
+        }
+    }
+
+    /**
+     * Work done with a document that does not produce a result
+     */
+    private interface SessionAction {
+
+        void run(DocumentSessionPool.DocumentSession aSession) throws IOException;
+    }
+
+    private void withSession(String anId, SessionAction anAction) throws IOException {
+        pool.withSession(anId, (session) -> {
+            anAction.run(session);
+            return null;
+        });
+    }
+
+    private void openDocument(HttpExchange exchange) throws IOException {
+        String path = parseQuery(exchange).get("path");
+        String id;
+
+        try {
+            if (null != path) {
+                id = pool.open(Paths.get(resolveFile(path)));
+            } else {
+                try (InputStream in = exchange.getRequestBody()) {
+                    id = pool.open(in);
+                }
+            }
+        } catch (IOException ex) {
+            throw new RequestException(400, "Unable to open PDF: " + ex.getMessage());
+        }
+
+        withSession(id, (session) -> sendJson(exchange, 201, describe(id, session.getModel())));
+    }
+
+    private void sendPageImage(HttpExchange exchange, String anId, String aPage) throws IOException {
+        String scaleText = parseQuery(exchange).get("scale");
+        int pageIndex;
+        float scale;
+
+        try {
+            pageIndex = Integer.parseInt(aPage.endsWith(".png") ? aPage.substring(0, aPage.length() - 4) : aPage);
+            scale = (null == scaleText) ? 1.0f : Float.parseFloat(scaleText);
+        } catch (NumberFormatException ex) {
+            throw new RequestException(400, "Non number encountered where number expected.");
+        }
+        if (!(0 < scale && scale <= MAX_SCALE)) {
+            throw new RequestException(400, "Scale must be greater than 0 and at most " + MAX_SCALE);
+        }
+
+        BufferedImage[] image = new BufferedImage[1];
+        withSession(anId, (session) -> {
+            if (0 > pageIndex || pageIndex >= session.getModel().getPageCount()) {
+                throw new RequestException(404, "No such page: " + pageIndex);
+            }
+            image[0] = session.getModel().getImage(pageIndex, scale);
+        });
+
+        // The image does not depend on the document, so other requests for
+        // the document may proceed while it is encoded. Encode completely
+        // before sending any header so that a failure can still be reported
+        // as an error response.
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        if (!ImageIO.write(image[0], "png", png)) {
+            throw new IOException("No PNG writer for the image of page " + pageIndex);
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "image/png");
+        exchange.sendResponseHeaders(200, png.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            png.writeTo(out);
+        }
+    }
+
+    private void sendPdf(HttpExchange exchange, String anId) throws IOException {
+        // Save completely before sending any header so that a failed save
+        // can still be reported as an error response
+        File pdf = File.createTempFile("airviewer-response", ".pdf");
+        try {
+            withSession(anId, (session) -> {
+                try (OutputStream out = new FileOutputStream(pdf)) {
+                    session.getModel().save(out);
+                }
+            });
+
+            exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+            exchange.sendResponseHeaders(200, pdf.length());
+            try (OutputStream out = exchange.getResponseBody()) {
+                Files.copy(pdf.toPath(), out);
+            }
+        } finally {
+            if (!pdf.delete()) {
+                pdf.deleteOnExit();
+            }
+        }
+    }
+
+    private void sendAnnotations(HttpExchange exchange, String anId) throws IOException {
+        // The snapshot is immutable, so this does not wait for the session
+        AnnotationSnapshot snapshot = pool.getAnnotationSnapshot(anId);
+        String pageText = parseQuery(exchange).get("page");
+        int startPageIndex = 0;
+        int endPageIndex = snapshot.getPageCount() - 1;
+
+        if (null != pageText) {
+            try {
+                startPageIndex = endPageIndex = Integer.parseInt(pageText);
+            } catch (NumberFormatException ex) {
+                throw new RequestException(400, "Non number encountered where number expected.");
+            }
+            if (0 > startPageIndex || startPageIndex >= snapshot.getPageCount()) {
+                throw new RequestException(404, "No such page: " + startPageIndex);
+            }
+        }
+
+        StringBuilder result = new StringBuilder();
+        result.append("{\"version\":").append(snapshot.getVersion()).append(",\"annotations\":[");
+        String separator = "";
+        for (int pageIndex = startPageIndex; pageIndex <= endPageIndex; ++pageIndex) {
+            for (AnnotationSnapshot.Entry entry : snapshot.getAnnotationsOnPage(pageIndex)) {
+                result.append(separator);
+                result.append("{\"id\":").append(entry.getId());
+                result.append(",\"page\":").append(entry.getPageIndex());
+                result.append(",\"type\":").append(quote(entry.getSubtype()));
+                result.append(",\"name\":").append(quote(entry.getName()));
+                result.append(",\"x\":").append(entry.getX());
+                result.append(",\"y\":").append(entry.getY());
+                result.append(",\"width\":").append(entry.getWidth());
+                result.append(",\"height\":").append(entry.getHeight());
+                result.append(",\"contents\":").append(quote(entry.getContents()));
+                result.append('}');
+                separator = ",";
+            }
+        }
+        result.append("]}");
+
+        sendJson(exchange, 200, result.toString());
+    }
+
+    private static String describe(String anId, AIRViewerModel aModel) {
+        StringBuilder result = new StringBuilder();
+
+        result.append("{\"id\":").append(quote(anId));
+        result.append(",\"pageCount\":").append(aModel.getPageCount());
+        result.append(",\"canUndo\":").append(aModel.getCanUndo());
+        result.append(",\"canRedo\":").append(aModel.getCanRedo());
+        result.append(",\"undoTitle\":").append(quote(aModel.getSuggestedUndoTitle()));
+        result.append(",\"redoTitle\":").append(quote(aModel.getSuggestedRedoTitle()));
+        result.append(",\"selectedIds\":").append(aModel.getSelectedIds());
+        result.append('}');
+
+        return result.toString();
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String aJson) throws IOException {
+        byte[] bytes = aJson.getBytes(UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+
+        try (InputStream in = exchange.getRequestBody()) {
+            int count;
+            while (0 < (count = in.read(buffer))) {
+                result.write(buffer, 0, count);
+            }
+        }
+
+        return new String(result.toByteArray(), UTF_8);
+    }
+
+    private static Map<String, String> parseQuery(HttpExchange exchange) throws UnsupportedEncodingException {
+        Map<String, String> result = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+
+        if (null != query) {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (0 < equals) {
+                    result.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param aJson A JSON array of strings, numbers, or booleans or an empty
+     * string
+     * @return The elements of aJson as strings
+     * @throws RequestException If aJson is not such an array
+     */
+    static ArrayList<String> parseStringArray(String aJson) {
+        ArrayList<String> result = new ArrayList<>();
+        String text = aJson.trim();
+
+        if (text.isEmpty()) {
+            return result;
+        }
+        if (!text.startsWith("[") || !text.endsWith("]")) {
+            throw new RequestException(400, "Expected a JSON array of arguments");
+        }
+
+        int i = skipWhitespace(text, 1);
+        final int end = text.length() - 1;
+
+        while (i < end) {
+            StringBuilder element = new StringBuilder();
+
+            if ('"' == text.charAt(i)) {
+                ++i;
+                while (i < end && '"' != text.charAt(i)) {
+                    char c = text.charAt(i++);
+                    if ('\\' == c && i < end) {
+                        c = text.charAt(i++);
+                        switch (c) {
+                            case 'n':
+                                c = '\n';
+                                break;
+                            case 'r':
+                                c = '\r';
+                                break;
+                            case 't':
+                                c = '\t';
+                                break;
+                            case 'b':
+                                c = '\b';
+                                break;
+                            case 'f':
+                                c = '\f';
+                                break;
+                            case 'u':
+                                if (i + 4 > end) {
+                                    throw new RequestException(400, "Invalid escape sequence");
+                                }
+                                try {
+                                    c = (char) Integer.parseInt(text.substring(i, i + 4), 16);
+                                } catch (NumberFormatException ex) {
+                                    throw new RequestException(400, "Invalid escape sequence");
+                                }
+                                i += 4;
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                    element.append(c);
+                }
+                if (i >= end) {
+                    throw new RequestException(400, "Unterminated string");
+                }
+                ++i; // '"'
+            } else {
+                while (i < end && ',' != text.charAt(i) && !Character.isWhitespace(text.charAt(i))) {
+                    element.append(text.charAt(i++));
+                }
+            }
+            result.add(element.toString());
+
+            i = skipWhitespace(text, i);
+            if (i < end) {
+                if (',' != text.charAt(i)) {
+                    throw new RequestException(400, "Expected ',' in argument array");
+                }
+                i = skipWhitespace(text, i + 1);
+            }
+        }
+
+        return result;
+    }
+
+    private static int skipWhitespace(String aText, int i) {
+        while (i < aText.length() && Character.isWhitespace(aText.charAt(i))) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static String toJsonArray(List<String> someStrings) {
+        StringBuilder result = new StringBuilder("[");
+
+        for (String string : someStrings) {
+            if (1 < result.length()) {
+                result.append(',');
+            }
+            result.append(quote(string));
+        }
+
+        return result.append(']').toString();
+    }
+
+    /**
+     *
+     * @param aString Any string or null
+     * @return aString as a JSON string literal or null
+     */
+    static String quote(String aString) {
+        if (null == aString) {
+            return "null";
+        }
+
+        StringBuilder result = new StringBuilder(aString.length() + 2);
+        result.append('"');
+        for (int i = 0; i < aString.length(); ++i) {
+            char c = aString.charAt(i);
+            if ('"' == c || '\\' == c) {
+                result.append('\\').append(c);
+            } else if (' ' > c) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+
+        return result.append('"').toString();
+    }
+
+    /**
+     * Runs the service until the process is terminated.
+     *
+     * @param args An optional port number, maximum number of open documents,
+     * maximum megabytes of open PDF data, and file root directory. The
+     * defaults are DEFAULT_PORT, the DocumentSessionPool defaults, and no file
+     * root, i.e. file system paths are not accepted.
+     * @throws IOException If the port can not be bound
+     */
+    public static void main(String[] args) throws IOException {
+        int port = (0 < args.length) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int maxOpenDocuments = (1 < args.length) ? Integer.parseInt(args[1])
+                : DocumentSessionPool.DEFAULT_MAX_OPEN_DOCUMENTS;
+        long maxOpenBytes = (2 < args.length) ? Long.parseLong(args[2]) * 1024L * 1024L
+                : DocumentSessionPool.DEFAULT_MAX_OPEN_BYTES;
+        Path fileRoot = (3 < args.length) ? Paths.get(args[3]) : null;
+        AnnotationService service = new AnnotationService(port,
+                new DocumentSessionPool(maxOpenDocuments, maxOpenBytes), fileRoot);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> service.stop(1)));
+        service.start();
+        System.out.printf("AIRViewer annotation service listening on http://%s:%d/%n"
+                + "Send this token in the %s header of every request: %s%n",
+                InetAddress.getLoopbackAddress().getHostAddress(), service.getPort(),
+                TOKEN_HEADER, service.getToken());
+    }
+}
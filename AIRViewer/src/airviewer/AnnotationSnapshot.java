@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Instances of this class are immutable copies of the annotations of every
+ * page of a document as they were at one version of the document. Once its
+ * first snapshot has been requested, an AbstractDocumentCommandWrapper
+ * publishes a new snapshot whenever it notifies its listeners of changes to
+ * annotations, i.e. after each Command, undo, or redo outside a transaction
+ * and after each transaction. See
+ * AbstractDocumentCommandWrapper.getAnnotationSnapshot().
+ *
+ * Snapshots share the annotation lists of the pages that did not change with
+ * the previous version, so publishing a snapshot only copies the changed
+ * pages. Because nothing in a snapshot refers to PDFBox objects, any thread
+ * may read a snapshot without locks while the document keeps changing, and a
+ * snapshot stays valid after the document is closed.
+ */
+public final class AnnotationSnapshot {
+
+    /**
+     * Instances of this class describe one annotation.
+     */
+    public static final class Entry {
+
+        private final int id;
+        private final int pageIndex;
+        private final String subtype;
+        private final String name;
+        private final float x;
+        private final float y;
+        private final float width;
+        private final float height;
+        private final String contents;
+
+        Entry(int anId, int aPageIndex, String aSubtype, String aName,
+                float anX, float aY, float aWidth, float aHeight, String someContents) {
+            id = anId;
+            pageIndex = aPageIndex;
+            subtype = aSubtype;
+            name = aName;
+            x = anX;
+            y = aY;
+            width = aWidth;
+            height = aHeight;
+            contents = someContents;
+        }
+
+        /**
+         *
+         * @return The AnnotationRegistry ID of the annotation
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         *
+         * @return The index of the page that contains the annotation
+         */
+        public int getPageIndex() {
+            return pageIndex;
+        }
+
+        /**
+         *
+         * @return The annotation's subtype, e.g. "Square", or null
+         */
+        public String getSubtype() {
+            return subtype;
+        }
+
+        /**
+         *
+         * @return The annotation's name (the PDF /NM entry) or null
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         *
+         * @return The X coordinate of the lower left corner of the
+         * annotation's bounding box in the PDF coordinate system
+         */
+        public float getX() {
+            return x;
+        }
+
+        /**
+         *
+         * @return The Y coordinate of the lower left corner of the
+         * annotation's bounding box in the PDF coordinate system
+         */
+        public float getY() {
+            return y;
+        }
+
+        /**
+         *
+         * @return The width of the annotation's bounding box
+         */
+        public float getWidth() {
+            return width;
+        }
+
+        /**
+         *
+         * @return The height of the annotation's bounding box
+         */
+        public float getHeight() {
+            return height;
+        }
+
+        /**
+         *
+         * @return The annotation's contents or null
+         */
+        public String getContents() {
+            return contents;
+        }
+
+        @Override
+        public boolean equals(Object anObject) {
+            boolean result = this == anObject;
+
+            if (!result && anObject instanceof Entry) {
+                Entry other = (Entry) anObject;
+                result = id == other.id && pageIndex == other.pageIndex
+                        && Float.compare(x, other.x) == 0 && Float.compare(y, other.y) == 0
+                        && Float.compare(width, other.width) == 0
+                        && Float.compare(height, other.height) == 0
+                        && Objects.equals(subtype, other.subtype) && Objects.equals(name, other.name)
+                        && Objects.equals(contents, other.contents);
+            }
+
+            return result;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, pageIndex, x, y, width, height, subtype, name, contents);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d %s page %d [%.1f %.1f %.1f %.1f]",
+                    id, subtype, pageIndex, x, y, width, height);
+        }
+    }
+
+    private final long version;
+
+    /**
+     * Unmodifiable lists of entries indexed by page index in annotation array
+     * order
+     */
+    private final List<List<Entry>> pages;
+
+    /**
+     * Constructor:
+     *
+     * @param aVersion The version of the document
+     * @param somePages The entries of every page in page order. The lists
+     * must not be changed afterwards.
+     */
+    AnnotationSnapshot(long aVersion, List<List<Entry>> somePages) {
+        version = aVersion;
+        List<List<Entry>> unmodifiablePages = new ArrayList<>(somePages.size());
+        for (List<Entry> entries : somePages) {
+            unmodifiablePages.add(Collections.unmodifiableList(entries));
+        }
+        pages = Collections.unmodifiableList(unmodifiablePages);
+    }
+
+    /**
+     * This constructor shares the unchanged pages of aPrevious.
+     */
+    private AnnotationSnapshot(AnnotationSnapshot aPrevious, Map<Integer, List<Entry>> someChangedPages) {
+        version = aPrevious.version + 1;
+        List<List<Entry>> newPages = new ArrayList<>(aPrevious.pages);
+        for (Map.Entry<Integer, List<Entry>> change : someChangedPages.entrySet()) {
+            newPages.set(change.getKey(), Collections.unmodifiableList(change.getValue()));
+        }
+        pages = Collections.unmodifiableList(newPages);
+    }
+
+    /**
+     *
+     * @param someChangedPages The new entries of each changed page keyed by
+     * page index. The lists must not be changed afterwards.
+     * @return The next version of the receiver
+     */
+    AnnotationSnapshot withChangedPages(Map<Integer, List<Entry>> someChangedPages) {
+        return new AnnotationSnapshot(this, someChangedPages);
+    }
+
+    /**
+     *
+     * @return The version of the document that the receiver describes.
+     * Versions increase by one with each published snapshot.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     *
+     * @return The number of pages in the document
+     */
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @return An unmodifiable list of the annotations on the page with
+     * pageIndex in annotation array order, i.e. from bottom to top
+     */
+    public List<Entry> getAnnotationsOnPage(int pageIndex) {
+        return pages.get(pageIndex);
+    }
+
+    /**
+     *
+     * @param aSnapshot Another snapshot
+     * @return true if and only if aSnapshot describes the same annotations
+     * with the same IDs on the same pages in the same order. Versions are
+     * not compared.
+     */
+    public boolean hasSameAnnotations(AnnotationSnapshot aSnapshot) {
+        return pages.equals(aSnapshot.pages);
+    }
+
+    /**
+     *
+     * @return The number of annotations in the document
+     */
+    public int getAnnotationCount() {
+        int result = 0;
+
+        for (List<Entry> entries : pages) {
+            result += entries.size();
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+
+/**
+ * Instances of this class index the annotations of one page by their
+ * bounding boxes so that the annotations at a point or within a rectangle can
+ * be found without examining every annotation on the page. The page is divided
+ * into a uniform grid of square cells, and each annotation is listed in every
+ * cell its bounding box overlaps. Annotations that overlap very many cells are
+ * kept in a separate list that every query examines.
+ *
+ * Each indexed annotation also has a z key that increases with the
+ * annotation's position in the page's annotation array. Queries use the z key
+ * to preserve the PDF drawing order: the "upper most" annotation is the one
+ * with the largest z key. Keys are spaced apart so that an annotation inserted
+ * between two others usually gets a key without renumbering.
+ *
+ * The index does not observe the page. Commands that insert, remove, or move
+ * annotations must call insert(), remove(), or update(), and the owner must
+ * discard the index when the page changes in any other way.
+ */
+public class AnnotationSpatialIndex {
+
+    /**
+     * The width and height of each grid cell in PDF units (1/72 inch).
+     */
+    public static final float CELL_SIZE = 64.0f;
+
+    /**
+     * Annotations that overlap more cells than this are not listed in cells.
+     */
+    private static final int MAX_CELLS_PER_ENTRY = 256;
+
+    /**
+     * The difference between the z keys of adjacent annotations after the keys
+     * are (re)assigned.
+     */
+    private static final long Z_GAP = 1L << 20;
+
+    /**
+     * Annotation flag bits from the PDF specification (see
+     * PDAnnotation.isHidden() and PDAnnotation.isReadOnly())
+     */
+    private static final int FLAG_HIDDEN = 1 << 1;
+    private static final int FLAG_READ_ONLY = 1 << 6;
+
+    /**
+     * Instances of this class store what the index knows about one annotation.
+     */
+    private static class Entry {
+
+        final COSDictionary dictionary;
+        long z;
+        float lowerLeftX;
+        float lowerLeftY;
+        float upperRightX;
+        float upperRightY;
+        boolean hasBounds;
+        boolean isOversized;
+        int minCellX;
+        int minCellY;
+        int maxCellX;
+        int maxCellY;
+        PDAnnotation annotation;
+
+        Entry(COSDictionary aDictionary) {
+            dictionary = aDictionary;
+        }
+
+        boolean contains(float x, float y) {
+            return hasBounds && x >= lowerLeftX && x <= upperRightX
+                    && y >= lowerLeftY && y <= upperRightY;
+        }
+
+        boolean intersects(float llx, float lly, float urx, float ury) {
+            return hasBounds && lowerLeftX <= urx && upperRightX >= llx
+                    && lowerLeftY <= ury && upperRightY >= lly;
+        }
+
+        boolean isSelectable() {
+            int flags = dictionary.getInt(COSName.F, 0);
+            return 0 == (flags & (FLAG_HIDDEN | FLAG_READ_ONLY));
+        }
+    }
+
+    /**
+     * The page's annotation array
+     */
+    private final COSArray annotationArray;
+    private final Map<COSDictionary, Entry> entries;
+    private final Map<Long, List<Entry>> cells;
+    private final List<Entry> oversizedEntries;
+
+    /**
+     * Constructor: Indexes every annotation in anAnnotationArray.
+     *
+     * @param anAnnotationArray The annotation array of a page
+     */
+    public AnnotationSpatialIndex(COSArray anAnnotationArray) {
+        assert null != anAnnotationArray;
+
+        annotationArray = anAnnotationArray;
+        entries = new IdentityHashMap<>();
+        cells = new HashMap<>();
+        oversizedEntries = new ArrayList<>();
+
+        for (int i = 0; i < annotationArray.size(); ++i) {
+            COSBase base = annotationArray.getObject(i);
+            if (base instanceof COSDictionary) {
+                Entry existingEntry = entries.get(base);
+                if (null == existingEntry) {
+                    Entry newEntry = new Entry((COSDictionary) base);
+                    newEntry.z = (i + 1) * Z_GAP;
+                    entries.put(newEntry.dictionary, newEntry);
+                    addToCells(newEntry);
+                } else {
+                    // Listed more than once: drawn last at its last position
+                    existingEntry.z = (i + 1) * Z_GAP;
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @return The number of indexed annotations
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Adds the annotation at anArrayIndex in the page's annotation array to the
+     * index. Call this after the annotation has been inserted into the array.
+     *
+     * @param anArrayIndex The index of the inserted annotation
+     * @param anAnnotation The inserted annotation. Queries return it rather
+     * than a new PDAnnotation for the same dictionary.
+     */
+    public void insert(int anArrayIndex, PDAnnotation anAnnotation) {
+        insertAll(new int[]{anArrayIndex}, Collections.singletonList(anAnnotation));
+    }
+
+    /**
+     * Adds the annotations at someArrayIndices in the page's annotation array
+     * to the index. Call this after all of the annotations have been inserted
+     * into the array. Each run of adjacent new annotations is given evenly
+     * spaced z keys between the keys of its neighbors, so the cost does not
+     * depend on the number of annotations already indexed unless the keys must
+     * be renumbered.
+     *
+     * @param someArrayIndices The indices of the inserted annotations in
+     * ascending order
+     * @param someAnnotations The inserted annotations in the same order.
+     * Queries return them rather than new PDAnnotations for the same
+     * dictionaries.
+     */
+    public void insertAll(int[] someArrayIndices, List<PDAnnotation> someAnnotations) {
+        assert someArrayIndices.length == someAnnotations.size();
+
+        Entry[] newEntries = new Entry[someArrayIndices.length];
+        for (int i = 0; i < someArrayIndices.length; ++i) {
+            assert 0 <= someArrayIndices[i] && someArrayIndices[i] < annotationArray.size();
+
+            COSBase base = annotationArray.getObject(someArrayIndices[i]);
+            if (base instanceof COSDictionary && !entries.containsKey(base)) {
+                Entry newEntry = new Entry((COSDictionary) base);
+                PDAnnotation anAnnotation = someAnnotations.get(i);
+                if (null != anAnnotation && anAnnotation.getCOSObject() == base) {
+                    newEntry.annotation = anAnnotation;
+                }
+                entries.put(newEntry.dictionary, newEntry);
+                newEntries[i] = newEntry;
+            }
+        }
+
+        boolean needsRenumber = false;
+        int runEnd = 0;
+        for (int runStart = 0; runStart < someArrayIndices.length; runStart = runEnd + 1) {
+            runEnd = runStart;
+            while (runEnd + 1 < someArrayIndices.length
+                    && someArrayIndices[runEnd + 1] == someArrayIndices[runEnd] + 1) {
+                ++runEnd;
+            }
+            int runLength = runEnd - runStart + 1;
+            long below = zKeyOfArrayElement(someArrayIndices[runStart] - 1, 0L);
+            long above = zKeyOfArrayElement(someArrayIndices[runEnd] + 1, below + (runLength + 1) * Z_GAP);
+            long step = (above - below) / (runLength + 1);
+            if (1 > step) {
+                // No room between the neighbors
+                needsRenumber = true;
+            } else {
+                for (int i = runStart; i <= runEnd; ++i) {
+                    if (null != newEntries[i]) {
+                        newEntries[i].z = below + step * (i - runStart + 1);
+                    }
+                }
+            }
+        }
+        if (needsRenumber) {
+            renumber();
+        }
+
+        for (Entry newEntry : newEntries) {
+            if (null != newEntry) {
+                addToCells(newEntry);
+            }
+        }
+    }
+
+    /**
+     * Removes aDictionary from the index.
+     *
+     * @param aDictionary The removed annotation's dictionary
+     */
+    public void remove(COSDictionary aDictionary) {
+        Entry oldEntry = entries.remove(aDictionary);
+        if (null != oldEntry) {
+            removeFromCells(oldEntry);
+        }
+    }
+
+    /**
+     * Re-reads the bounding box of aDictionary. Call this after an annotation
+     * has been moved or resized.
+     *
+     * @param aDictionary The annotation's dictionary
+     */
+    public void update(COSDictionary aDictionary) {
+        Entry existingEntry = entries.get(aDictionary);
+        if (null != existingEntry) {
+            removeFromCells(existingEntry);
+            addToCells(existingEntry);
+        }
+    }
+
+    /**
+     * This method finds the "last" (upper most) annotation that contains the
+     * specified x and y coordinates and is neither hidden nor read only.
+     *
+     * @param x An X coordinate in the PDF coordinate system
+     * @param y A Y coordinate in the PDF coordinate system
+     * @return The annotation found or null if there is none.
+     */
+    public PDAnnotation getLastAnnotationAtPoint(float x, float y) {
+        Entry best = null;
+
+        List<Entry> cell = cells.get(cellKey(cellCoordinate(x), cellCoordinate(y)));
+        if (null != cell) {
+            best = topmostAt(cell, x, y, best);
+        }
+        best = topmostAt(oversizedEntries, x, y, best);
+
+        return (null == best) ? null : annotationFor(best);
+    }
+
+    /**
+     * This method finds every annotation that intersects the rectangle and is
+     * neither hidden nor read only.
+     *
+     * @param aRectangle A rectangle in the PDF coordinate system
+     * @return The annotations found ordered from lowest to upper most. The
+     * result is never null.
+     */
+    public List<PDAnnotation> getAnnotationsIntersecting(PDRectangle aRectangle) {
+        assert null != aRectangle;
+
+        float llx = aRectangle.getLowerLeftX();
+        float lly = aRectangle.getLowerLeftY();
+        float urx = aRectangle.getUpperRightX();
+        float ury = aRectangle.getUpperRightY();
+        Map<Entry, Boolean> found = new IdentityHashMap<>();
+
+        int minX = cellCoordinate(llx);
+        int maxX = cellCoordinate(urx);
+        int minY = cellCoordinate(lly);
+        int maxY = cellCoordinate(ury);
+        if ((long) (maxX - minX + 1) * (maxY - minY + 1) > cells.size()) {
+            // Cheaper to visit the occupied cells than the covered ones
+            cells.values().forEach((cell) -> collectIntersecting(cell, llx, lly, urx, ury, found));
+        } else {
+            for (int cx = minX; cx <= maxX; ++cx) {
+                for (int cy = minY; cy <= maxY; ++cy) {
+                    List<Entry> cell = cells.get(cellKey(cx, cy));
+                    if (null != cell) {
+                        collectIntersecting(cell, llx, lly, urx, ury, found);
+                    }
+                }
+            }
+        }
+        collectIntersecting(oversizedEntries, llx, lly, urx, ury, found);
+
+        List<Entry> sorted = new ArrayList<>(found.keySet());
+        Collections.sort(sorted, (Entry a, Entry b) -> Long.compare(a.z, b.z));
+        List<PDAnnotation> result = new ArrayList<>(sorted.size());
+        sorted.stream().forEach((e) -> {
+            result.add(annotationFor(e));
+        });
+
+        return result;
+    }
+
+    private static Entry topmostAt(List<Entry> someEntries, float x, float y, Entry best) {
+        for (Entry e : someEntries) {
+            if ((null == best || e.z > best.z) && e.contains(x, y) && e.isSelectable()) {
+                best = e;
+            }
+        }
+        return best;
+    }
+
+    private static void collectIntersecting(List<Entry> someEntries, float llx, float lly,
+            float urx, float ury, Map<Entry, Boolean> found) {
+        someEntries.stream().filter((e) -> (e.intersects(llx, lly, urx, ury) && e.isSelectable())).forEach((e) -> {
+            found.put(e, Boolean.TRUE);
+        });
+    }
+
+    /**
+     * The same PDAnnotation is returned for a dictionary every time so that
+     * callers may compare results with ==.
+     */
+    private static PDAnnotation annotationFor(Entry anEntry) {
+        if (null == anEntry.annotation) {
+            try {
+                anEntry.annotation = PDAnnotation.createAnnotation(anEntry.dictionary);
+            } catch (IOException ex) {
+                Logger.getLogger(AnnotationSpatialIndex.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return anEntry.annotation;
+    }
+
+    private long zKeyOfArrayElement(int anArrayIndex, long aDefault) {
+        long result = aDefault;
+
+        if (0 <= anArrayIndex && anArrayIndex < annotationArray.size()) {
+            Entry neighbor = entries.get(annotationArray.getObject(anArrayIndex));
+            if (null != neighbor) {
+                result = neighbor.z;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Reassigns evenly spaced z keys in array order.
+     */
+    private void renumber() {
+        for (int i = 0; i < annotationArray.size(); ++i) {
+            Entry existingEntry = entries.get(annotationArray.getObject(i));
+            if (null != existingEntry) {
+                existingEntry.z = (i + 1) * Z_GAP;
+            }
+        }
+    }
+
+    private static int cellCoordinate(float aValue) {
+        return (int) Math.floor(aValue / CELL_SIZE);
+    }
+
+    private static Long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private void addToCells(Entry anEntry) {
+        COSBase rectBase = anEntry.dictionary.getDictionaryObject(COSName.RECT);
+        anEntry.hasBounds = rectBase instanceof COSArray && 4 <= ((COSArray) rectBase).size();
+        if (!anEntry.hasBounds) {
+            return;
+        }
+
+        // PDRectangle normalizes corners given in any order
+        PDRectangle bounds = new PDRectangle((COSArray) rectBase);
+        anEntry.lowerLeftX = bounds.getLowerLeftX();
+        anEntry.lowerLeftY = bounds.getLowerLeftY();
+        anEntry.upperRightX = bounds.getUpperRightX();
+        anEntry.upperRightY = bounds.getUpperRightY();
+        anEntry.minCellX = cellCoordinate(anEntry.lowerLeftX);
+        anEntry.minCellY = cellCoordinate(anEntry.lowerLeftY);
+        anEntry.maxCellX = cellCoordinate(anEntry.upperRightX);
+        anEntry.maxCellY = cellCoordinate(anEntry.upperRightY);
+
+        long cellCount = (long) (anEntry.maxCellX - anEntry.minCellX + 1)
+                * (anEntry.maxCellY - anEntry.minCellY + 1);
+        anEntry.isOversized = cellCount > MAX_CELLS_PER_ENTRY;
+        if (anEntry.isOversized) {
+            oversizedEntries.add(anEntry);
+        } else {
+            for (int cx = anEntry.minCellX; cx <= anEntry.maxCellX; ++cx) {
+                for (int cy = anEntry.minCellY; cy <= anEntry.maxCellY; ++cy) {
+                    cells.computeIfAbsent(cellKey(cx, cy), (k) -> new ArrayList<>()).add(anEntry);
+                }
+            }
+        }
+    }
+
+    private void removeFromCells(Entry anEntry) {
+        if (!anEntry.hasBounds) {
+            return;
+        }
+
+        if (anEntry.isOversized) {
+            oversizedEntries.remove(anEntry);
+        } else {
+            for (int cx = anEntry.minCellX; cx <= anEntry.maxCellX; ++cx) {
+                for (int cy = anEntry.minCellY; cy <= anEntry.maxCellY; ++cy) {
+                    Long key = cellKey(cx, cy);
+                    List<Entry> cell = cells.get(key);
+                    if (null != cell) {
+                        cell.remove(anEntry);
+                        if (cell.isEmpty()) {
+                            cells.remove(key);
+                        }
+                    }
+                }
+            }
+        }
+        anEntry.hasBounds = false;
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceDictionary;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDBorderStyleDictionary;
+
+/**
+ * Instances of this class share annotation "Appearance Streams" (form
+ * XObjects) among annotations that look the same. The annotation makers used
+ * to create a new appearance stream in page coordinates for every annotation
+ * and to give each one the whole page resource dictionary. Templates made by
+ * this class are drawn in their own coordinate system with the origin at the
+ * lower left corner of the annotation, so one template serves every
+ * annotation with the same style, size, and contents regardless of position.
+ * PDF viewers map a template's bounding box onto each annotation's /Rect.
+ *
+ * All templates of a document share one minimal resource dictionary that
+ * contains only the font used to draw annotation text. Each document has its
+ * own cache (see forDocument()), and each cache keeps at most MAX_TEMPLATES
+ * templates, discarding the least recently used. A discarded template stays
+ * in the document for as long as annotations refer to it; it just is not
+ * reused for new annotations.
+ *
+ * Templates are shared, so they must never be modified. To change the text of
+ * an annotation that uses a template, use getTemplateWithContents() to obtain
+ * a different template.
+ *
+ * Appearances are generated lazily. The makers only mark new annotations as
+ * having a stale appearance (see markStale()), and generateStaleAppearances()
+ * gives every stale annotation its template when a page is rendered or the
+ * document is saved. Annotations that are deleted or edited before then never
+ * cost more than the mark, and editing the text of a stale annotation needs
+ * no appearance work at all. The mark is stored in the annotation dictionary
+ * itself so that it survives copies made by undo (see AnnotationSerializer).
+ */
+public class AppearanceTemplateCache {
+
+    /**
+     * The maximum number of templates remembered per document
+     */
+    public static final int MAX_TEMPLATES = 512;
+
+    /**
+     * The width of annotation borders: 1/12 inch in PDF units
+     */
+    public static final float BORDER_WIDTH = 72 / 12;
+
+    /**
+     * The key of the mark added by markStale(). The value is an array
+     * containing the style name, width, and height of the appearance to
+     * generate. The text comes from the annotation's /Contents.
+     */
+    private static final COSName STALE_APPEARANCE = COSName.getPDFName("AIRViewerStaleAppearance");
+
+    /**
+     * Each style corresponds to one of the annotation makers and knows how to
+     * draw that maker's appearance.
+     */
+    public enum Style {
+        BOX {
+            @Override
+            void draw(PDPageContentStream content, float width, float height, String contents) throws IOException {
+                BoxAnnotationMaker.drawAppearance(content, width, height, contents);
+            }
+        },
+        ELLIPSE {
+            @Override
+            void draw(PDPageContentStream content, float width, float height, String contents) throws IOException {
+                EllipseAnnotationMaker.drawAppearance(content, width, height, contents);
+            }
+        },
+        TEXT {
+            @Override
+            void draw(PDPageContentStream content, float width, float height, String contents) throws IOException {
+                TextAnnotationMaker.drawAppearance(content, width, height, contents);
+            }
+        };
+
+        /**
+         * Draws an appearance whose lower left corner is at the origin.
+         *
+         * @param content The destination
+         * @param width The width of the annotation
+         * @param height The height of the annotation
+         * @param contents The text displayed by the annotation
+         * @throws IOException If content can not be written
+         */
+        abstract void draw(PDPageContentStream content, float width, float height, String contents) throws IOException;
+    }
+
+    /**
+     * Instances of this class identify templates. AnnotationSerializer writes
+     * a template as its Key and obtains the template again with getTemplate().
+     */
+    static final class Key {
+
+        final Style style;
+        final float width;
+        final float height;
+        final String contents;
+
+        Key(Style aStyle, float aWidth, float aHeight, String someContents) {
+            style = aStyle;
+            width = aWidth;
+            height = aHeight;
+            contents = (null == someContents) ? "" : someContents;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            boolean result = false;
+
+            if (other instanceof Key) {
+                Key otherKey = (Key) other;
+                result = style == otherKey.style
+                        && Float.compare(width, otherKey.width) == 0
+                        && Float.compare(height, otherKey.height) == 0
+                        && contents.equals(otherKey.contents);
+            }
+
+            return result;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(style, width, height, contents);
+        }
+    }
+
+    /**
+     * The cache of each open document. PDDocument does not override equals(),
+     * so documents are compared by identity.
+     */
+    private static final WeakHashMap<PDDocument, AppearanceTemplateCache> CACHES = new WeakHashMap<>();
+
+    /**
+     * Weak so that CACHES does not keep the document alive
+     */
+    private final WeakReference<PDDocument> document;
+    private final PDResources sharedResources;
+    private final PDBorderStyleDictionary sharedBorderStyle;
+
+    /**
+     * Templates in least recently used order
+     */
+    private final LinkedHashMap<Key, PDAppearanceStream> templates;
+
+    /**
+     * The key of every template ever made by the receiver including discarded
+     * ones. COSStream does not override equals(), so streams are compared by
+     * identity.
+     */
+    private final WeakHashMap<COSStream, Key> keysByStream;
+
+    /**
+     *
+     * @param aDocument A document
+     * @return The cache for aDocument, which is created if necessary
+     */
+    public static AppearanceTemplateCache forDocument(PDDocument aDocument) {
+        assert null != aDocument;
+
+        synchronized (CACHES) {
+            return CACHES.computeIfAbsent(aDocument, (d) -> new AppearanceTemplateCache(d));
+        }
+    }
+
+    /**
+     * Constructor:
+     *
+     * @param aDocument The document in which templates are created
+     */
+    private AppearanceTemplateCache(PDDocument aDocument) {
+        document = new WeakReference<>(aDocument);
+        sharedResources = new PDResources();
+        sharedBorderStyle = new PDBorderStyleDictionary();
+        sharedBorderStyle.setWidth(BORDER_WIDTH);
+        keysByStream = new WeakHashMap<>();
+        templates = new LinkedHashMap<Key, PDAppearanceStream>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PDAppearanceStream> eldest) {
+                return size() > MAX_TEMPLATES;
+            }
+        };
+    }
+
+    /**
+     *
+     * @return A border style with BORDER_WIDTH shared by annotations of the
+     * receiver's document.
+     */
+    public PDBorderStyleDictionary getBorderStyle() {
+        return sharedBorderStyle;
+    }
+
+    /**
+     * Returns a template for an annotation with the specified style, size,
+     * and contents creating it if necessary.
+     *
+     * @param aStyle The style of the annotation
+     * @param width The width of the annotation's /Rect
+     * @param height The height of the annotation's /Rect
+     * @param contents The text displayed by the annotation
+     * @return A shared appearance stream. Do not modify it.
+     * @throws IOException If the template could not be created
+     */
+    public synchronized PDAppearanceStream getTemplate(Style aStyle, float width, float height, String contents) throws IOException {
+        assert null != aStyle;
+
+        Key key = new Key(aStyle, width, height, contents);
+        PDAppearanceStream result = templates.get(key);
+
+        if (null == result) {
+            result = makeTemplate(key);
+            templates.put(key, result);
+            keysByStream.put(result.getCOSObject(), key);
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param anAppearance An appearance stream
+     * @return true if and only if anAppearance is a template made by the
+     * receiver and therefore must not be modified.
+     */
+    public synchronized boolean isTemplate(PDAppearanceStream anAppearance) {
+        return null != anAppearance && keysByStream.containsKey(anAppearance.getCOSObject());
+    }
+
+    /**
+     *
+     * @param aStream A stream
+     * @return The key of aStream or null if aStream is not a template made by
+     * the receiver
+     */
+    synchronized Key getKey(COSStream aStream) {
+        return keysByStream.get(aStream);
+    }
+
+    /**
+     * Returns the template that is the same as anAppearance except that it
+     * displays newContents.
+     *
+     * @param anAppearance An appearance stream
+     * @param newContents The text to display
+     * @return The template or null if anAppearance is not a template
+     * @throws IOException If the template could not be created
+     */
+    public synchronized PDAppearanceStream getTemplateWithContents(PDAppearanceStream anAppearance, String newContents) throws IOException {
+        PDAppearanceStream result = null;
+        Key oldKey = (null == anAppearance) ? null : keysByStream.get(anAppearance.getCOSObject());
+
+        if (null != oldKey) {
+            result = getTemplate(oldKey.style, oldKey.width, oldKey.height, newContents);
+        }
+
+        return result;
+    }
+
+    /**
+     * Marks anAnnotation as needing an appearance with the specified style
+     * and size. The appearance is created by a later call to
+     * generateStaleAppearances() and displays the annotation's contents at
+     * that time.
+     *
+     * @param anAnnotation An annotation without an appearance
+     * @param aStyle The style of the annotation
+     * @param width The width of the appearance
+     * @param height The height of the appearance
+     */
+    public static void markStale(PDAnnotation anAnnotation, Style aStyle, float width, float height) {
+        assert null != anAnnotation && null != aStyle;
+
+        COSArray mark = new COSArray();
+        mark.add(COSName.getPDFName(aStyle.name()));
+        mark.add(new COSFloat(width));
+        mark.add(new COSFloat(height));
+        anAnnotation.getCOSObject().setItem(STALE_APPEARANCE, mark);
+    }
+
+    /**
+     *
+     * @param anAnnotation An annotation
+     * @return true if and only if anAnnotation was marked by markStale() and
+     * has not had its appearance generated yet.
+     */
+    public static boolean isStale(PDAnnotation anAnnotation) {
+        return anAnnotation.getCOSObject().containsKey(STALE_APPEARANCE);
+    }
+
+    /**
+     * Gives every stale annotation in someAnnotations its appearance and
+     * removes the stale mark. Annotations that look the same share one
+     * template, so the cost is paid once per distinct appearance rather than
+     * once per annotation. An annotation whose appearance can not be
+     * generated is logged and skipped, and the rest are still generated.
+     *
+     * @param someAnnotations The annotation array of a page
+     * @return The number of appearances generated
+     */
+    public int generateStaleAppearances(COSArray someAnnotations) {
+        int result = 0;
+
+        for (int i = 0; i < someAnnotations.size(); ++i) {
+            COSBase candidate = someAnnotations.getObject(i);
+            if (candidate instanceof COSDictionary
+                    && ((COSDictionary) candidate).containsKey(STALE_APPEARANCE)) {
+                try {
+                    generateStaleAppearance((COSDictionary) candidate);
+                    ++result;
+                } catch (IOException ex) {
+                    Logger.getLogger(AppearanceTemplateCache.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Replaces the stale mark of anAnnotation with an appearance. The mark is
+     * removed only after the appearance has been set, so an annotation whose
+     * template could not be created is still stale and is tried again next
+     * time. A malformed mark can never succeed and is removed.
+     *
+     * @throws IOException If the mark is malformed or the template could not
+     * be created
+     */
+    private void generateStaleAppearance(COSDictionary anAnnotation) throws IOException {
+        COSBase markBase = anAnnotation.getDictionaryObject(STALE_APPEARANCE);
+        Style style;
+        float width;
+        float height;
+
+        try {
+            COSArray mark = (COSArray) markBase;
+            if (3 != mark.size()) {
+                throw new IllegalArgumentException("Expected 3 elements.");
+            }
+            style = Style.valueOf(mark.getName(0));
+            width = ((COSNumber) mark.getObject(1)).floatValue();
+            height = ((COSNumber) mark.getObject(2)).floatValue();
+        } catch (IllegalArgumentException | NullPointerException | ClassCastException ex) {
+            anAnnotation.removeItem(STALE_APPEARANCE);
+            throw new IOException("Malformed stale appearance mark.", ex);
+        }
+
+        PDAppearanceDictionary appearance = new PDAppearanceDictionary();
+        appearance.setNormalAppearance(getTemplate(style, width, height,
+                anAnnotation.getString(COSName.CONTENTS)));
+        anAnnotation.setItem(COSName.AP, appearance);
+        anAnnotation.removeItem(STALE_APPEARANCE);
+    }
+
+    /**
+     * Creates a new appearance stream for aKey. The bounding box extends
+     * beyond the annotation by half the border width so that borders are not
+     * clipped.
+     */
+    private PDAppearanceStream makeTemplate(Key aKey) throws IOException {
+        PDDocument owner = document.get();
+        if (null == owner) {
+            throw new IOException("The document of this appearance template cache was closed.");
+        }
+        PDAppearanceStream result = new PDAppearanceStream(owner);
+        float inset = BORDER_WIDTH * 0.5f;
+
+        result.setBBox(new PDRectangle(-inset, -inset, aKey.width + BORDER_WIDTH, aKey.height + BORDER_WIDTH));
+        result.setMatrix(new AffineTransform());
+        result.setResources(sharedResources);
+
+        try (PDPageContentStream content = new PDPageContentStream(owner, result)) {
+            aKey.style.draw(content, aKey.width, aKey.height, aKey.contents);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import airviewer.AbstractDocumentCommandWrapper.AbstractDocumentCommand;
+
+/**
+ * Instances of this class implement the Undo and Redo stacks used by
+ * AbstractDocumentCommandWrapper. The most recent Commands are kept in memory.
+ * When the number of Commands in memory or their estimated size exceeds a
+ * budget, the oldest Commands are written to a temporary file in a compressed
+ * form and are only read back if undo or redo reaches them. This keeps the heap
+ * used by a long editing session bounded while preserving unlimited undo.
+ *
+ * Commands that can not be written (see
+ * AbstractDocumentCommand.getRestoreName()) can not be moved out of memory. If
+ * such a Command falls out of the budget, it is discarded together with every
+ * older Command because undo can not skip over it.
+ */
+public class CommandHistory {
+
+    /**
+     * The default maximum number of Commands kept in memory.
+     */
+    public static final int DEFAULT_MAX_RESIDENT_COMMANDS = 100;
+
+    /**
+     * The default maximum estimated size in bytes of the Commands kept in
+     * memory.
+     */
+    public static final long DEFAULT_MAX_RESIDENT_BYTES = 16L * 1024L * 1024L;
+
+    /**
+     * The owner reads and writes Commands on behalf of this history.
+     */
+    private final AbstractDocumentCommandWrapper owner;
+
+    /**
+     * Commands kept in memory ordered from oldest to newest.
+     */
+    private final List<AbstractDocumentCommand> residentCommands;
+
+    /**
+     * The estimated size of each element of residentCommands.
+     */
+    private final List<Long> residentSizes;
+
+    /**
+     * The file offset of each Command written to spillFile ordered from oldest
+     * to newest. All of them are older than any of residentCommands.
+     */
+    private final List<Long> spilledOffsets;
+
+    /**
+     * The undo name of each Command written to spillFile so that menu titles
+     * do not require reading the file.
+     */
+    private final List<String> spilledUndoNames;
+
+    private int maxResidentCommands;
+    private long maxResidentBytes;
+    private long residentBytes;
+    private File spillPath;
+    private RandomAccessFile spillFile;
+
+    /**
+     * Constructor:
+     *
+     * @param anOwner The wrapper whose Commands are stored
+     */
+    public CommandHistory(AbstractDocumentCommandWrapper anOwner) {
+        assert null != anOwner;
+
+        owner = anOwner;
+        residentCommands = new ArrayList<>();
+        residentSizes = new ArrayList<>();
+        spilledOffsets = new ArrayList<>();
+        spilledUndoNames = new ArrayList<>();
+        maxResidentCommands = DEFAULT_MAX_RESIDENT_COMMANDS;
+        maxResidentBytes = DEFAULT_MAX_RESIDENT_BYTES;
+    }
+
+    /**
+     * Set the budget for Commands kept in memory. Older Commands are moved to
+     * disk as soon as either limit is exceeded.
+     *
+     * @param aMaxCommands The maximum number of Commands in memory (at least 1)
+     * @param aMaxBytes The maximum estimated size in bytes of the Commands in
+     * memory
+     */
+    public void setBudget(int aMaxCommands, long aMaxBytes) {
+        assert 0 < aMaxCommands;
+
+        maxResidentCommands = Math.max(1, aMaxCommands);
+        maxResidentBytes = aMaxBytes;
+        enforceBudget();
+    }
+
+    /**
+     *
+     * @return The number of Commands stored in memory and on disk
+     */
+    public int size() {
+        return residentCommands.size() + spilledOffsets.size();
+    }
+
+    /**
+     *
+     * @return The number of Commands stored in memory
+     */
+    public int getResidentCount() {
+        return residentCommands.size();
+    }
+
+    /**
+     *
+     * @return The estimated size in bytes of the Commands stored in memory
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     *
+     * @return The undo name of the most recent Command or "" if there is none
+     */
+    public String peekUndoName() {
+        String result = "";
+
+        if (0 < residentCommands.size()) {
+            result = residentCommands.get(residentCommands.size() - 1).getUndoName();
+        } else if (0 < spilledUndoNames.size()) {
+            result = spilledUndoNames.get(spilledUndoNames.size() - 1);
+        }
+
+        return result;
+    }
+
+    /**
+     * Stores aCommand as the most recent Command and moves older Commands to
+     * disk if the budget is exceeded.
+     *
+     * @param aCommand The Command to store
+     */
+    public void push(AbstractDocumentCommand aCommand) {
+        assert null != aCommand;
+
+        long estimatedSize = owner.estimateCommandSize(aCommand);
+        residentCommands.add(aCommand);
+        residentSizes.add(estimatedSize);
+        residentBytes += estimatedSize;
+        enforceBudget();
+    }
+
+    /**
+     * Removes and returns the most recent Command reading it back from disk
+     * if necessary.
+     *
+     * @return The most recent Command or null if there is none or it could not
+     * be read.
+     */
+    public AbstractDocumentCommand pop() {
+        AbstractDocumentCommand result = null;
+
+        if (0 < residentCommands.size()) {
+            int last = residentCommands.size() - 1;
+            residentBytes -= residentSizes.remove(last);
+            result = residentCommands.remove(last);
+        } else if (0 < spilledOffsets.size()) {
+            result = readSpilled();
+        }
+
+        return result;
+    }
+
+    /**
+     * Removes all Commands and deletes the temporary file if any.
+     */
+    public void clear() {
+        residentCommands.clear();
+        residentSizes.clear();
+        residentBytes = 0;
+        discardSpilled();
+    }
+
+    /**
+     * Moves the oldest resident Commands to disk until the budget is met. The
+     * most recent Command always stays in memory.
+     */
+    private void enforceBudget() {
+        while (1 < residentCommands.size()
+                && (residentCommands.size() > maxResidentCommands || residentBytes > maxResidentBytes)) {
+            AbstractDocumentCommand oldest = residentCommands.remove(0);
+            residentBytes -= residentSizes.remove(0);
+
+            if (!writeSpilled(oldest)) {
+                // Undo can not skip a Command, so everything older goes too
+                discardSpilled();
+            }
+        }
+    }
+
+    /**
+     * Appends aCommand to the temporary file.
+     *
+     * @param aCommand The Command to write
+     * @return true if aCommand was written and false otherwise.
+     */
+    private boolean writeSpilled(AbstractDocumentCommand aCommand) {
+        boolean result = false;
+
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(buffer))) {
+                result = owner.writeCommand(out, aCommand);
+            }
+
+            if (result) {
+                if (null == spillFile) {
+                    spillPath = File.createTempFile("airviewer-history", ".bin");
+                    spillPath.deleteOnExit();
+                    spillFile = new RandomAccessFile(spillPath, "rw");
+                }
+                long offset = spillFile.length();
+                spillFile.seek(offset);
+                spillFile.writeInt(buffer.size());
+                spillFile.write(buffer.toByteArray());
+                spilledOffsets.add(offset);
+                spilledUndoNames.add(aCommand.getUndoName());
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CommandHistory.class.getName()).log(Level.SEVERE,
+                    "Unable to write undo history.", ex);
+            result = false;
+        }
+
+        return result;
+    }
+
+    /**
+     * Removes the most recent Command from the temporary file and returns it.
+     *
+     * @return The Command read or null if it could not be read.
+     */
+    private AbstractDocumentCommand readSpilled() {
+        AbstractDocumentCommand result = null;
+        int last = spilledOffsets.size() - 1;
+        long offset = spilledOffsets.remove(last);
+        spilledUndoNames.remove(last);
+
+        try {
+            spillFile.seek(offset);
+            byte[] bytes = new byte[spillFile.readInt()];
+            spillFile.readFully(bytes);
+            spillFile.setLength(offset);
+
+            try (DataInputStream in = new DataInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+                result = owner.readCommand(in);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CommandHistory.class.getName()).log(Level.SEVERE,
+                    "Unable to read undo history.", ex);
+            discardSpilled();
+        }
+
+        return result;
+    }
+
+    /**
+     * Forgets every Command on disk and deletes the temporary file.
+     */
+    private void discardSpilled() {
+        spilledOffsets.clear();
+        spilledUndoNames.clear();
+
+        if (null != spillFile) {
+            try {
+                spillFile.close();
+            } catch (IOException ex) {
+                Logger.getLogger(CommandHistory.class.getName()).log(Level.WARNING, null, ex);
+            }
+            if (!spillPath.delete()) {
+                spillPath.deleteOnExit();
+            }
+            spillFile = null;
+            spillPath = null;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Instances of this class own one model and run all work that changes it on
+ * a single dedicated writer thread, so slow work such as saving or bulk
+ * imports does not block the thread that submits it. Writes run one at a
+ * time in submission order. Queries that only read the model may run in
+ * parallel with each other on pooled reader threads or synchronously on the
+ * calling thread. A read-write lock keeps queries from running while a write
+ * is in progress.
+ *
+ * Results are delivered as CompletableFutures completed on the thread that
+ * did the work. DocumentChangeListeners of the model are notified on the
+ * writer thread. Use FXCommandAdapter to continue on the JavaFx application
+ * thread.
+ *
+ * Many methods of the model that look like queries change it: e.g. getImage()
+ * generates stale appearances and hit testing builds spatial indexes. Submit
+ * those with submit(). PDFBox does not support concurrent access to one
+ * document, so queries should read only state that the model has already
+ * loaded, such as undo titles and the selection. Readers that only need the
+ * annotations can use getAnnotationSnapshot() from any thread without any
+ * lock once it has been called on the writer thread, e.g. with query().
+ *
+ * @param <M> The type of the model
+ */
+public class DocumentCommandExecutor<M extends AbstractDocumentCommandWrapper> {
+
+    /**
+     * This is the interface that work done with the model must implement.
+     *
+     * @param <M> The type of the model
+     * @param <T> The type of the result
+     */
+    public interface ModelTask<M, T> {
+
+        /**
+         *
+         * @param aModel The model. It must not be used after run() returns.
+         * @return Any result
+         * @throws IOException If the task fails
+         */
+        T run(M aModel) throws IOException;
+    }
+
+    private final M model;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ExecutorService writer;
+    private final ExecutorService readers;
+
+    /**
+     * Constructor: The caller must not use aModel directly afterwards.
+     *
+     * @param aModel The model to own
+     */
+    public DocumentCommandExecutor(M aModel) {
+        assert null != aModel;
+
+        model = aModel;
+        writer = Executors.newSingleThreadExecutor(daemonThreadFactory("AIRViewer writer"));
+        readers = Executors.newCachedThreadPool(daemonThreadFactory("AIRViewer reader"));
+    }
+
+    private static ThreadFactory daemonThreadFactory(String aName) {
+        return (Runnable aRunnable) -> {
+            Thread result = new Thread(aRunnable, aName);
+            result.setDaemon(true);
+            return result;
+        };
+    }
+
+    /**
+     * Submits aTask to run on the writer thread after every write submitted
+     * before it. Do not wait for the result on the writer thread.
+     *
+     * @param <T> The type of the result
+     * @param aTask Work that may change the model
+     * @return The result of aTask. It completes exceptionally with any
+     * exception or error thrown by aTask.
+     */
+    public <T> CompletableFuture<T> submit(ModelTask<M, T> aTask) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        writer.execute(() -> {
+            lock.writeLock().lock();
+            try {
+                result.complete(aTask.run(model));
+            } catch (Throwable ex) {
+                // Including Errors, so that no one waits forever
+                result.completeExceptionally(ex);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Executes a Command on the writer thread. See
+     * AbstractDocumentCommandWrapper.executeDocumentCommandWithNameAndArgs().
+     *
+     * @param aName The name of a registered Command factory
+     * @param args The arguments of the Command
+     * @return true if the Command succeeded and false otherwise.
+     */
+    public CompletableFuture<Boolean> execute(String aName, String... args) {
+        return submit((M aModel) -> aModel.executeDocumentCommandWithNameAndArgs(aName, args));
+    }
+
+    /**
+     * Undoes the most recent change on the writer thread.
+     *
+     * @return true if anything was undone and false otherwise.
+     */
+    public CompletableFuture<Boolean> undo() {
+        return submit((M aModel) -> aModel.undo());
+    }
+
+    /**
+     * Redoes the most recently undone change on the writer thread.
+     *
+     * @return true if anything was redone and false otherwise.
+     */
+    public CompletableFuture<Boolean> redo() {
+        return submit((M aModel) -> aModel.redo());
+    }
+
+    /**
+     * Submits aTask to run on a reader thread as soon as no write is in
+     * progress. Queries run in parallel with each other.
+     *
+     * @param <T> The type of the result
+     * @param aTask Work that only reads the model
+     * @return The result of aTask. It completes exceptionally with any
+     * exception or error thrown by aTask.
+     */
+    public <T> CompletableFuture<T> query(ModelTask<M, T> aTask) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        readers.execute(() -> {
+            lock.readLock().lock();
+            try {
+                result.complete(aTask.run(model));
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Runs aTask on the calling thread as soon as no write is in progress.
+     * Use this for quick queries whose result is needed immediately, e.g. to
+     * update the user interface.
+     *
+     * @param <T> The type of the result
+     * @param aTask Work that only reads the model
+     * @return The result of aTask
+     * @throws UncheckedIOException If aTask throws an IOException
+     */
+    public <T> T read(ModelTask<M, T> aTask) {
+        lock.readLock().lock();
+        try {
+            return aTask.run(model);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops accepting work. Work already submitted still runs. The model is
+     * not closed.
+     */
+    public void shutdown() {
+        writer.shutdown();
+        readers.shutdown();
+    }
+}
@@ -21,11 +21,21 @@ package airviewer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import static java.lang.Float.parseFloat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
@@ -36,6 +46,10 @@ import java.nio.file.StandardOpenOption;
 import org.apache.pdfbox.text.PDFTextStripper;
 import java.nio.charset.Charset;
 import static java.lang.Integer.parseInt;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.IntStream;
 
 /**
  *
@@ -43,6 +57,13 @@ import static java.lang.Integer.parseInt;
  */
 public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
 
+    /**
+     * The names of the Commands whose first argument is a file system path
+     * that they read or write
+     */
+    public static final List<String> FILE_COMMAND_NAMES = Collections.unmodifiableList(
+            Arrays.asList("Save", "SaveText", "ImportAnnotations"));
+
     /**
      *
      */
@@ -68,6 +89,13 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
         AbstractDocumentCommandWrapper.registerCommandFactoryWithName((AbstractDocumentCommandWrapper owner, ArrayList<String> args) -> new AddTextAnnotationDocumentCommand(owner, args), "AddTextAnnotation");
         AbstractDocumentCommandWrapper.registerCommandFactoryWithName((AbstractDocumentCommandWrapper owner, ArrayList<String> args) -> new MoveAnnotationDocumentCommand(owner, args), "MoveAnnotation");
         AbstractDocumentCommandWrapper.registerCommandFactoryWithName((AbstractDocumentCommandWrapper owner, ArrayList<String> args) -> new DeleteAnnotationDocumentCommand(owner, args), "DeleteAnnotation");
+        AbstractDocumentCommandWrapper.registerCommandFactoryWithName((AbstractDocumentCommandWrapper owner, ArrayList<String> args) -> new ReplaceAnnotationTextDocumentCommand(owner, args), "ReplaceAnnotationText");
+        AbstractDocumentCommandWrapper.registerCommandFactoryWithName((AbstractDocumentCommandWrapper owner, ArrayList<String> args) -> new ImportAnnotationsDocumentCommand(owner, args), "ImportAnnotations");
+
+        AbstractDocumentCommandWrapper.registerRestoreFactoryWithName((AbstractDocumentCommandWrapper owner, List<PDAnnotation> annotations, ArrayList<String> args, int[] indices) -> new InsertAnnotationsDocumentCommand(owner, annotations, indices, args), "InsertAnnotations");
+        AbstractDocumentCommandWrapper.registerRestoreFactoryWithName((AbstractDocumentCommandWrapper owner, List<PDAnnotation> annotations, ArrayList<String> args, int[] indices) -> new RemoveAnnotationsDocumentCommand(owner, annotations, indices, args), "RemoveAnnotations");
+        AbstractDocumentCommandWrapper.registerRestoreFactoryWithName((AbstractDocumentCommandWrapper owner, List<PDAnnotation> annotations, ArrayList<String> args, int[] indices) -> new MoveAnnotationDocumentCommand(owner, annotations, args), "MoveAnnotation");
+        AbstractDocumentCommandWrapper.registerRestoreFactoryWithName((AbstractDocumentCommandWrapper owner, List<PDAnnotation> annotations, ArrayList<String> args, int[] indices) -> new SetAnnotationContentsDocumentCommand(owner, annotations, args), "SetAnnotationContents");
     }
 
     /**
@@ -94,11 +122,94 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
 
         if (null != document) {
             result = new DocumentCommandWrapper(document, aPath);
+            result.documentWasSavedIn(new File(aPath));
+        }
+
+        return result;
+    }
+
+    /**
+     * Appends anAnnotation to the end of the annotation array of the page
+     * identified by the first of args.
+     *
+     * @param anAnnotation The annotation to append
+     * @param args A list of String arguments whose first element is a page
+     * index
+     * @return A Command that removes anAnnotation again or null if the page
+     * index is not valid.
+     */
+    protected AbstractDocumentCommand appendAnnotationOnPage(PDAnnotation anAnnotation, ArrayList<String> args) {
+        assert null != anAnnotation;
+        assert null != args && 0 < args.size();
+
+        AbstractDocumentCommand result = null;
+
+        try {
+            int pageNumber = parseInt(args.get(0));
+            int index = getAnnotationArrayOnPage(pageNumber).size();
+
+            result = new InsertAnnotationsDocumentCommand(this,
+                    Collections.singletonList(anAnnotation), new int[]{index}, args).execute();
+        } catch (NumberFormatException ex) {
+            System.err.println("Non number encountered where integer page index expected.");
+        }
+
+        return result;
+    }
+
+    /**
+     * Removes someVictims from the annotation array of the page with
+     * pageIndex. Victims that are not on the page are ignored.
+     *
+     * @param pageIndex Must be pageIndex >= 0 && pageIndex < getPageCount()
+     * @param someVictims The annotations to remove in any order
+     * @param args A list of String arguments whose first element is pageIndex
+     * @return A Command that inserts the removed annotations at their previous
+     * positions or null if none of someVictims was found on the page.
+     */
+    protected AbstractDocumentCommand removeAnnotationsOnPage(int pageIndex, List<PDAnnotation> someVictims, ArrayList<String> args) {
+        assert null != someVictims;
+
+        COSArray pageAnnotations = getAnnotationArrayOnPage(pageIndex);
+        IdentityHashMap<COSBase, PDAnnotation> victimsByDictionary = mapByDictionary(someVictims);
+        List<PDAnnotation> removed = new ArrayList<>(victimsByDictionary.size());
+        int[] indices = new int[victimsByDictionary.size()];
+
+        // One pass finds every victim's index in ascending order
+        for (int i = 0; i < pageAnnotations.size() && removed.size() < indices.length; ++i) {
+            PDAnnotation victim = victimsByDictionary.remove(pageAnnotations.getObject(i));
+            if (null != victim) {
+                indices[removed.size()] = i;
+                removed.add(victim);
+            }
+        }
+
+        AbstractDocumentCommand result = null;
+
+        if (0 < removed.size()) {
+            result = new RemoveAnnotationsDocumentCommand(this, removed,
+                    Arrays.copyOf(indices, removed.size()), args).execute();
         }
 
         return result;
     }
 
+    /**
+     *
+     * @param someAnnotations A list of annotations
+     * @return A map from the PDF dictionary of each of someAnnotations to the
+     * annotation. Keys are compared by identity.
+     */
+    protected static IdentityHashMap<COSBase, PDAnnotation> mapByDictionary(List<PDAnnotation> someAnnotations) {
+        IdentityHashMap<COSBase, PDAnnotation> result = new IdentityHashMap<>(someAnnotations.size());
+
+        someAnnotations.stream().forEach((a) -> {
+            result.put(a.getCOSObject(), a);
+        });
+
+        return result;
+    }
+
     /**
      * Instances of this class encapsulate commands to annotate PDF documents by
      * adding boxes. Boxes are rectangular regions of color on a page.
@@ -127,9 +238,9 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
             AbstractDocumentCommand result = null;
 
             if (arguments.size() == 5) {
-                List<PDAnnotation> previousAnnotations = BoxAnnotationMaker.make(owner.wrappedDocument, arguments);
-                if (null != previousAnnotations) {
-                    result = new ReplaceAnnotationDocumentCommand(owner, previousAnnotations, arguments);
+                PDAnnotation newAnnotation = BoxAnnotationMaker.make(owner.wrappedDocument, arguments);
+                if (null != newAnnotation) {
+                    result = appendAnnotationOnPage(newAnnotation, arguments);
                 }
             } else {
                 System.err.printf("<%s> Expected 5 arguments but received %d.%n",
@@ -180,9 +291,9 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
             AbstractDocumentCommand result = null;
 
             if (arguments.size() == 6) {
-                List<PDAnnotation> previousAnnotations = EllipseAnnotationMaker.make(owner.wrappedDocument, arguments);
-                if (null != previousAnnotations) {
-                    result = new ReplaceAnnotationDocumentCommand(owner, previousAnnotations, arguments);
+                PDAnnotation newAnnotation = EllipseAnnotationMaker.make(owner.wrappedDocument, arguments);
+                if (null != newAnnotation) {
+                    result = appendAnnotationOnPage(newAnnotation, arguments);
                 }
             } else {
                 System.err.printf("<%s> Expected 6 arguments but received %d.%n",
@@ -232,9 +343,9 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
             AbstractDocumentCommand result = null;
 
             if (arguments.size() == 4) {
-                List<PDAnnotation> previousAnnotations = TextAnnotationMaker.make(owner.wrappedDocument, arguments);
-                if (null != previousAnnotations) {
-                    result = new ReplaceAnnotationDocumentCommand(owner, previousAnnotations, arguments);
+                PDAnnotation newAnnotation = TextAnnotationMaker.make(owner.wrappedDocument, arguments);
+                if (null != newAnnotation) {
+                    result = appendAnnotationOnPage(newAnnotation, arguments);
                 }
             } else {
                 System.err.printf("<%s> Expected 4 arguments but received %d.%n",
@@ -290,22 +401,14 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
                     float x = parseFloat(arguments.get(1));
                     float y = parseFloat(arguments.get(2));
 
-                    PDPage page = owner.wrappedDocument.getPage(pageNumber);
-
-                    List<PDAnnotation> oldAnnotations = page.getAnnotations();
-                    PDAnnotation victim = owner.getLastAnnotationAtPoint(oldAnnotations, x, y);
+                    PDAnnotation victim = owner.getLastAnnotationOnPageAtPoint(pageNumber, x, y);
                     if (null != victim) {
-                        result = new ReplaceAnnotationDocumentCommand(owner, new ArrayList<>(oldAnnotations), arguments);
-                        oldAnnotations.remove(victim);
-                        page.setAnnotations(oldAnnotations);
+                        result = removeAnnotationsOnPage(pageNumber,
+                                Collections.singletonList(victim), arguments);
                     }
                 } catch (NumberFormatException ex) {
                     System.err.println("Non number encountered where floating point number expected.");
                     result = null;
-
-                } catch (IOException ex) {
-                    Logger.getLogger(DocumentCommandWrapper.class.getName()).log(Level.SEVERE, null, ex);
-                    result = null;
                 }
             } else {
                 System.err.printf("<%s> Expected 3 arguments but received %d.%n",
@@ -374,14 +477,8 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
                     float dy = parseFloat(arguments.get(4));
 
                     if (null == annotations || 0 == annotations.size()) {
-                        try {
-                            // We have to find the annotation to move
-                            PDPage page = owner.wrappedDocument.getPage(pageNumber);
-                            List<PDAnnotation> oldAnnotations = page.getAnnotations();
-                            candidate = owner.getLastAnnotationAtPoint(oldAnnotations, x, y);
-                        } catch (IOException ex) {
-                            Logger.getLogger(DocumentCommandWrapper.class.getName()).log(Level.SEVERE, null, ex);
-                        }
+                        // We have to find the annotation to move
+                        candidate = owner.getLastAnnotationOnPageAtPoint(pageNumber, x, y);
                     } else {
                         // We can just delete annotation
                         candidate = annotations.get(0);
@@ -402,6 +499,7 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
                         position.setUpperRightX(position.getUpperRightX() + dx);
                         position.setUpperRightY(position.getUpperRightY() + dy);
                         candidate.setRectangle(position);
+                        owner.annotationWasMovedOnPage(pageNumber, candidate);
                     }
                 } catch (NumberFormatException ex) {
                     System.err.println("Non number encountered where floating point number expected.");
@@ -425,22 +523,379 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
             return "Move Annotation";
         }
 
+        @Override
+        public String getRestoreName() {
+            return (null == annotations) ? null : "MoveAnnotation";
+        }
+
     }
 
     /**
-     * Instances of this class encapsulate commands to annotate PDF documents by
-     * replacing an existing annotation.
+     * Instances of this class encapsulate commands to replace text in the
+     * contents of every annotation in the document. The arguments are a
+     * regular expression and a replacement as accepted by
+     * Matcher.replaceAll().
+     *
+     * The contents of all annotations are read first, then matched in
+     * parallel, and finally the matching annotations and their appearances
+     * are changed one at a time because PDFBox objects are not thread safe.
+     * Undoing the command restores every changed annotation at once.
+     */
+    public class ReplaceAnnotationTextDocumentCommand extends AbstractDocumentCommand {
+
+        /**
+         *
+         * @param anOwner
+         * @param args (pattern, replacement)
+         */
+        public ReplaceAnnotationTextDocumentCommand(AbstractDocumentCommandWrapper anOwner, ArrayList<String> args) {
+            super(anOwner, args);
+        }
+
+        /**
+         *
+         * @return If execute() succeeds, a Command that is the reciprocal of
+         * the receiver is returned. Otherwise, null is returned. Nothing is
+         * changed and null is returned if no annotation matches.
+         */
+        @Override
+        public AbstractDocumentCommand execute() {
+            assert null != owner;
+            assert null != arguments;
+
+            AbstractDocumentCommand result = null;
+
+            if (2 == arguments.size()) {
+                try {
+                    Pattern pattern = Pattern.compile(arguments.get(0));
+                    String replacement = arguments.get(1);
+
+                    // Read sequentially
+                    List<COSDictionary> dictionaries = new ArrayList<>();
+                    List<Integer> pageIndices = new ArrayList<>();
+                    List<String> oldContents = new ArrayList<>();
+                    int pageIndex = 0;
+                    for (PDPage page : owner.wrappedDocument.getPages()) {
+                        COSBase annotationsBase = page.getCOSObject().getDictionaryObject(COSName.ANNOTS);
+                        if (annotationsBase instanceof COSArray) {
+                            COSArray pageAnnotations = (COSArray) annotationsBase;
+                            for (int i = 0; i < pageAnnotations.size(); ++i) {
+                                COSBase candidate = pageAnnotations.getObject(i);
+                                if (candidate instanceof COSDictionary) {
+                                    String contents = ((COSDictionary) candidate).getString(COSName.CONTENTS);
+                                    if (null != contents) {
+                                        dictionaries.add((COSDictionary) candidate);
+                                        pageIndices.add(pageIndex);
+                                        oldContents.add(contents);
+                                    }
+                                }
+                            }
+                        }
+                        ++pageIndex;
+                    }
+
+                    // Match in parallel. Unchanged contents map to null.
+                    String[] newContents = new String[oldContents.size()];
+                    IntStream.range(0, newContents.length).parallel().forEach((i) -> {
+                        Matcher matcher = pattern.matcher(oldContents.get(i));
+                        if (matcher.find()) {
+                            String replaced = matcher.replaceAll(replacement);
+                            if (!replaced.equals(oldContents.get(i))) {
+                                newContents[i] = replaced;
+                            }
+                        }
+                    });
+
+                    // Change sequentially
+                    List<PDAnnotation> changedAnnotations = new ArrayList<>();
+                    ArrayList<String> previousContents = new ArrayList<>();
+                    for (int i = 0; i < newContents.length; ++i) {
+                        if (null != newContents[i]) {
+                            PDAnnotation annotation = PDAnnotation.createAnnotation(dictionaries.get(i));
+                            annotation.setContents(newContents[i]);
+                            TextInAnnotationReplacer.replaceText(owner.wrappedDocument,
+                                    annotation, oldContents.get(i), newContents[i]);
+                            owner.annotationRegistry.register(dictionaries.get(i), pageIndices.get(i), false);
+                            owner.annotationWasEdited(annotation);
+                            changedAnnotations.add(annotation);
+                            previousContents.add(oldContents.get(i));
+                        }
+                    }
+
+                    if (0 < changedAnnotations.size()) {
+                        result = new SetAnnotationContentsDocumentCommand(owner, changedAnnotations, previousContents);
+                    }
+                } catch (PatternSyntaxException ex) {
+                    System.err.printf("<%s> Invalid pattern: %s%n", getName(), ex.getDescription());
+                } catch (IndexOutOfBoundsException ex) {
+                    System.err.printf("<%s> Invalid replacement: %s%n", getName(), ex.getMessage());
+                } catch (IOException ex) {
+                    Logger.getLogger(DocumentCommandWrapper.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            } else {
+                System.err.printf("<%s> Expected 2 arguments but received %d.%n",
+                        getName(), arguments.size());
+            }
+
+            return result;
+        }
+
+        /**
+         *
+         * @return The name of the command as it will appear in a user interface
+         * for undo and redo operations e.g. "Undo Delete Annotation" where the
+         * string after "Undo " is returned from getName().
+         */
+        @Override
+        public String getName() {
+            return "Replace Annotation Text";
+        }
+
+    }
+
+    /**
+     * Instances of this class encapsulate commands to add the annotations
+     * described by the records of a CSV or JSON file (see
+     * AnnotationRecordReader). The argument is the path of the file. Records
+     * have a type (box, ellipse or circle, or text), a page index, x and y
+     * coordinates, and depending on the type a width, height, and contents.
+     *
+     * Records are read one at a time and grouped by page. The annotations of
+     * each page are then appended to the page's annotation array at once, and
+     * undoing the command removes all of them at once. Nothing is added if the
+     * file can not be read. Records that do not describe a valid annotation
+     * are reported and skipped.
+     */
+    public class ImportAnnotationsDocumentCommand extends AbstractDocumentCommand {
+
+        /**
+         *
+         * @param anOwner
+         * @param args (path)
+         */
+        public ImportAnnotationsDocumentCommand(AbstractDocumentCommandWrapper anOwner, ArrayList<String> args) {
+            super(anOwner, args);
+        }
+
+        /**
+         *
+         * @return If execute() succeeds, a Command that is the reciprocal of
+         * the receiver is returned. Otherwise, null is returned.
+         */
+        @Override
+        public AbstractDocumentCommand execute() {
+            assert null != owner;
+            assert null != arguments;
+
+            AbstractDocumentCommand result = null;
+
+            if (1 == arguments.size()) {
+                String path = arguments.get(0);
+                TreeMap<Integer, List<PDAnnotation>> annotationsByPage = new TreeMap<>();
+                int[] recordCount = {0};
+
+                try (Reader in = Files.newBufferedReader(Paths.get(path), Charset.forName("UTF-8"))) {
+                    AnnotationRecordReader.read(in, AnnotationRecordReader.formatForFileName(path), (record) -> {
+                        ++recordCount[0];
+                        PDAnnotation annotation = makeAnnotation(record);
+                        if (null != annotation) {
+                            int pageNumber = parseInt(record.get("page").trim());
+                            annotationsByPage.computeIfAbsent(pageNumber, (k) -> new ArrayList<>()).add(annotation);
+                        } else {
+                            System.err.printf("<%s> Skipping invalid record %d: %s%n",
+                                    getName(), recordCount[0], record);
+                        }
+                    });
+                } catch (IOException ex) {
+                    System.err.printf("<%s> Unable to import <%s>: %s%n", getName(), path, ex.getMessage());
+                    annotationsByPage.clear();
+                }
+
+                List<AbstractDocumentCommand> reciprocals = new ArrayList<>();
+                annotationsByPage.forEach((pageNumber, pageAnnotations) -> {
+                    int oldSize = owner.getAnnotationArrayOnPage(pageNumber).size();
+                    int[] newIndices = new int[pageAnnotations.size()];
+                    for (int i = 0; i < newIndices.length; ++i) {
+                        newIndices[i] = oldSize + i;
+                    }
+                    ArrayList<String> pageArgs = new ArrayList<>();
+                    pageArgs.add(Integer.toString(pageNumber));
+                    reciprocals.add(new InsertAnnotationsDocumentCommand(owner,
+                            pageAnnotations, newIndices, pageArgs).execute());
+                });
+
+                if (1 == reciprocals.size()) {
+                    result = reciprocals.get(0);
+                } else if (1 < reciprocals.size()) {
+                    result = new CompositeDocumentCommand(owner, reciprocals);
+                }
+            } else {
+                System.err.printf("<%s> Expected 1 argument but received %d.%n",
+                        getName(), arguments.size());
+            }
+
+            return result;
+        }
+
+        /**
+         *
+         * @param aRecord A record read by AnnotationRecordReader
+         * @return The annotation described by aRecord or null if aRecord is
+         * not valid
+         */
+        private PDAnnotation makeAnnotation(Map<String, String> aRecord) {
+            PDAnnotation result = null;
+            String type = aRecord.get("type");
+            String page = aRecord.get("page");
+            String contents = aRecord.getOrDefault("contents", "");
+
+            try {
+                int pageNumber = (null == page) ? -1 : parseInt(page.trim());
+
+                if (null != type && 0 <= pageNumber && pageNumber < owner.getPageCount()) {
+                    ArrayList<String> makerArgs = new ArrayList<>();
+                    makerArgs.add(Integer.toString(pageNumber));
+                    makerArgs.add(aRecord.get("x"));
+                    makerArgs.add(aRecord.get("y"));
+
+                    switch (type.trim().toLowerCase()) {
+                        case "box":
+                            makerArgs.add(aRecord.get("width"));
+                            makerArgs.add(aRecord.get("height"));
+                            result = BoxAnnotationMaker.make(owner.wrappedDocument, makerArgs);
+                            if (null != result && null != contents) {
+                                // The appearance is generated from /Contents later
+                                result.setContents(contents);
+                            }
+                            break;
+                        case "ellipse":
+                        case "circle":
+                            makerArgs.add(aRecord.get("width"));
+                            makerArgs.add(aRecord.get("height"));
+                            makerArgs.add((null == contents) ? "" : contents);
+                            result = EllipseAnnotationMaker.make(owner.wrappedDocument, makerArgs);
+                            break;
+                        case "text":
+                            makerArgs.add((null == contents) ? "" : contents);
+                            result = TextAnnotationMaker.make(owner.wrappedDocument, makerArgs);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                result = null;
+            }
+
+            return result;
+        }
+
+        /**
+         *
+         * @return The name of the command as it will appear in a user interface
+         * for undo and redo operations e.g. "Undo Delete Annotation" where the
+         * string after "Undo " is returned from getName().
+         */
+        @Override
+        public String getName() {
+            return "Import Annotations";
+        }
+
+    }
+
+    /**
+     * Instances of this class encapsulate commands to set the contents of
+     * several annotations at once. The arguments contain the new contents of
+     * each annotation in the same order as the annotations. These commands
+     * are usually reciprocals e.g. of ReplaceAnnotationTextDocumentCommand.
      */
-    public class ReplaceAnnotationDocumentCommand extends AbstractDocumentCommand {
+    public class SetAnnotationContentsDocumentCommand extends AbstractDocumentCommand {
+
+        /**
+         *
+         * @param anOwner
+         * @param annotations
+         * @param args The new contents of each of annotations
+         */
+        public SetAnnotationContentsDocumentCommand(AbstractDocumentCommandWrapper anOwner, List<PDAnnotation> annotations, ArrayList<String> args) {
+            super(anOwner, annotations, args);
+            assert annotations.size() == args.size();
+        }
+
+        /**
+         *
+         * @return If execute() succeeds, a Command that is the reciprocal of
+         * the receiver is returned. Otherwise, null is returned.
+         */
+        @Override
+        public AbstractDocumentCommand execute() {
+            AbstractDocumentCommand result = null;
+
+            if (annotations.size() == arguments.size()) {
+                ArrayList<String> previousContents = new ArrayList<>(annotations.size());
+
+                for (int i = 0; i < annotations.size(); ++i) {
+                    PDAnnotation annotation = annotations.get(i);
+                    String oldContents = annotation.getContents();
+                    previousContents.add(oldContents);
+                    annotation.setContents(arguments.get(i));
+                    TextInAnnotationReplacer.replaceText(owner.wrappedDocument,
+                            annotation, oldContents, arguments.get(i));
+                    owner.annotationWasEdited(annotation);
+                }
+                result = new SetAnnotationContentsDocumentCommand(owner, annotations, previousContents);
+            } else {
+                System.err.printf("<%s> Expected %d arguments but received %d.%n",
+                        getName(), annotations.size(), arguments.size());
+            }
+
+            return result;
+        }
+
+        /**
+         *
+         * @return The name of the command as it will appear in a user interface
+         * for undo and redo operations e.g. "Undo Delete Annotation" where the
+         * string after "Undo " is returned from getName().
+         */
+        @Override
+        public String getName() {
+            return "Set Annotation Contents";
+        }
+
+        @Override
+        public String getRestoreName() {
+            return "SetAnnotationContents";
+        }
+
+    }
+
+    /**
+     * Instances of this class encapsulate commands to insert annotations into
+     * the annotation array of a page. Only the inserted annotations and their
+     * final indices are stored, so the cost of executing the command and the
+     * memory held by undo does not depend on the number of other annotations
+     * on the page.
+     */
+    public class InsertAnnotationsDocumentCommand extends AbstractDocumentCommand {
+
+        /**
+         * The index in the page's annotation array that each of annotations
+         * occupies after insertion. Indices are in ascending order.
+         */
+        protected final int[] indices;
 
         /**
          *
          * @param anOwner
          * @param someAnnotations
+         * @param someIndices
          * @param args
          */
-        protected ReplaceAnnotationDocumentCommand(AbstractDocumentCommandWrapper anOwner, List<PDAnnotation> someAnnotations, ArrayList<String> args) {
+        protected InsertAnnotationsDocumentCommand(AbstractDocumentCommandWrapper anOwner, List<PDAnnotation> someAnnotations, int[] someIndices, ArrayList<String> args) {
             super(anOwner, someAnnotations, args);
+            indices = someIndices;
+            assert someAnnotations.size() == someIndices.length;
         }
 
         /**
@@ -453,19 +908,139 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
             assert null != annotations;
             assert null != arguments && 0 < arguments.size();
 
-            AbstractDocumentCommand result = null;
-            try {
-                int pageNumber = parseInt(arguments.get(0));
+            int pageNumber = parseInt(arguments.get(0));
+            COSArray pageAnnotations = owner.getAnnotationArrayOnPage(pageNumber);
+            int oldSize = pageAnnotations.size();
+            int[] insertedIndices = new int[indices.length];
+
+            if (1 == indices.length) {
+                insertedIndices[0] = Math.min(indices[0], oldSize);
+                pageAnnotations.add(insertedIndices[0], annotations.get(0).getCOSObject());
+            } else if (oldSize <= indices[0]) {
+                // Everything is appended, so nothing moves
+                List<COSBase> appended = new ArrayList<>(indices.length);
+                for (int i = 0; i < indices.length; ++i) {
+                    insertedIndices[i] = oldSize + i;
+                    appended.add(annotations.get(i).getCOSObject());
+                }
+                pageAnnotations.addAll(appended);
+            } else {
+                // Merge the old and new annotations into a new array in one
+                // pass rather than shifting the array once per insertion.
+                // Ascending order guarantees that each index is final once used.
+                List<COSBase> merged = new ArrayList<>(oldSize + indices.length);
+                int source = 0;
+                for (int i = 0; i < indices.length; ++i) {
+                    while (merged.size() < indices[i] && source < oldSize) {
+                        merged.add(pageAnnotations.get(source++));
+                    }
+                    insertedIndices[i] = merged.size();
+                    merged.add(annotations.get(i).getCOSObject());
+                }
+                while (source < oldSize) {
+                    merged.add(pageAnnotations.get(source++));
+                }
+                pageAnnotations.clear();
+                pageAnnotations.addAll(merged);
+            }
+            owner.annotationsWereInsertedOnPage(pageNumber, insertedIndices, annotations);
+
+            return new RemoveAnnotationsDocumentCommand(owner, annotations, insertedIndices, arguments);
+        }
+
+        /**
+         *
+         * @return The name of the command as it will appear in a user interface
+         * for undo and redo operations e.g. "Undo Delete Annotation" where the
+         * string after "Undo " is returned from getName().
+         */
+        @Override
+        public String getName() {
+            return "Insert Annotation";
+        }
+
+        @Override
+        public String getRestoreName() {
+            return "InsertAnnotations";
+        }
+
+        @Override
+        public int[] getIndices() {
+            return indices;
+        }
+
+    }
+
+    /**
+     * Instances of this class encapsulate commands to remove annotations from
+     * the annotation array of a page. This is the reciprocal of
+     * InsertAnnotationsDocumentCommand.
+     */
+    public class RemoveAnnotationsDocumentCommand extends AbstractDocumentCommand {
 
-                PDPage page = owner.wrappedDocument.getPage(pageNumber);
-                result = new ReplaceAnnotationDocumentCommand(owner, new ArrayList<>(page.getAnnotations()), arguments);
-                page.setAnnotations(annotations);
+        /**
+         * The index in the page's annotation array that each of annotations
+         * occupies before removal. Indices are in ascending order.
+         */
+        protected final int[] indices;
 
-            } catch (IOException ex) {
-                Logger.getLogger(DocumentCommandWrapper.class.getName()).log(Level.SEVERE, null, ex);
+        /**
+         *
+         * @param anOwner
+         * @param someAnnotations
+         * @param someIndices
+         * @param args
+         */
+        protected RemoveAnnotationsDocumentCommand(AbstractDocumentCommandWrapper anOwner, List<PDAnnotation> someAnnotations, int[] someIndices, ArrayList<String> args) {
+            super(anOwner, someAnnotations, args);
+            indices = someIndices;
+            assert someAnnotations.size() == someIndices.length;
+        }
+
+        /**
+         *
+         * @return If execute() succeeds, a Command that is the reciprocal of
+         * the receiver is returned. Otherwise, null is returned.
+         */
+        @Override
+        public AbstractDocumentCommand execute() {
+            assert null != annotations;
+            assert null != arguments && 0 < arguments.size();
+
+            int pageNumber = parseInt(arguments.get(0));
+            COSArray pageAnnotations = owner.getAnnotationArrayOnPage(pageNumber);
+            List<PDAnnotation> removed = new ArrayList<>(annotations.size());
+            int[] removedIndices = new int[annotations.size()];
+
+            if (1 == indices.length && indices[0] < pageAnnotations.size()
+                    && pageAnnotations.getObject(indices[0]) == annotations.get(0).getCOSObject()) {
+                pageAnnotations.remove(indices[0]);
+                removedIndices[0] = indices[0];
+                removed.add(annotations.get(0));
+            } else {
+                // Rebuild the array without the victims in one pass rather
+                // than shifting the array once per removal. Victims are found
+                // by identity, so the stored indices need not be current.
+                IdentityHashMap<COSBase, PDAnnotation> victimsByDictionary = mapByDictionary(annotations);
+                List<COSBase> kept = new ArrayList<>(pageAnnotations.size());
+                for (int i = 0; i < pageAnnotations.size(); ++i) {
+                    PDAnnotation victim = victimsByDictionary.remove(pageAnnotations.getObject(i));
+                    if (null == victim) {
+                        kept.add(pageAnnotations.get(i));
+                    } else {
+                        removedIndices[removed.size()] = i;
+                        removed.add(victim);
+                    }
+                }
+                pageAnnotations.clear();
+                pageAnnotations.addAll(kept);
             }
+            removed.stream().forEach((a) -> {
+                owner.annotationWasRemovedOnPage(pageNumber, a);
+            });
 
-            return result;
+            return new InsertAnnotationsDocumentCommand(owner, removed,
+                    Arrays.copyOf(removedIndices, removed.size()), arguments);
         }
 
         /**
@@ -476,7 +1051,17 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
          */
         @Override
         public String getName() {
-            return "Undelete Annotation";
+            return "Remove Annotation";
+        }
+
+        @Override
+        public String getRestoreName() {
+            return "RemoveAnnotations";
+        }
+
+        @Override
+        public int[] getIndices() {
+            return indices;
         }
 
     }
@@ -507,7 +1092,8 @@ public class DocumentCommandWrapper extends AbstractDocumentCommandWrapper {
 
             if (1 == arguments.size()) {
                 try {
-                    owner.wrappedDocument.save(arguments.get(0));
+                    // Nothing is written if the file is up to date
+                    owner.saveIfModified(new File(arguments.get(0)));
                 } catch (IOException ex) {
                     Logger.getLogger(DocumentCommandWrapper.class.getName()).log(Level.SEVERE, null, ex);
                 }
@@ -0,0 +1,858 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Instances of this class keep a bounded number of documents open on behalf
+ * of a long running process such as AnnotationService. Each document is a
+ * DocumentSession with an ID. When more than maxOpenDocuments are open, or
+ * the PDF data of the open documents exceeds maxOpenBytes, the least recently
+ * used idle sessions are evicted: their journal of executed Commands, undos,
+ * and redos is written to a temporary file and their model is closed. The
+ * next access reopens the document and replays the journal, which recreates
+ * the same annotations with the same annotationRegistry IDs and the same
+ * undo and redo history. IDs are the same because every annotation of the
+ * original data is registered in page order as soon as the document is
+ * loaded, both when the session is opened and before replay, and replay
+ * then registers new annotations in the order they were first made.
+ *
+ * The pool keeps a private copy of each document's original PDF data, so
+ * replay starts from the same data even if the original file is changed,
+ * e.g. by a Save Command. The copy is loaded with a DocumentStructureCache
+ * sidecar, which is written when the session is opened, so reopening an
+ * evicted session does not parse the cross reference table again.
+ *
+ * Only Commands that depend on nothing but the document and their
+ * arguments are journaled, so that replay has no effect outside the
+ * document and produces the same document. Commands that only write files,
+ * such as Save, are executed but not journaled. Commands that read files,
+ * such as ImportAnnotations, are executed with a private copy of the file,
+ * which is journaled instead of the original path. The selection is not
+ * journaled, so Commands that act on the selection are rejected; use the
+ * equivalent Commands that identify annotations by location instead.
+ *
+ * All methods are thread safe. Work on one session is serialized and work on
+ * different sessions runs concurrently.
+ */
+public class DocumentSessionPool {
+
+    /**
+     * The default maximum number of documents open at once
+     */
+    public static final int DEFAULT_MAX_OPEN_DOCUMENTS = 16;
+
+    /**
+     * The default maximum size of the PDF data of the documents open at once
+     */
+    public static final long DEFAULT_MAX_OPEN_BYTES = 256L * 1024L * 1024L;
+
+    /**
+     * Commands that only write files. Replaying them would overwrite the
+     * files with intermediate states of the document.
+     */
+    private static final List<String> OUTPUT_COMMAND_NAMES = Arrays.asList("Save", "SaveText");
+
+    /**
+     * Commands whose first argument is a file that they read. The file may
+     * change before replay.
+     */
+    private static final List<String> INPUT_COMMAND_NAMES = Arrays.asList("ImportAnnotations");
+
+    /**
+     * Commands that act on the selection, which is not journaled
+     */
+    private static final List<String> SELECTION_COMMAND_NAMES = Arrays.asList(
+            "MoveSelectedAnnotation", "DeleteSelectedAnnotation", "ChangeSelectedAnnotationText");
+
+    private static final Logger LOGGER = Logger.getLogger(DocumentSessionPool.class.getName());
+
+    /**
+     * This is the interface that work done with a session must implement. See
+     * withSession().
+     *
+     * @param <T> The type of the result
+     */
+    public interface SessionTask<T> {
+
+        /**
+         *
+         * @param aSession An open session. It must not be used after run()
+         * returns.
+         * @return Any result
+         * @throws IOException If the task fails
+         */
+        T run(DocumentSession aSession) throws IOException;
+    }
+
+    /**
+     * One entry in the journal of a session
+     */
+    private static class JournalEntry {
+
+        static final byte COMMAND = 0;
+        static final byte UNDO = 1;
+        static final byte REDO = 2;
+
+        final byte kind;
+        final String name;
+        final List<String> args;
+
+        JournalEntry(byte aKind, String aName, List<String> someArgs) {
+            kind = aKind;
+            name = aName;
+            args = someArgs;
+        }
+    }
+
+    /**
+     * Instances of this class are documents in a pool. Change the document
+     * only with the methods of this class so that the change is journaled.
+     */
+    public static final class DocumentSession {
+
+        private final String id;
+
+        /**
+         * The pool's private copy of the original PDF data
+         */
+        private final File source;
+        private final long sourceLength;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * The open model or null while evicted
+         */
+        private AIRViewerModel model;
+
+        /**
+         * The journal while the model is open or null while evicted
+         */
+        private List<JournalEntry> journal;
+
+        /**
+         * The journal while evicted or null while the model is open
+         */
+        private File journalFile;
+
+        /**
+         * The private copies of files read by journaled Commands
+         */
+        private final List<File> inputCopies = new ArrayList<>();
+
+        private boolean isClosed;
+
+        /**
+         * The annotations after the most recent journaled change or null
+         * until they are first requested. It is kept while the session is
+         * evicted, so it can be read without the lock.
+         */
+        private volatile AnnotationSnapshot annotationSnapshot;
+
+        private DocumentSession(String anId, File aSource, AIRViewerModel aModel) {
+            id = anId;
+            source = aSource;
+            sourceLength = aSource.length();
+            model = aModel;
+            journal = new ArrayList<>();
+        }
+
+        /**
+         *
+         * @return The ID of the session in its pool
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         *
+         * @return The model of the session. Use it to read the document, e.g.
+         * to render pages or save. Changes made directly to the model are not
+         * journaled and are lost if the session is evicted.
+         */
+        public AIRViewerModel getModel() {
+            return model;
+        }
+
+        /**
+         *
+         * @return The number of journaled changes
+         */
+        public int getJournalLength() {
+            return journal.size();
+        }
+
+        /**
+         * Executes a Command and journals it if it succeeded. See
+         * AbstractDocumentCommandWrapper.executeDocumentCommandWithNameAndArgs().
+         * Commands that act on the selection are rejected. See
+         * DocumentSessionPool.
+         *
+         * @param aName The name of a registered Command factory
+         * @param args The arguments of the Command
+         * @return true if the Command succeeded and false otherwise.
+         */
+        public boolean executeDocumentCommandWithNameAndArgs(String aName, ArrayList<String> args) {
+            if (SELECTION_COMMAND_NAMES.contains(aName)) {
+                LOGGER.log(Level.WARNING, "<{0}> depends on the selection and can not be journaled", aName);
+                return false;
+            }
+
+            File inputCopy = null;
+            if (INPUT_COMMAND_NAMES.contains(aName) && !args.isEmpty()) {
+                try {
+                    inputCopy = copyInput(args.get(0));
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "Unable to read <" + args.get(0) + ">", ex);
+                    return false;
+                }
+                args.set(0, inputCopy.getPath());
+            }
+
+            // Copy first in case the Command changes args
+            List<String> journaledArgs = new ArrayList<>(args);
+            boolean result = model.executeDocumentCommandWithNameAndArgs(aName, args);
+
+            if (result && !OUTPUT_COMMAND_NAMES.contains(aName)) {
+                journal.add(new JournalEntry(JournalEntry.COMMAND, aName, journaledArgs));
+                refreshAnnotationSnapshot();
+                if (null != inputCopy) {
+                    inputCopies.add(inputCopy);
+                    inputCopy = null;
+                }
+            }
+            if (null != inputCopy) {
+                deleteFile(inputCopy);
+            }
+
+            return result;
+        }
+
+        /**
+         * Takes the model's new snapshot if the annotations were requested
+         * before, so a session that is never asked for them never copies
+         * them.
+         */
+        private void refreshAnnotationSnapshot() {
+            if (null != annotationSnapshot) {
+                annotationSnapshot = model.getAnnotationSnapshot();
+            }
+        }
+
+        /**
+         *
+         * @param aPath A file to be read by a Command
+         * @return A copy of the file at aPath that keeps its name extension,
+         * which identifies its format
+         */
+        private File copyInput(String aPath) throws IOException {
+            String name = new File(aPath).getName();
+            int dot = name.lastIndexOf('.');
+            File result = File.createTempFile("airviewer-input", (0 <= dot) ? name.substring(dot) : ".txt");
+
+            try {
+                Files.copy(Paths.get(aPath), result.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                deleteFile(result);
+                throw ex;
+            }
+
+            return result;
+        }
+
+        /**
+         * Undoes the most recent change and journals the undo if it
+         * succeeded.
+         *
+         * @return true if anything was undone and false otherwise.
+         */
+        public boolean undo() {
+            boolean result = model.undo();
+
+            if (result) {
+                journal.add(new JournalEntry(JournalEntry.UNDO, "", new ArrayList<>()));
+                refreshAnnotationSnapshot();
+            }
+
+            return result;
+        }
+
+        /**
+         * Redoes the most recently undone change and journals the redo if it
+         * succeeded.
+         *
+         * @return true if anything was redone and false otherwise.
+         */
+        public boolean redo() {
+            boolean result = model.redo();
+
+            if (result) {
+                journal.add(new JournalEntry(JournalEntry.REDO, "", new ArrayList<>()));
+                refreshAnnotationSnapshot();
+            }
+
+            return result;
+        }
+    }
+
+    private final int maxOpenDocuments;
+    private final long maxOpenBytes;
+
+    /**
+     * Every session in least recently used order. Guarded by poolLock.
+     */
+    private final LinkedHashMap<String, DocumentSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Guards sessions, openDocumentCount, and openBytes. It is never held
+     * while waiting for a session's lock.
+     */
+    private final ReentrantLock poolLock = new ReentrantLock();
+    private int openDocumentCount;
+    private long openBytes;
+
+    /**
+     * Generates session IDs, which must not be guessable because they are
+     * the only handle clients need to change a document
+     */
+    private final SecureRandom sessionIdGenerator = new SecureRandom();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong replayedEntryCount = new AtomicLong();
+
+    /**
+     * Constructor:
+     *
+     * @param aMaxOpenDocuments The maximum number of documents open at once.
+     * The document in use is never evicted, so at least one is open.
+     * @param aMaxOpenBytes The maximum size of the PDF data of the documents
+     * open at once
+     */
+    public DocumentSessionPool(int aMaxOpenDocuments, long aMaxOpenBytes) {
+        assert 0 < aMaxOpenDocuments && 0 < aMaxOpenBytes;
+
+        maxOpenDocuments = aMaxOpenDocuments;
+        maxOpenBytes = aMaxOpenBytes;
+    }
+
+    /**
+     * Opens a copy of the PDF file at aPath as a new session.
+     *
+     * @param aPath A PDF file
+     * @return The ID of the new session
+     * @throws IOException If aPath can not be read or does not contain valid
+     * PDF data
+     */
+    public String open(Path aPath) throws IOException {
+        File snapshot = File.createTempFile("airviewer-session", ".pdf");
+        try {
+            Files.copy(aPath, snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            deleteFile(snapshot);
+            throw ex;
+        }
+
+        return add(snapshot);
+    }
+
+    /**
+     * Opens the PDF data read from anInput as a new session.
+     *
+     * @param anInput A stream of PDF data. It is read to the end but not
+     * closed.
+     * @return The ID of the new session
+     * @throws IOException If anInput can not be read or does not contain
+     * valid PDF data
+     */
+    public String open(InputStream anInput) throws IOException {
+        File snapshot = File.createTempFile("airviewer-session", ".pdf");
+        try {
+            Files.copy(anInput, snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            deleteFile(snapshot);
+            throw ex;
+        }
+
+        return add(snapshot);
+    }
+
+    private String add(File aSnapshot) throws IOException {
+        AIRViewerModel model;
+
+        try {
+            model = new AIRViewerModel(aSnapshot.toPath(), true);
+            model.registerAllAnnotations();
+        } catch (IOException ex) {
+            deleteSource(aSnapshot);
+            throw ex;
+        }
+
+        DocumentSession session;
+        poolLock.lock();
+        try {
+            session = new DocumentSession(newSessionId(), aSnapshot, model);
+            sessions.put(session.id, session);
+            ++openDocumentCount;
+            openBytes += session.sourceLength;
+        } finally {
+            poolLock.unlock();
+        }
+        evictIdleSessions(session);
+
+        return session.id;
+    }
+
+    /**
+     * The caller must hold poolLock.
+     *
+     * @return A random ID that is not the ID of any session
+     */
+    private String newSessionId() {
+        String result;
+
+        do {
+            byte[] bytes = new byte[16];
+            sessionIdGenerator.nextBytes(bytes);
+            StringBuilder text = new StringBuilder(2 * bytes.length);
+            for (byte b : bytes) {
+                text.append(String.format("%02x", b));
+            }
+            result = text.toString();
+        } while (sessions.containsKey(result));
+
+        return result;
+    }
+
+    /**
+     * Runs aTask with the session that has anId. The document is reopened
+     * first if it was evicted. Other tasks for the same session wait until
+     * aTask returns.
+     *
+     * @param <T> The type of the result of aTask
+     * @param anId A session ID returned by open()
+     * @param aTask The work to do
+     * @return The result of aTask
+     * @throws IOException If the document can not be reopened or aTask fails
+     * @throws NoSuchElementException If there is no session with anId
+     */
+    public <T> T withSession(String anId, SessionTask<T> aTask) throws IOException {
+        DocumentSession session;
+
+        poolLock.lock();
+        try {
+            session = sessions.get(anId); // Marks the session as recently used
+        } finally {
+            poolLock.unlock();
+        }
+        if (null == session) {
+            throw new NoSuchElementException("No such document: " + anId);
+        }
+
+        T result;
+        session.lock.lock();
+        try {
+            if (session.isClosed) {
+                throw new NoSuchElementException("No such document: " + anId);
+            }
+            if (null != session.model) {
+                hitCount.incrementAndGet();
+            } else {
+                missCount.incrementAndGet();
+                reopen(session);
+            }
+            result = aTask.run(session);
+        } finally {
+            session.lock.unlock();
+        }
+        evictIdleSessions(session);
+
+        return result;
+    }
+
+    /**
+     * Unlike withSession(), this method does not wait for tasks in progress
+     * and does not reopen evicted documents, so readers of annotations are
+     * never blocked by long running work such as rendering or saving. The
+     * only exception is the first request for a session's annotations,
+     * which copies them using withSession().
+     *
+     * @param anId A session ID returned by open()
+     * @return The annotations of the session's document after its most
+     * recent journaled change
+     * @throws IOException If the annotations are requested for the first
+     * time and the document can not be reopened
+     * @throws NoSuchElementException If there is no session with anId
+     */
+    public AnnotationSnapshot getAnnotationSnapshot(String anId) throws IOException {
+        DocumentSession session;
+
+        poolLock.lock();
+        try {
+            session = sessions.get(anId);
+        } finally {
+            poolLock.unlock();
+        }
+        if (null == session) {
+            throw new NoSuchElementException("No such document: " + anId);
+        }
+
+        AnnotationSnapshot result = session.annotationSnapshot;
+        if (null == result) {
+            result = withSession(anId, (aSession) -> {
+                aSession.annotationSnapshot = aSession.model.getAnnotationSnapshot();
+                return aSession.annotationSnapshot;
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * Closes the session with anId and deletes its files. Tasks for the
+     * session that are in progress finish first.
+     *
+     * @param anId A session ID
+     * @return true if a session was closed and false if there was none.
+     */
+    public boolean close(String anId) {
+        DocumentSession session;
+
+        poolLock.lock();
+        try {
+            session = sessions.remove(anId);
+        } finally {
+            poolLock.unlock();
+        }
+
+        if (null != session) {
+            session.lock.lock();
+            try {
+                session.isClosed = true;
+                if (null != session.model) {
+                    session.model.close();
+                    session.model = null;
+                    poolLock.lock();
+                    try {
+                        --openDocumentCount;
+                        openBytes -= session.sourceLength;
+                    } finally {
+                        poolLock.unlock();
+                    }
+                }
+                if (null != session.journalFile) {
+                    deleteFile(session.journalFile);
+                }
+                deleteSource(session.source);
+                session.inputCopies.forEach(DocumentSessionPool::deleteFile);
+                session.inputCopies.clear();
+            } finally {
+                session.lock.unlock();
+            }
+        }
+
+        return null != session;
+    }
+
+    /**
+     * Closes every session.
+     */
+    public void closeAll() {
+        for (String id : getSessionIds()) {
+            close(id);
+        }
+    }
+
+    /**
+     *
+     * @return The IDs of every session including evicted ones in least
+     * recently used order
+     */
+    public List<String> getSessionIds() {
+        poolLock.lock();
+        try {
+            return new ArrayList<>(sessions.keySet());
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return The number of accesses to sessions that were open
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     *
+     * @return The number of accesses to sessions that had to be reopened
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     *
+     * @return The number of times a session was evicted
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     *
+     * @return The number of journal entries replayed while reopening
+     * sessions
+     */
+    public long getReplayedEntryCount() {
+        return replayedEntryCount.get();
+    }
+
+    /**
+     *
+     * @return The number of documents currently open
+     */
+    public int getOpenDocumentCount() {
+        poolLock.lock();
+        try {
+            return openDocumentCount;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return The size of the PDF data of the documents currently open
+     */
+    public long getOpenBytes() {
+        poolLock.lock();
+        try {
+            return openBytes;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the least recently used idle sessions other than aSessionInUse
+     * until the pool is within its limits. Sessions in use by other threads
+     * are skipped rather than waited for.
+     */
+    private void evictIdleSessions(DocumentSession aSessionInUse) {
+        List<DocumentSession> victims = new ArrayList<>();
+
+        poolLock.lock();
+        try {
+            Iterator<DocumentSession> candidates = sessions.values().iterator();
+            while ((openDocumentCount > maxOpenDocuments || openBytes > maxOpenBytes)
+                    && candidates.hasNext()) {
+                DocumentSession candidate = candidates.next();
+                if (candidate != aSessionInUse && candidate.lock.tryLock()) {
+                    if (null != candidate.model && !candidate.isClosed) {
+                        // Counted as closed now so that the loop ends
+                        --openDocumentCount;
+                        openBytes -= candidate.sourceLength;
+                        victims.add(candidate);
+                    } else {
+                        candidate.lock.unlock();
+                    }
+                }
+            }
+        } finally {
+            poolLock.unlock();
+        }
+
+        // Journals are written without holding poolLock
+        for (DocumentSession victim : victims) {
+            try {
+                evict(victim);
+            } finally {
+                victim.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the journal of aSession to a temporary file and closes its
+     * model. If the journal can not be written, the session stays open. The
+     * caller must hold the session's lock.
+     */
+    private void evict(DocumentSession aSession) {
+        File file = null;
+
+        try {
+            file = File.createTempFile("airviewer-journal", ".bin");
+            writeJournal(file, aSession.journal);
+
+            aSession.model.close();
+            aSession.model = null;
+            aSession.journal = null;
+            aSession.journalFile = file;
+            evictionCount.incrementAndGet();
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Unable to write the journal of document " + aSession.id, ex);
+            if (null != file) {
+                deleteFile(file);
+            }
+            poolLock.lock();
+            try {
+                ++openDocumentCount;
+                openBytes += aSession.sourceLength;
+            } finally {
+                poolLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Reloads the document of aSession and replays its journal. The caller
+     * must hold the session's lock.
+     */
+    private void reopen(DocumentSession aSession) throws IOException {
+        List<JournalEntry> journal = readJournal(aSession.journalFile);
+        AIRViewerModel model = new AIRViewerModel(aSession.source.toPath(), true);
+        model.registerAllAnnotations(); // Same IDs as when the session was opened
+
+        for (JournalEntry entry : journal) {
+            boolean isReplayed;
+            switch (entry.kind) {
+                case JournalEntry.UNDO:
+                    isReplayed = model.undo();
+                    break;
+                case JournalEntry.REDO:
+                    isReplayed = model.redo();
+                    break;
+                default:
+                    // Never journaled. See executeDocumentCommandWithNameAndArgs().
+                    if (OUTPUT_COMMAND_NAMES.contains(entry.name) || SELECTION_COMMAND_NAMES.contains(entry.name)) {
+                        continue;
+                    }
+                    isReplayed = model.executeDocumentCommandWithNameAndArgs(entry.name, new ArrayList<>(entry.args));
+                    break;
+            }
+            if (!isReplayed) {
+                LOGGER.log(Level.WARNING, "Replay of <{0}> failed for document {1}",
+                        new Object[]{entry.name, aSession.id});
+            }
+        }
+        replayedEntryCount.addAndGet(journal.size());
+
+        // Clients may hold IDs from the snapshot taken before eviction
+        AnnotationSnapshot snapshotBeforeEviction = aSession.annotationSnapshot;
+        if (null != snapshotBeforeEviction
+                && !snapshotBeforeEviction.hasSameAnnotations(model.getAnnotationSnapshot())) {
+            LOGGER.log(Level.SEVERE, "Replay did not recreate the annotations of document {0}", aSession.id);
+        }
+
+        deleteFile(aSession.journalFile);
+        aSession.journalFile = null;
+        aSession.journal = journal;
+        aSession.model = model;
+
+        poolLock.lock();
+        try {
+            ++openDocumentCount;
+            openBytes += aSession.sourceLength;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    private static void writeJournal(File aFile, List<JournalEntry> aJournal) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(aFile)))) {
+            out.writeInt(aJournal.size());
+            for (JournalEntry entry : aJournal) {
+                out.writeByte(entry.kind);
+                AnnotationSerializer.writeString(out, entry.name);
+                out.writeInt(entry.args.size());
+                for (String arg : entry.args) {
+                    AnnotationSerializer.writeString(out, arg);
+                }
+            }
+        }
+    }
+
+    private static List<JournalEntry> readJournal(File aFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(aFile)))) {
+            int count = in.readInt();
+            List<JournalEntry> result = new ArrayList<>(count);
+
+            for (int i = 0; i < count; ++i) {
+                byte kind = in.readByte();
+                String name = AnnotationSerializer.readString(in);
+                int argCount = in.readInt();
+                List<String> args = new ArrayList<>(argCount);
+                for (int j = 0; j < argCount; ++j) {
+                    args.add(AnnotationSerializer.readString(in));
+                }
+                result.add(new JournalEntry(kind, name, args));
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Temporary files are deleted as soon as they are no longer needed
+     * rather than with File.deleteOnExit(), whose list of files would grow
+     * for as long as the process runs. AnnotationService closes every session
+     * when it stops.
+     */
+    private static void deleteFile(File aFile) {
+        if (aFile.exists() && !aFile.delete()) {
+            LOGGER.log(Level.WARNING, "Unable to delete <{0}>", aFile);
+        }
+    }
+
+    /**
+     * Deletes the private copy of a session's PDF data and its
+     * DocumentStructureCache sidecar.
+     */
+    private static void deleteSource(File aSource) {
+        deleteFile(aSource);
+        deleteFile(DocumentStructureCache.sidecarFor(aSource));
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessBufferedFileInputStream;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdfparser.XrefTrailerResolver.XRefType;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * This class loads PDF files with the help of a sidecar file that remembers
+ * the resolved cross reference table of each file, i.e. the offset of every
+ * object, along with the trailer and the number of pages. The sidecar of
+ * report.pdf is report.pdf.airvcache in the same directory.
+ *
+ * Loading a PDF file normally starts by following the chain of cross
+ * reference sections and streams from the end of the file and then checking
+ * the offset of every object. Files with damaged cross references are even
+ * searched from start to end for objects. With a valid sidecar, load() skips
+ * all of that and hands the remembered offsets straight to the parser.
+ * Objects are then read as usual.
+ *
+ * A sidecar is valid only for a file with the same length, modification
+ * time, and checksum of the first and last SAMPLE_LENGTH bytes as when it was
+ * written. The end of a PDF file contains its most recent cross reference
+ * section, so any save changes the checksum. Invalid sidecars are replaced by
+ * the next load(). Sidecars are not written for encrypted documents or when
+ * the directory is not writable.
+ *
+ * Sidecars are read through a memory map and written to a temporary file
+ * that is then renamed, so threads and processes that load the same file at
+ * the same time never read a partial sidecar.
+ */
+public final class DocumentStructureCache {
+
+    /**
+     * The suffix appended to the name of a PDF file to name its sidecar
+     */
+    public static final String SUFFIX = ".airvcache";
+
+    /**
+     * The number of bytes at each end of a PDF file included in the checksum
+     */
+    public static final int SAMPLE_LENGTH = 64 * 1024;
+
+    private static final int MAGIC = 0x41495258; // "AIRX"
+    private static final int FORMAT_VERSION = 2;
+
+    private static final Logger LOGGER = Logger.getLogger(DocumentStructureCache.class.getName());
+
+    /**
+     * The content of a sidecar
+     */
+    private static class Structure {
+
+        /**
+         * The offset of the startxref keyword, which PDFParser passes to
+         * parseXref()
+         */
+        long startXrefKeywordOffset;
+        /**
+         * The offset of the most recent cross reference section, which
+         * follows the startxref keyword
+         */
+        long startXref;
+        boolean isXRefStream;
+        int pageCount;
+        COSObjectKey root;
+        COSObjectKey info;
+        long size = -1;
+        List<byte[]> ids = new ArrayList<>();
+        Map<COSObjectKey, Long> offsets = new HashMap<>();
+    }
+
+    /**
+     * This parser uses the offsets of a Structure instead of parsing the
+     * cross reference sections of the file when it is given a Structure.
+     */
+    private static class StructureParser extends PDFParser {
+
+        private final Structure structure;
+        private long startXrefKeywordOffset = -1;
+
+        StructureParser(RandomAccessRead aSource, ScratchFile aScratchFile, Structure aStructure) throws IOException {
+            super(aSource, aScratchFile);
+            structure = aStructure;
+        }
+
+        @Override
+        protected COSDictionary parseXref(long startXRefOffset) throws IOException {
+            startXrefKeywordOffset = startXRefOffset;
+            if (null == structure) {
+                return super.parseXref(startXRefOffset);
+            }
+            if (startXRefOffset != structure.startXrefKeywordOffset) {
+                throw new IOException("The cached cross reference table does not match the file");
+            }
+
+            COSDictionary trailer = new COSDictionary();
+            trailer.setItem(COSName.ROOT, document.getObjectFromPool(structure.root));
+            if (null != structure.info) {
+                trailer.setItem(COSName.INFO, document.getObjectFromPool(structure.info));
+            }
+            if (0 <= structure.size) {
+                trailer.setLong(COSName.SIZE, structure.size);
+            }
+            if (!structure.ids.isEmpty()) {
+                COSArray ids = new COSArray();
+                for (byte[] id : structure.ids) {
+                    ids.add(new COSString(id));
+                }
+                trailer.setItem(COSName.ID, ids);
+            }
+
+            // COSParser looks up objects, including those in object streams,
+            // in the resolver's table, so it gets the offsets as if it had
+            // read a single cross reference section
+            xrefTrailerResolver.nextXrefObj(structure.startXref,
+                    structure.isXRefStream ? XRefType.STREAM : XRefType.TABLE);
+            for (Map.Entry<COSObjectKey, Long> entry : structure.offsets.entrySet()) {
+                xrefTrailerResolver.setXRef(entry.getKey(), entry.getValue());
+            }
+            xrefTrailerResolver.setTrailer(trailer);
+            xrefTrailerResolver.setStartxref(structure.startXref);
+
+            document.setStartXref(structure.startXref);
+            document.setTrailer(trailer);
+            document.setIsXRefStream(structure.isXRefStream);
+            document.addXRefTable(xrefTrailerResolver.getXrefTable());
+
+            return trailer;
+        }
+    }
+
+    private DocumentStructureCache() {
+    }
+
+    /**
+     *
+     * @param aFile A PDF file
+     * @return The sidecar file of aFile. It may not exist.
+     */
+    public static File sidecarFor(File aFile) {
+        return new File(aFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Loads aFile like PDDocument.load(). If aFile has a valid sidecar, its
+     * cross reference table is not parsed. Otherwise, a sidecar is written
+     * after loading for the next time.
+     *
+     * @param aFile A PDF file
+     * @return The loaded document
+     * @throws IOException If aFile can not be read or does not contain valid
+     * PDF data
+     */
+    public static PDDocument load(File aFile) throws IOException {
+        return load(aFile, MemoryUsageSetting.setupMainMemoryOnly());
+    }
+
+    /**
+     * Loads aFile like PDDocument.load(File, MemoryUsageSetting). See
+     * load(File).
+     *
+     * @param aFile A PDF file
+     * @param aMemoryUsageSetting Where the document keeps the stream data it
+     * reads
+     * @return The loaded document
+     * @throws IOException If aFile can not be read or does not contain valid
+     * PDF data
+     */
+    public static PDDocument load(File aFile, MemoryUsageSetting aMemoryUsageSetting) throws IOException {
+        assert null != aFile && null != aMemoryUsageSetting;
+
+        File sidecar = sidecarFor(aFile);
+        long[] key = keyOf(aFile);
+        Structure structure = read(sidecar, key);
+
+        if (null != structure) {
+            try {
+                return parse(aFile, structure, aMemoryUsageSetting).getPDDocument();
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Ignoring invalid structure cache " + sidecar, ex);
+            }
+        }
+
+        StructureParser parser = parse(aFile, null, aMemoryUsageSetting);
+        PDDocument result = parser.getPDDocument();
+        if (!result.isEncrypted()) {
+            try {
+                write(sidecar, key, result, parser.startXrefKeywordOffset);
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.FINE, "Unable to write structure cache " + sidecar, ex);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param aFile A PDF file
+     * @return The number of pages recorded in the valid sidecar of aFile or
+     * -1 if aFile has no valid sidecar. aFile itself is not parsed.
+     */
+    public static int getPageCount(File aFile) {
+        int result = -1;
+
+        try {
+            Structure structure = read(sidecarFor(aFile), keyOf(aFile));
+            if (null != structure) {
+                result = structure.pageCount;
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, "Unable to read " + aFile, ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Does what PDDocument.load(File, MemoryUsageSetting) does, but with a
+     * StructureParser.
+     *
+     * @return The parser after parsing. Its getPDDocument() is the loaded
+     * document.
+     */
+    private static StructureParser parse(File aFile, Structure aStructure,
+            MemoryUsageSetting aMemoryUsageSetting) throws IOException {
+        RandomAccessBufferedFileInputStream source = new RandomAccessBufferedFileInputStream(aFile);
+        ScratchFile scratchFile = null;
+
+        try {
+            scratchFile = new ScratchFile(aMemoryUsageSetting);
+            StructureParser parser = new StructureParser(source, scratchFile, aStructure);
+            parser.parse();
+            return parser;
+        } catch (IOException | RuntimeException ex) {
+            IOUtils.closeQuietly(scratchFile);
+            IOUtils.closeQuietly(source);
+            throw ex;
+        }
+    }
+
+    /**
+     *
+     * @return The length, modification time, and checksum of aFile
+     */
+    private static long[] keyOf(File aFile) throws IOException {
+        CRC32 checksum = new CRC32();
+
+        try (RandomAccessFile file = new RandomAccessFile(aFile, "r")) {
+            long length = file.length();
+            byte[] sample = new byte[(int) Math.min(length, 2L * SAMPLE_LENGTH)];
+            int headLength = Math.min(sample.length, SAMPLE_LENGTH);
+
+            file.readFully(sample, 0, headLength);
+            file.seek(length - (sample.length - headLength));
+            file.readFully(sample, headLength, sample.length - headLength);
+            checksum.update(sample);
+
+            return new long[]{length, aFile.lastModified(), checksum.getValue()};
+        }
+    }
+
+    /**
+     *
+     * @return The content of aSidecar or null if it does not exist, can not
+     * be read, or is not valid for aKey
+     */
+    private static Structure read(File aSidecar, long[] aKey) {
+        if (!aSidecar.isFile()) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(aSidecar.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (MAGIC != buffer.getInt() || FORMAT_VERSION != buffer.getInt()
+                    || aKey[0] != buffer.getLong() || aKey[1] != buffer.getLong() || aKey[2] != buffer.getLong()) {
+                return null;
+            }
+
+            Structure result = new Structure();
+            result.startXrefKeywordOffset = buffer.getLong();
+            result.startXref = buffer.getLong();
+            result.isXRefStream = 0 != buffer.get();
+            result.pageCount = buffer.getInt();
+            result.root = getKey(buffer);
+            result.info = getKey(buffer);
+            result.size = buffer.getLong();
+            for (int i = buffer.getInt(); 0 < i; --i) {
+                byte[] id = new byte[buffer.getInt()];
+                buffer.get(id);
+                result.ids.add(id);
+            }
+            int offsetCount = buffer.getInt();
+            result.offsets = new HashMap<>(offsetCount * 4 / 3 + 1);
+            for (int i = 0; i < offsetCount; ++i) {
+                COSObjectKey objectKey = getKey(buffer);
+                result.offsets.put(objectKey, buffer.getLong());
+            }
+
+            return (null != result.root) ? result : null;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException ex) {
+            LOGGER.log(Level.FINE, "Unable to read structure cache " + aSidecar, ex);
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @return The next key in aBuffer or null for a negative object number
+     */
+    private static COSObjectKey getKey(ByteBuffer aBuffer) {
+        long number = aBuffer.getLong();
+        int generation = aBuffer.getInt();
+
+        return (0 <= number) ? new COSObjectKey(number, generation) : null;
+    }
+
+    private static void putKey(DataOutputStream out, COSObjectKey aKey) throws IOException {
+        out.writeLong((null == aKey) ? -1 : aKey.getNumber());
+        out.writeInt((null == aKey) ? 0 : aKey.getGeneration());
+    }
+
+    /**
+     *
+     * @return The key of the indirect object in aDictionary at aName or null
+     * if there is no indirect object there
+     */
+    private static COSObjectKey indirectKey(COSDictionary aDictionary, COSName aName) {
+        COSBase item = aDictionary.getItem(aName);
+
+        return (item instanceof COSObject) ? new COSObjectKey((COSObject) item) : null;
+    }
+
+    /**
+     * Writes the structure of aDocument loaded from the file with aKey to
+     * aSidecar. Nothing is written if the trailer of aDocument has no
+     * indirect /Root.
+     *
+     * @param aStartXrefKeywordOffset The offset passed to parseXref() while
+     * aDocument was loaded
+     */
+    private static void write(File aSidecar, long[] aKey, PDDocument aDocument, long aStartXrefKeywordOffset) throws IOException {
+        COSDocument document = aDocument.getDocument();
+        COSDictionary trailer = document.getTrailer();
+        COSObjectKey root = indirectKey(trailer, COSName.ROOT);
+
+        if (null == root) {
+            return;
+        }
+
+        File temporary = File.createTempFile(aSidecar.getName(), ".tmp", aSidecar.getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                for (long value : aKey) {
+                    out.writeLong(value);
+                }
+                out.writeLong(aStartXrefKeywordOffset);
+                out.writeLong(document.getStartXref());
+                out.writeBoolean(document.isXRefStream());
+                out.writeInt(aDocument.getNumberOfPages());
+                putKey(out, root);
+                putKey(out, indirectKey(trailer, COSName.INFO));
+                COSBase size = trailer.getDictionaryObject(COSName.SIZE);
+                out.writeLong((size instanceof COSNumber) ? ((COSNumber) size).longValue() : -1);
+
+                List<byte[]> ids = new ArrayList<>();
+                COSBase idArray = trailer.getDictionaryObject(COSName.ID);
+                if (idArray instanceof COSArray) {
+                    for (COSBase id : (COSArray) idArray) {
+                        if (id instanceof COSString) {
+                            ids.add(((COSString) id).getBytes());
+                        }
+                    }
+                }
+                out.writeInt(ids.size());
+                for (byte[] id : ids) {
+                    out.writeInt(id.length);
+                    out.write(id);
+                }
+
+                Map<COSObjectKey, Long> offsets = document.getXrefTable();
+                out.writeInt(offsets.size());
+                for (Map.Entry<COSObjectKey, Long> entry : offsets.entrySet()) {
+                    putKey(out, entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            }
+            Files.move(temporary.toPath(), aSidecar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+}
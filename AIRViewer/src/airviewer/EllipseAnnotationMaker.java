@@ -19,18 +19,11 @@
  */
 package airviewer;
 
-import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import static java.lang.Float.max;
 import static java.lang.Float.parseFloat;
-import static java.lang.Integer.parseInt;
-import java.rmi.server.UID;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.font.PDFont;
@@ -39,10 +32,6 @@ import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
 import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationSquareCircle;
-import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceDictionary;
-import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
-import org.apache.pdfbox.pdmodel.interactive.annotation.PDBorderStyleDictionary;
-import org.apache.pdfbox.util.Matrix;
 
 /**
  * This is a helper class for creating the "Appearance Stream" for "Circle"
@@ -65,120 +54,112 @@ import org.apache.pdfbox.util.Matrix;
  */
 public class EllipseAnnotationMaker {
 
+    private static final PDFont FONT = PDType1Font.HELVETICA_OBLIQUE;
+    private static final float FONT_SIZE = 16.0f; // Or whatever font size you want.
+    private static final PDColor RED = new PDColor(new float[]{1, 0, 0}, PDDeviceRGB.INSTANCE);
+    private static final PDColor BLACK = new PDColor(new float[]{0, 0, 0}, PDDeviceRGB.INSTANCE);
+    private static final PDColor FILL_COLOR = new PDColor(new float[]{.8f, .8f, .8f}, PDDeviceRGB.INSTANCE);
+    private static final TextLayout LAYOUT = TextLayout.forFont(FONT);
+    private static final float LEADING = FONT_SIZE * TextLayout.LEADING_FACTOR;
+
     /**
      * 
      * @param document
      * @param arguments(pageNumber, lowerLeftX, lowerLeftY, width, height, contents)
-     * @return 
+     * @return The new annotation or null if the annotation could not be made.
+     * The caller is responsible for adding the annotation to the page.
      */
-    public static List<PDAnnotation> make(PDDocument document,
+    public static PDAnnotation make(PDDocument document,
             ArrayList<String> arguments) {
         assert null != arguments && arguments.size() == 6;
         assert null != document;
 
-        List<PDAnnotation> result;
+        PDAnnotation result;
 
         try {
-            int pageNumber = parseInt(arguments.get(0));
             float lowerLeftX = parseFloat(arguments.get(1));
             float lowerLeftY = parseFloat(arguments.get(2));
             float width = parseFloat(arguments.get(3));
             float height = parseFloat(arguments.get(4));
             String contents = arguments.get(5);
 
-            PDFont font = PDType1Font.HELVETICA_OBLIQUE;
-            final float fontSize = 16.0f; // Or whatever font size you want.
-            //final float lineSpacing = 4.0f;
-            width = max(width, font.getStringWidth(contents) * fontSize / 1000.0f);
-            //final float textHeight = fontSize + lineSpacing;
-
-            try {
-                PDPage page = document.getPage(pageNumber);
-                PDColor red = new PDColor(new float[]{1, 0, 0}, PDDeviceRGB.INSTANCE);
-                PDColor black = new PDColor(new float[]{0, 0, 0}, PDDeviceRGB.INSTANCE);
-                PDBorderStyleDictionary borderThick = new PDBorderStyleDictionary();
-                borderThick.setWidth(72 / 12);  // 12th inch
-                PDRectangle position = new PDRectangle();
-                position.setLowerLeftX(lowerLeftX);
-                position.setLowerLeftY(lowerLeftY);
-                position.setUpperRightX(lowerLeftX + width);
-                position.setUpperRightY(lowerLeftY + height);
-
-                PDAnnotationSquareCircle aCircle = new PDAnnotationSquareCircle(
-                        PDAnnotationSquareCircle.SUB_TYPE_CIRCLE);
-                aCircle.setAnnotationName(new UID().toString());
-                aCircle.setContents(contents);
-                PDColor fillColor = new PDColor(new float[]{.8f, .8f, .8f}, PDDeviceRGB.INSTANCE);
-                aCircle.setInteriorColor(fillColor);
-                aCircle.setColor(red);
-                aCircle.setBorderStyle(borderThick);
-                aCircle.setRectangle(position);
+            // Grow to fit the longest line of contents
+            width = max(width, LAYOUT.getMaxLineWidth(contents, FONT_SIZE, Float.MAX_VALUE));
+            AppearanceTemplateCache templates = AppearanceTemplateCache.forDocument(document);
 
-                result = new ArrayList<>(page.getAnnotations()); // Copy
-                page.getAnnotations().add(aCircle);
+            // The rectangle includes half of the border width on every
+            // side so that it matches the appearance's bounding box.
+            float halfBorder = AppearanceTemplateCache.BORDER_WIDTH * 0.5f;
+            PDRectangle position = new PDRectangle();
+            position.setLowerLeftX(lowerLeftX - halfBorder);
+            position.setLowerLeftY(lowerLeftY - halfBorder);
+            position.setUpperRightX(lowerLeftX + width + halfBorder);
+            position.setUpperRightY(lowerLeftY + height + halfBorder);
 
-                // The following lines are needed for PDFRenderer to render 
-                // annotations. Preview and Acrobat don't seem to need these.
-                if (null == aCircle.getAppearance()) {
-                    aCircle.setAppearance(new PDAppearanceDictionary());
-                    PDAppearanceStream annotationAppearanceStream = new PDAppearanceStream(document);
-                    position.setLowerLeftX(lowerLeftX - borderThick.getWidth() * 0.5f);
-                    position.setLowerLeftY(lowerLeftY - borderThick.getWidth() * 0.5f);
-                    position.setUpperRightX(lowerLeftX + width + borderThick.getWidth() * 0.5f);
-                    position.setUpperRightY(lowerLeftY + height + borderThick.getWidth() * 0.5f);
-                    annotationAppearanceStream.setBBox(position);
-                    annotationAppearanceStream.setMatrix(new AffineTransform());
-                    annotationAppearanceStream.setResources(page.getResources());
+            PDAnnotationSquareCircle aCircle = new PDAnnotationSquareCircle(
+                    PDAnnotationSquareCircle.SUB_TYPE_CIRCLE);
+            aCircle.setContents(contents);
+            aCircle.setInteriorColor(FILL_COLOR);
+            aCircle.setColor(RED);
+            aCircle.setBorderStyle(templates.getBorderStyle());
+            aCircle.setRectangle(position);
 
-                    try (PDPageContentStream appearanceContent = new PDPageContentStream(
-                            document, annotationAppearanceStream)) {
-                        Matrix transform = new Matrix();
-                        appearanceContent.transform(transform);
-                        appearanceContent.moveTo(lowerLeftX, lowerLeftY + height * 0.5f);
-                        appearanceContent.curveTo(lowerLeftX, lowerLeftY + height * 0.75f,
-                                lowerLeftX + width * 0.25f, lowerLeftY + height,
-                                lowerLeftX + width * 0.5f, lowerLeftY + height);
-                        appearanceContent.curveTo(lowerLeftX + width * 0.75f, lowerLeftY + height,
-                                lowerLeftX + width, lowerLeftY + height * 0.75f,
-                                lowerLeftX + width, lowerLeftY + height * 0.5f);
-                        appearanceContent.curveTo(lowerLeftX + width, lowerLeftY + height * 0.25f,
-                                lowerLeftX + width * 0.75f, lowerLeftY,
-                                lowerLeftX + width * 0.5f, lowerLeftY);
-                        appearanceContent.curveTo(lowerLeftX + width * 0.25f, lowerLeftY,
-                                lowerLeftX, lowerLeftY + height * 0.25f,
-                                lowerLeftX, lowerLeftY + height * 0.5f);
-                        appearanceContent.setLineWidth(borderThick.getWidth());
-                        appearanceContent.setNonStrokingColor(fillColor);
-                        appearanceContent.setStrokingColor(red);
-                        appearanceContent.fillAndStroke();
-                        appearanceContent.moveTo(0, 0);
+            result = aCircle;
 
-                        appearanceContent.beginText();
-                        appearanceContent.setNonStrokingColor(black);
-                        // Center text vertically, left justified
-                        appearanceContent.newLineAtOffset(
-                                lowerLeftX + borderThick.getWidth(), 
-                                lowerLeftY + height * 0.5f - fontSize * 0.5f);
-                        appearanceContent.setFont(font, fontSize);
-                        appearanceContent.showText(contents);
-                        appearanceContent.endText();
-                    }
-                    aCircle.getAppearance().setNormalAppearance(annotationAppearanceStream);
-                }
-
-            } catch (IOException ex) {
-                Logger.getLogger(DocumentCommandWrapper.class.getName()).log(Level.SEVERE, null, ex);
-                result = null;
-            }
+            // PDFRenderer needs an appearance stream to render
+            // annotations. Preview and Acrobat don't seem to need one.
+            // It is generated when the page is rendered or saved.
+            AppearanceTemplateCache.markStale(aCircle,
+                    AppearanceTemplateCache.Style.ELLIPSE, width, height);
         } catch (NumberFormatException | NullPointerException ex) {
             System.err.println("Non number encountered where floating point number expected.");
             result = null;
-        } catch (IOException ex) {
-            Logger.getLogger(EllipseAnnotationMaker.class.getName()).log(Level.SEVERE, null, ex);
-            result = null;
         }
 
         return result;
     }
 
+    /**
+     * Draws the appearance of an ellipse with the lower left corner of its
+     * bounds at the origin. See AppearanceTemplateCache.
+     *
+     * @param appearanceContent The destination
+     * @param width
+     * @param height
+     * @param contents
+     * @throws IOException If appearanceContent can not be written
+     */
+    static void drawAppearance(PDPageContentStream appearanceContent,
+            float width, float height, String contents) throws IOException {
+        appearanceContent.moveTo(0, height * 0.5f);
+        appearanceContent.curveTo(0, height * 0.75f,
+                width * 0.25f, height,
+                width * 0.5f, height);
+        appearanceContent.curveTo(width * 0.75f, height,
+                width, height * 0.75f,
+                width, height * 0.5f);
+        appearanceContent.curveTo(width, height * 0.25f,
+                width * 0.75f, 0,
+                width * 0.5f, 0);
+        appearanceContent.curveTo(width * 0.25f, 0,
+                0, height * 0.25f,
+                0, height * 0.5f);
+        appearanceContent.setLineWidth(AppearanceTemplateCache.BORDER_WIDTH);
+        appearanceContent.setNonStrokingColor(FILL_COLOR);
+        appearanceContent.setStrokingColor(RED);
+        appearanceContent.fillAndStroke();
+        appearanceContent.moveTo(0, 0);
+
+        appearanceContent.beginText();
+        appearanceContent.setNonStrokingColor(BLACK);
+        // Center lines vertically, left justified
+        int lineCount = LAYOUT.getLineCount(contents, FONT_SIZE, width);
+        appearanceContent.newLineAtOffset(
+                AppearanceTemplateCache.BORDER_WIDTH,
+                height * 0.5f - FONT_SIZE * 0.5f + (lineCount - 1) * LEADING * 0.5f);
+        appearanceContent.setFont(FONT, FONT_SIZE);
+        LAYOUT.showLines(appearanceContent, contents, FONT_SIZE, width, LEADING);
+        appearanceContent.endText();
+    }
+
 }
\ No newline at end of file
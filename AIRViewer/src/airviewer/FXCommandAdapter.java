@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import javafx.application.Platform;
+
+/**
+ * This class moves the results and change notifications of a
+ * DocumentCommandExecutor onto the JavaFx application thread, where the user
+ * interface may be updated. It is kept apart from DocumentCommandExecutor so
+ * that the executor does not depend on JavaFx.
+ */
+public final class FXCommandAdapter {
+
+    private FXCommandAdapter() {
+    }
+
+    /**
+     *
+     * @param <T> The type of the result
+     * @param aFuture A future completed on any thread
+     * @return A future that is completed with the same result on the JavaFx
+     * application thread. Actions added to it with thenAccept() etc. run on
+     * the JavaFx application thread.
+     */
+    public static <T> CompletableFuture<T> onFXThread(CompletableFuture<T> aFuture) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        aFuture.whenComplete((T aValue, Throwable anException) -> Platform.runLater(() -> {
+            if (null == anException) {
+                result.complete(aValue);
+            } else {
+                result.completeExceptionally(anException);
+            }
+        }));
+
+        return result;
+    }
+
+    /**
+     *
+     * @param aListener A listener that updates the user interface
+     * @return A listener that notifies aListener on the JavaFx application
+     * thread
+     */
+    public static AbstractDocumentCommandWrapper.DocumentChangeListener onFXThread(
+            AbstractDocumentCommandWrapper.DocumentChangeListener aListener) {
+        return (AbstractDocumentCommandWrapper aWrapper, List<AbstractDocumentCommandWrapper.DocumentChange> someChanges)
+                -> Platform.runLater(() -> aListener.documentDidChange(aWrapper, someChanges));
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+/**
+ * Instances of this class export a range of pages of a PDF file to one image
+ * file per page with annotation appearances drawn, without any user
+ * interface.
+ *
+ * Pages are rasterized by a pool of worker threads. PDFBox documents are not
+ * thread safe, so each rasterizer loads its own PDDocument, and over an
+ * export each of them ends up holding roughly a full copy of the file's
+ * objects and stream data. To bound that, documents keep at most
+ * SCRATCH_MEMORY_BYTES of stream data in memory and the rest in a temporary
+ * file, and by default there are at most MAX_DEFAULT_RASTERIZER_COUNT
+ * rasterizers. Rasterizers hand finished images to separate encoder
+ * threads through a bounded queue, so at most a few images are in memory at
+ * once regardless of the number of pages, and compression overlaps with
+ * rasterization.
+ *
+ * Files are named after the input file and the 1 based page number, e.g.
+ * report-007.png.
+ */
+public class PageImageExporter {
+
+    /**
+     * The default resolution in dots per inch
+     */
+    public static final float DEFAULT_DPI = 150.0f;
+
+    /**
+     * The largest default number of rasterizers. setThreadCounts() may set
+     * more.
+     */
+    public static final int MAX_DEFAULT_RASTERIZER_COUNT = 4;
+
+    /**
+     * The number of bytes of stream data each rasterizer's document keeps in
+     * memory before it uses a temporary file
+     */
+    public static final long SCRATCH_MEMORY_BYTES = 16L * 1024 * 1024;
+
+    private static final Logger LOGGER = Logger.getLogger(PageImageExporter.class.getName());
+
+    /**
+     * A rendered page waiting to be encoded. An instance with a null image
+     * tells an encoder to stop.
+     */
+    private static class RenderedPage {
+
+        final int pageIndex;
+        final BufferedImage image;
+
+        RenderedPage(int aPageIndex, BufferedImage anImage) {
+            pageIndex = aPageIndex;
+            image = anImage;
+        }
+    }
+
+    private static final RenderedPage END_OF_PAGES = new RenderedPage(-1, null);
+
+    private final Path input;
+    private final File outputDirectory;
+    private int firstPageIndex = 0;
+    private int lastPageIndex = Integer.MAX_VALUE;
+    private float dpi = DEFAULT_DPI;
+    private ImageType imageType = ImageType.RGB;
+    private String format = "png";
+    private int rasterizerCount = Math.max(1,
+            Math.min(MAX_DEFAULT_RASTERIZER_COUNT, Runtime.getRuntime().availableProcessors()));
+    private int encoderCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private boolean usesStructureCache = false;
+
+    private final AtomicInteger nextPageIndex = new AtomicInteger();
+    private final AtomicInteger writtenCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    /**
+     * The number of encoder threads that have not stopped. Rasterizers stop
+     * when it drops to 0 instead of waiting forever for room in the queue.
+     */
+    private final AtomicInteger liveEncoderCount = new AtomicInteger();
+
+    /**
+     * How long rasterizers wait for room in the queue before checking that
+     * an encoder is still running
+     */
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    /**
+     * Constructor: By default, every page is exported as RGB PNG at
+     * DEFAULT_DPI.
+     *
+     * @param anInput The PDF file to export
+     * @param anOutputDirectory The directory for the image files. It is
+     * created if necessary.
+     */
+    public PageImageExporter(Path anInput, File anOutputDirectory) {
+        assert null != anInput && null != anOutputDirectory;
+
+        input = anInput;
+        outputDirectory = anOutputDirectory;
+    }
+
+    /**
+     *
+     * @param aFirstPageIndex The 0 based index of the first page to export
+     * @param aLastPageIndex The 0 based index of the last page to export. It
+     * is limited to the last page of the document.
+     */
+    public void setPageRange(int aFirstPageIndex, int aLastPageIndex) {
+        assert 0 <= aFirstPageIndex && aFirstPageIndex <= aLastPageIndex;
+
+        firstPageIndex = aFirstPageIndex;
+        lastPageIndex = aLastPageIndex;
+    }
+
+    /**
+     *
+     * @param aDpi The resolution in dots per inch. Must be greater than 0.
+     */
+    public void setDpi(float aDpi) {
+        assert 0 < aDpi;
+
+        dpi = aDpi;
+    }
+
+    /**
+     *
+     * @param anImageType RGB, GRAY, or BINARY. ARGB is not supported by JPEG.
+     */
+    public void setImageType(ImageType anImageType) {
+        imageType = anImageType;
+    }
+
+    /**
+     *
+     * @param aFormat The name of an ImageIO format, e.g. "png" or "jpg", which
+     * is also the file name extension
+     */
+    public void setFormat(String aFormat) {
+        format = aFormat.toLowerCase();
+    }
+
+    /**
+     *
+     * @param aRasterizerCount The number of threads that render pages
+     * @param anEncoderCount The number of threads that encode and write
+     * images
+     */
+    public void setThreadCounts(int aRasterizerCount, int anEncoderCount) {
+        assert 0 < aRasterizerCount && 0 < anEncoderCount;
+
+        rasterizerCount = aRasterizerCount;
+        encoderCount = anEncoderCount;
+    }
+
+    /**
+     *
+     * @param shouldUseStructureCache If true, the input is loaded with
+     * DocumentStructureCache, so only the first of the rasterizers' loads
+     * parses the cross reference table, and a later export of the same file
+     * does not load it just to count its pages.
+     */
+    public void setUsesStructureCache(boolean shouldUseStructureCache) {
+        usesStructureCache = shouldUseStructureCache;
+    }
+
+    /**
+     * Exports the pages. Pages that can not be rendered or written are
+     * reported and skipped.
+     *
+     * @return The number of image files written
+     * @throws IOException If the input can not be read, the output directory
+     * can not be created, or there is no ImageIO writer for the format
+     */
+    public int export() throws IOException {
+        if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+            throw new IOException("Unsupported image format: " + format);
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Unable to create directory: " + outputDirectory);
+        }
+
+        int pageCount = usesStructureCache ? DocumentStructureCache.getPageCount(input.toFile()) : -1;
+        if (0 > pageCount) {
+            try (PDDocument document = loadInput()) {
+                pageCount = document.getNumberOfPages();
+            }
+        }
+        final int endPageIndex = Math.min(lastPageIndex, pageCount - 1);
+        final String baseName = baseName(input.getFileName().toString());
+        final int digitCount = Integer.toString(pageCount).length();
+
+        nextPageIndex.set(firstPageIndex);
+        writtenCount.set(0);
+        failedCount.set(0);
+        liveEncoderCount.set(encoderCount);
+
+        // Each rasterizer may hold one more image while it waits for room
+        BlockingQueue<RenderedPage> queue = new ArrayBlockingQueue<>(encoderCount);
+        List<Thread> rasterizers = new ArrayList<>();
+        List<Thread> encoders = new ArrayList<>();
+
+        for (int i = 0; i < encoderCount; ++i) {
+            Thread encoder = new Thread(() -> encodePages(queue, baseName, digitCount),
+                    "AIRViewer page encoder " + i);
+            encoders.add(encoder);
+            encoder.start();
+        }
+        for (int i = 0; i < rasterizerCount; ++i) {
+            Thread rasterizer = new Thread(() -> rasterizePages(queue, endPageIndex),
+                    "AIRViewer page rasterizer " + i);
+            rasterizers.add(rasterizer);
+            rasterizer.start();
+        }
+
+        try {
+            for (Thread rasterizer : rasterizers) {
+                rasterizer.join();
+            }
+            for (int i = 0; i < encoderCount; ++i) {
+                if (!enqueue(queue, END_OF_PAGES)) {
+                    break; // No encoder is left to stop
+                }
+            }
+            for (Thread encoder : encoders) {
+                encoder.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            rasterizers.forEach(Thread::interrupt);
+            encoders.forEach(Thread::interrupt);
+            throw new IOException("Export interrupted", ex);
+        }
+
+        // Pages held by an encoder that stopped with an Error or left in the
+        // queue were neither written nor counted
+        int lostCount = Math.max(0, endPageIndex + 1 - firstPageIndex) - writtenCount.get() - failedCount.get();
+        failedCount.addAndGet(Math.max(0, lostCount));
+
+        return writtenCount.get();
+    }
+
+    /**
+     *
+     * @return The number of pages that could not be exported by the most
+     * recent export()
+     */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Renders pages taken from nextPageIndex until endPageIndex is passed.
+     */
+    private void rasterizePages(BlockingQueue<RenderedPage> queue, int endPageIndex) {
+        try (PDDocument document = loadInput()) {
+            PDFRenderer renderer = new PDFRenderer(document);
+            int pageIndex;
+
+            while ((pageIndex = nextPageIndex.getAndIncrement()) <= endPageIndex) {
+                BufferedImage image;
+                try {
+                    image = renderer.renderImageWithDPI(pageIndex, dpi, imageType);
+                } catch (IOException | RuntimeException ex) {
+                    failedCount.incrementAndGet();
+                    LOGGER.log(Level.SEVERE, "Unable to render page " + (pageIndex + 1), ex);
+                    continue;
+                }
+                if (!enqueue(queue, new RenderedPage(pageIndex, image))) {
+                    LOGGER.log(Level.SEVERE, "Every image encoder stopped");
+                    failedCount.incrementAndGet();
+                    skipRemainingPages(endPageIndex);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Unable to load " + input, ex);
+            skipRemainingPages(endPageIndex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Claims the pages not yet taken by any rasterizer and counts them as
+     * failed, so that every rasterizer stops.
+     */
+    private void skipRemainingPages(int endPageIndex) {
+        int skipped = endPageIndex + 1 - nextPageIndex.getAndSet(endPageIndex + 1);
+        failedCount.addAndGet(Math.max(0, skipped));
+    }
+
+    /**
+     * Waits for room in queue and adds aPage unless no encoder is running.
+     *
+     * @return true if aPage was added and false if every encoder stopped
+     */
+    private boolean enqueue(BlockingQueue<RenderedPage> queue, RenderedPage aPage) throws InterruptedException {
+        while (!queue.offer(aPage, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (0 == liveEncoderCount.get()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes pages taken from queue until END_OF_PAGES is taken. A page that
+     * can not be written is counted as failed, and the encoder goes on with
+     * the next page.
+     */
+    private void encodePages(BlockingQueue<RenderedPage> queue, String baseName, int digitCount) {
+        try {
+            RenderedPage page;
+
+            while (END_OF_PAGES != (page = queue.take())) {
+                File file = new File(outputDirectory, String.format("%s-%0" + digitCount + "d.%s",
+                        baseName, page.pageIndex + 1, format));
+                try {
+                    if (ImageIO.write(page.image, format, file)) {
+                        writtenCount.incrementAndGet();
+                    } else {
+                        failedCount.incrementAndGet();
+                        LOGGER.log(Level.SEVERE, "No {0} writer for the color mode of page {1}",
+                                new Object[]{format, Integer.toString(page.pageIndex + 1)});
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    // ImageIO writers also throw e.g. IllegalArgumentException
+                    failedCount.incrementAndGet();
+                    LOGGER.log(Level.SEVERE, "Unable to write " + file, ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Also after an Error, so that rasterizers do not wait forever
+            liveEncoderCount.decrementAndGet();
+        }
+    }
+
+    private PDDocument loadInput() throws IOException {
+        MemoryUsageSetting memoryUsageSetting = MemoryUsageSetting.setupMixed(SCRATCH_MEMORY_BYTES);
+
+        return usesStructureCache ? DocumentStructureCache.load(input.toFile(), memoryUsageSetting)
+                : PDDocument.load(input.toFile(), memoryUsageSetting);
+    }
+
+    private static String baseName(String aFileName) {
+        int dot = aFileName.lastIndexOf('.');
+        return (0 < dot) ? aFileName.substring(0, dot) : aFileName;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: PageImageExporter input.pdf outputDirectory [options]\n"
+                + "  -startPage n   first page to export, 1 based (default 1)\n"
+                + "  -endPage n     last page to export (default last page)\n"
+                + "  -dpi n         resolution (default " + (int) DEFAULT_DPI + ")\n"
+                + "  -color mode    rgb, argb, gray, or binary (default rgb); jpg does not\n"
+                + "                 support argb\n"
+                + "  -format name   png, jpg, or another ImageIO format (default png)\n"
+                + "  -threads n     rasterizer threads (default number of processors, at\n"
+                + "                 most " + MAX_DEFAULT_RASTERIZER_COUNT + ")\n"
+                + "  -encoders n    encoder threads (default half the processors)\n"
+                + "  -structureCache true|false  keep a sidecar file that speeds up loading\n"
+                + "                 the same input again (default false)");
+    }
+
+    /**
+     * Exports pages from the command line. See printUsage().
+     *
+     * @param args The input file, output directory, and options
+     */
+    public static void main(String[] args) {
+        if (2 > args.length || 0 != args.length % 2) {
+            printUsage();
+            System.exit(2);
+        }
+
+        PageImageExporter exporter = new PageImageExporter(Paths.get(args[0]), new File(args[1]));
+        int startPage = 1;
+        int endPage = Integer.MAX_VALUE;
+        int threads = exporter.rasterizerCount;
+        int encoders = exporter.encoderCount;
+
+        try {
+            for (int i = 2; i < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-startPage":
+                        startPage = Integer.parseInt(value);
+                        break;
+                    case "-endPage":
+                        endPage = Integer.parseInt(value);
+                        break;
+                    case "-dpi":
+                        exporter.setDpi(Float.parseFloat(value));
+                        break;
+                    case "-color":
+                        exporter.setImageType(ImageType.valueOf(
+                                "grey".equalsIgnoreCase(value) ? "GRAY" : value.toUpperCase()));
+                        break;
+                    case "-format":
+                        exporter.setFormat(value);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "-encoders":
+                        encoders = Integer.parseInt(value);
+                        break;
+                    case "-structureCache":
+                        exporter.setUsesStructureCache(Boolean.parseBoolean(value));
+                        break;
+                    default:
+                        System.err.println("Unknown option: " + args[i]);
+                        printUsage();
+                        System.exit(2);
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid option value: " + ex.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+        if (1 > startPage || startPage > endPage || 1 > threads || 1 > encoders) {
+            printUsage();
+            System.exit(2);
+        }
+        exporter.setPageRange(startPage - 1, endPage - 1);
+        exporter.setThreadCounts(threads, encoders);
+
+        try {
+            long start = System.nanoTime();
+            int written = exporter.export();
+            System.out.printf("Wrote %d images to %s in %.1f s%n", written, args[1],
+                    (System.nanoTime() - start) / 1e9);
+            System.exit((0 == exporter.getFailedCount()) ? 0 : 1);
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
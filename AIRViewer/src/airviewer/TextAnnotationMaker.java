@@ -19,17 +19,10 @@
  */
 package airviewer;
 
-import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import static java.lang.Float.parseFloat;
-import static java.lang.Integer.parseInt;
-import java.rmi.server.UID;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.font.PDFont;
@@ -38,10 +31,6 @@ import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
 import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationSquareCircle;
-import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceDictionary;
-import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
-import org.apache.pdfbox.pdmodel.interactive.annotation.PDBorderStyleDictionary;
-import org.apache.pdfbox.util.Matrix;
 
 /**
  * This is a helper class for creating the "Appearance Stream" for Text
@@ -64,100 +53,95 @@ import org.apache.pdfbox.util.Matrix;
  */
 public class TextAnnotationMaker {
 
+    private static final PDFont FONT = PDType1Font.HELVETICA_OBLIQUE;
+    private static final float FONT_SIZE = 16.0f; // Or whatever font size you want.
+    private static final float LINE_SPACING = 4.0f;
+    private static final PDColor RED = new PDColor(new float[]{1, 0, 0}, PDDeviceRGB.INSTANCE);
+    private static final PDColor FILL_COLOR = new PDColor(new float[]{.8f, .8f, .8f}, PDDeviceRGB.INSTANCE);
+    private static final TextLayout LAYOUT = TextLayout.forFont(FONT);
+
     /**
      * 
      * @param document
      * @param arguments(pageNumber, lowerLeftX, lowerLeftY);
 
             String contents 
-     * @return 
+     * @return The new annotation or null if the annotation could not be made.
+     * The caller is responsible for adding the annotation to the page.
      */
-    public static List<PDAnnotation> make(PDDocument document,
+    public static PDAnnotation make(PDDocument document,
             ArrayList<String> arguments) {
         assert null != arguments && arguments.size() == 4;
         assert null != document;
 
-        List<PDAnnotation> result;
+        PDAnnotation result;
 
         try {
-            int pageNumber = parseInt(arguments.get(0));
             float lowerLeftX = parseFloat(arguments.get(1));
             float lowerLeftY = parseFloat(arguments.get(2));
 
             String contents = arguments.get(3);
-            PDFont font = PDType1Font.HELVETICA_OBLIQUE;
-            final float fontSize = 16.0f; // Or whatever font size you want.
-            final float lineSpacing = 4.0f;
-            float width = font.getStringWidth(contents) * fontSize / 1000.0f; // font.getStringWidth(contents) returns thousanths of PS point
-            final float textHeight = fontSize + lineSpacing;
-
-            try {
-                PDPage page = document.getPage(pageNumber);
-                PDColor red = new PDColor(new float[]{1, 0, 0}, PDDeviceRGB.INSTANCE);
-                PDBorderStyleDictionary borderThick = new PDBorderStyleDictionary();
-                borderThick.setWidth(72 / 12);  // 12th inch
-                PDRectangle position = new PDRectangle();
-                position.setLowerLeftX(lowerLeftX);
-                position.setLowerLeftY(lowerLeftY);
-                position.setUpperRightX(lowerLeftX + width);
-                position.setUpperRightY(lowerLeftY + textHeight);
-
-                PDAnnotationSquareCircle aSquare = new PDAnnotationSquareCircle(
-                        PDAnnotationSquareCircle.SUB_TYPE_SQUARE);
-                aSquare.setAnnotationName(new UID().toString());
-                aSquare.setContents(contents);
-                PDColor fillColor = new PDColor(new float[]{.8f, .8f, .8f}, PDDeviceRGB.INSTANCE);
-                aSquare.setInteriorColor(fillColor);
-                aSquare.setRectangle(position);
-                result = new ArrayList<>(page.getAnnotations()); // copy
-                page.getAnnotations().add(aSquare);
+            // Each line of contents is as wide as it needs to be
+            float width = LAYOUT.getMaxLineWidth(contents, FONT_SIZE, Float.MAX_VALUE);
+            final float textHeight = LAYOUT.getLineCount(contents, FONT_SIZE, Float.MAX_VALUE)
+                    * (FONT_SIZE + LINE_SPACING);
+            AppearanceTemplateCache templates = AppearanceTemplateCache.forDocument(document);
 
-                // The following lines are needed for PDFRenderer to render 
-                // annotations. Preview and Acrobat don't seem to need these.
-                if (null == aSquare.getAppearance()) {
-                    aSquare.setAppearance(new PDAppearanceDictionary());
-                    PDAppearanceStream annotationAppearanceStream = new PDAppearanceStream(document);
-                    position.setLowerLeftX(lowerLeftX - borderThick.getWidth() * 0.5f);
-                    position.setLowerLeftY(lowerLeftY - borderThick.getWidth() * 0.5f);
-                    position.setUpperRightX(lowerLeftX + width + borderThick.getWidth() * 0.5f);
-                    position.setUpperRightY(lowerLeftY + textHeight + borderThick.getWidth() * 0.5f);
-                    annotationAppearanceStream.setBBox(position);
-                    annotationAppearanceStream.setMatrix(new AffineTransform());
-                    annotationAppearanceStream.setResources(page.getResources());
+            // The rectangle includes half of the border width on every
+            // side so that it matches the appearance's bounding box.
+            float halfBorder = AppearanceTemplateCache.BORDER_WIDTH * 0.5f;
+            PDRectangle position = new PDRectangle();
+            position.setLowerLeftX(lowerLeftX - halfBorder);
+            position.setLowerLeftY(lowerLeftY - halfBorder);
+            position.setUpperRightX(lowerLeftX + width + halfBorder);
+            position.setUpperRightY(lowerLeftY + textHeight + halfBorder);
 
-                    try (PDPageContentStream appearanceContent = new PDPageContentStream(
-                            document, annotationAppearanceStream)) {
-                        Matrix transform = new Matrix();
-                        appearanceContent.transform(transform);
-                        appearanceContent.addRect(lowerLeftX, lowerLeftY, width, textHeight);
-                        appearanceContent.setNonStrokingColor(fillColor);
-                        appearanceContent.fill();
-                        appearanceContent.beginText();
+            PDAnnotationSquareCircle aSquare = new PDAnnotationSquareCircle(
+                    PDAnnotationSquareCircle.SUB_TYPE_SQUARE);
+            aSquare.setContents(contents);
+            aSquare.setInteriorColor(FILL_COLOR);
+            aSquare.setRectangle(position);
+            result = aSquare;
 
-                        // Center text vertically, left justified
-                        appearanceContent.newLineAtOffset(lowerLeftX, lowerLeftY + textHeight * 0.5f - fontSize * 0.5f);
-                        appearanceContent.setFont(font, fontSize);
-                        appearanceContent.setNonStrokingColor(red);
-                        appearanceContent.showText(contents);
-                        appearanceContent.endText();
-                    }
-                    aSquare.getAppearance().setNormalAppearance(annotationAppearanceStream);
-                }
-                //System.out.println(page.getAnnotations().toString());
-
-            } catch (IOException ex) {
-                Logger.getLogger(DocumentCommandWrapper.class.getName()).log(Level.SEVERE, null, ex);
-                result = null;
-            }
+            // PDFRenderer needs an appearance stream to render
+            // annotations. Preview and Acrobat don't seem to need one.
+            // It is generated when the page is rendered or saved.
+            AppearanceTemplateCache.markStale(aSquare,
+                    AppearanceTemplateCache.Style.TEXT, width, textHeight);
         } catch (NumberFormatException | NullPointerException ex) {
             System.err.println("Non number encountered where floating point number expected.");
             result = null;
-        } catch (IOException ex) {
-            Logger.getLogger(TextAnnotationMaker.class.getName()).log(Level.SEVERE, null, ex);
-            result = null;
         }
 
         return result;
     }
 
+    /**
+     * Draws the appearance of text with the lower left corner of its bounds
+     * at the origin. See AppearanceTemplateCache.
+     *
+     * @param appearanceContent The destination
+     * @param width
+     * @param height
+     * @param contents
+     * @throws IOException If appearanceContent can not be written
+     */
+    static void drawAppearance(PDPageContentStream appearanceContent,
+            float width, float height, String contents) throws IOException {
+        appearanceContent.addRect(0, 0, width, height);
+        appearanceContent.setNonStrokingColor(FILL_COLOR);
+        appearanceContent.fill();
+        appearanceContent.beginText();
+
+        // Center lines vertically, left justified
+        final float leading = FONT_SIZE + LINE_SPACING;
+        int lineCount = LAYOUT.getLineCount(contents, FONT_SIZE, width);
+        appearanceContent.newLineAtOffset(0,
+                height * 0.5f - FONT_SIZE * 0.5f + (lineCount - 1) * leading * 0.5f);
+        appearanceContent.setFont(FONT, FONT_SIZE);
+        appearanceContent.setNonStrokingColor(RED);
+        LAYOUT.showLines(appearanceContent, contents, FONT_SIZE, width, leading);
+        appearanceContent.endText();
+    }
+
 }
\ No newline at end of file
@@ -22,11 +22,17 @@ package airviewer;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.pdfbox.contentstream.operator.Operator;
 import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.cos.COSString;
 import org.apache.pdfbox.pdfparser.PDFStreamParser;
 import org.apache.pdfbox.pdfwriter.ContentStreamWriter;
@@ -35,53 +41,268 @@ import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
 
 /**
+ * This class changes the text displayed by annotation appearance streams.
+ *
+ * Annotations made by AIRViewer either have no appearance yet (see
+ * AppearanceTemplateCache.markStale()), in which case there is nothing to do,
+ * or use a shared template, in which case the template for the new text is
+ * looked up. Neither case parses any content stream.
+ *
+ * Other ("foreign") appearance streams are parsed once and the tokens are
+ * cached together with the locations of the Tj and TJ operands. Only the
+ * operands that display the old contents are replaced, and the result is
+ * written to a new stream because foreign streams may be shared by several
+ * annotations too. The new stream's tokens are cached, so editing the same
+ * annotation again does not parse anything.
+ *
+ * New text is written UTF-8 encoded, and existing operands are decoded the
+ * same way when they are compared with the old contents, so text written by
+ * this class is recognized when it is replaced again. A TJ operand keeps its
+ * kerning: the new text is divided among its strings in place of the old
+ * text, and the numbers between them are kept.
  *
  * @author erik
  */
 public class TextInAnnotationReplacer {
 
-    static void replaceText(PDDocument document, PDAnnotation anAnnotation, String newContents) {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Instances of this class store the parsed tokens of one appearance
+     * stream and where its text operands are.
+     */
+    private static class ParsedAppearance {
+
+        /**
+         * The tokens of the stream. The list and its elements must not be
+         * modified because they describe the stream's current content.
+         */
+        final List<Object> tokens;
+
+        /**
+         * The indices in tokens of every Tj or TJ operand
+         */
+        final List<Integer> textOperandIndices;
+
+        ParsedAppearance(List<Object> someTokens) {
+            tokens = someTokens;
+            textOperandIndices = new ArrayList<>();
+
+            for (int j = 1; j < tokens.size(); j++) {
+                Object next = tokens.get(j);
+                if (next instanceof Operator) {
+                    String name = ((Operator) next).getName();
+                    Object previous = tokens.get(j - 1);
+                    //Tj and TJ are the two operators that display strings in a PDF
+                    if ((name.equals("Tj") && previous instanceof COSString)
+                            || (name.equals("TJ") && previous instanceof COSArray)) {
+                        textOperandIndices.add(j - 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parsed foreign appearance streams keyed by stream. COSStream does not
+     * override equals() or hashCode(), so keys are compared by identity.
+     */
+    private static final Map<COSStream, ParsedAppearance> PARSED_APPEARANCES = new WeakHashMap<>();
+
+    /**
+     * Makes the appearance of anAnnotation display newContents instead of
+     * oldContents.
+     *
+     * @param document The document containing anAnnotation
+     * @param anAnnotation The annotation whose appearance changes
+     * @param oldContents The contents of anAnnotation before the change or
+     * null if unknown. If null or not found in the appearance, every string
+     * in the appearance is replaced.
+     * @param newContents The new contents of anAnnotation
+     */
+    static void replaceText(PDDocument document, PDAnnotation anAnnotation, String oldContents, String newContents) {
 
         if (null != anAnnotation.getAppearance()
-                && null != anAnnotation.getAppearance().getNormalAppearance()) {
+                && null != anAnnotation.getAppearance().getNormalAppearance()
+                && anAnnotation.getAppearance().getNormalAppearance().isStream()) {
             try {
                 PDAppearanceStream annotationAppearanceStream = anAnnotation.getAppearance().getNormalAppearance().getAppearanceStream();
 
-                PDFStreamParser parser = new PDFStreamParser(annotationAppearanceStream);
-                parser.parse();
-                List<Object> tokens = parser.getTokens();
-                for (int j = 0; j < tokens.size(); j++) {
-                    Object next = tokens.get(j);
-                    if (next instanceof Operator) {
-                        Operator op = (Operator) next;
-                        //Tj and TJ are the two operators that display strings in a PDF
-                        if (op.getName().equals("Tj")) {
-                            // Tj takes one operand and that is the string to display so lets update that operator
-                            COSString previous = (COSString) tokens.get(j - 1);
-                            previous.setValue(newContents.getBytes(Charset.forName("UTF-8")));
-                        } else if (op.getName().equals("TJ")) {
-                            COSArray previous = (COSArray) tokens.get(j - 1);
-                            for (int k = 0; k < previous.size(); k++) {
-                                Object arrElement = previous.getObject(k);
-                                if (arrElement instanceof COSString) {
-                                    COSString cosString = (COSString) arrElement;
-                                    cosString.setValue(newContents.getBytes(Charset.forName("UTF-8")));
-                                }
-                            }
-                        }
-                    }
+                // Shared templates must not be modified, so switch to the
+                // template that displays newContents instead.
+                PDAppearanceStream template = AppearanceTemplateCache.forDocument(document)
+                        .getTemplateWithContents(annotationAppearanceStream, newContents);
+                if (null != template) {
+                    anAnnotation.getAppearance().setNormalAppearance(template);
+                    return;
                 }
 
-                try (OutputStream out = annotationAppearanceStream.getStream().createOutputStream()) {
-                    ContentStreamWriter tokenWriter = new ContentStreamWriter(out);
-                    tokenWriter.writeTokens(tokens);
+                ParsedAppearance parsed = getParsedAppearance(annotationAppearanceStream.getCOSObject());
+                List<Object> tokens = replacedTokens(parsed, oldContents, newContents);
+
+                if (null != tokens) {
+                    COSStream newStream = document.getDocument().createCOSStream();
+                    newStream.addAll(annotationAppearanceStream.getCOSObject());
+                    newStream.removeItem(COSName.FILTER);
+                    newStream.removeItem(COSName.DECODE_PARMS);
+                    newStream.removeItem(COSName.LENGTH);
+
+                    try (OutputStream out = newStream.createOutputStream()) {
+                        ContentStreamWriter tokenWriter = new ContentStreamWriter(out);
+                        tokenWriter.writeTokens(tokens);
+                    }
+
+                    synchronized (PARSED_APPEARANCES) {
+                        PARSED_APPEARANCES.put(newStream, new ParsedAppearance(tokens));
+                    }
+                    anAnnotation.getAppearance().setNormalAppearance(new PDAppearanceStream(newStream));
                 }
-                
-                anAnnotation.getAppearance().setNormalAppearance(annotationAppearanceStream);
             } catch (IOException ex) {
                 Logger.getLogger(TextInAnnotationReplacer.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
     }
 
+    /**
+     *
+     * @param aStream A foreign appearance stream
+     * @return The cached parse of aStream, parsing it first if necessary
+     * @throws IOException If aStream can not be parsed
+     */
+    private static ParsedAppearance getParsedAppearance(COSStream aStream) throws IOException {
+        ParsedAppearance result;
+
+        synchronized (PARSED_APPEARANCES) {
+            result = PARSED_APPEARANCES.get(aStream);
+        }
+
+        if (null == result) {
+            PDFStreamParser parser = new PDFStreamParser(new PDAppearanceStream(aStream));
+            parser.parse();
+            result = new ParsedAppearance(parser.getTokens());
+            synchronized (PARSED_APPEARANCES) {
+                PARSED_APPEARANCES.put(aStream, result);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a copy of the tokens of aParse with the text operands that
+     * display oldContents changed to display newContents. If no operand
+     * displays oldContents, every text operand is changed. Tokens that do not
+     * change are shared with aParse.
+     *
+     * @return The new tokens or null if aParse does not display any text
+     */
+    private static List<Object> replacedTokens(ParsedAppearance aParse, String oldContents, String newContents) {
+        List<Integer> matchingIndices = new ArrayList<>();
+
+        if (null != oldContents) {
+            aParse.textOperandIndices.stream().filter((j) -> {
+                return oldContents.equals(displayedText(aParse.tokens.get(j)));
+            }).forEach((j) -> {
+                matchingIndices.add(j);
+            });
+        }
+        if (matchingIndices.isEmpty()) {
+            matchingIndices.addAll(aParse.textOperandIndices);
+        }
+
+        List<Object> result = null;
+
+        if (!matchingIndices.isEmpty()) {
+            result = new ArrayList<>(aParse.tokens);
+            for (int j : matchingIndices) {
+                if (result.get(j) instanceof COSArray) {
+                    result.set(j, replacedArray((COSArray) result.get(j), newContents));
+                } else {
+                    result.set(j, new COSString(newContents.getBytes(UTF_8)));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a copy of the operand of a TJ operator with newContents divided
+     * among its strings. Each string but the last gets as many characters of
+     * newContents as it displayed before, or what is left, and the last gets
+     * the rest, so text of the same length keeps exactly the same kerning.
+     * The numbers are kept.
+     *
+     * @param anOperand The operand of a TJ operator
+     * @param newContents The text to display
+     * @return The new operand
+     */
+    private static COSArray replacedArray(COSArray anOperand, String newContents) {
+        COSArray result = new COSArray();
+        int lastStringIndex = -1;
+
+        for (int i = 0; i < anOperand.size(); ++i) {
+            if (anOperand.get(i) instanceof COSString) {
+                lastStringIndex = i;
+            }
+        }
+
+        int start = 0;
+        for (int i = 0; i < anOperand.size(); ++i) {
+            COSBase element = anOperand.get(i);
+            if (element instanceof COSString) {
+                int end = newContents.length();
+                if (i != lastStringIndex) {
+                    end = Math.min(end, start + decoded((COSString) element).length());
+                    if (start < end && end < newContents.length()
+                            && Character.isHighSurrogate(newContents.charAt(end - 1))) {
+                        ++end; // Do not split a surrogate pair
+                    }
+                }
+                result.add(new COSString(newContents.substring(start, end).getBytes(UTF_8)));
+                start = end;
+            } else {
+                result.add(element);
+            }
+        }
+        if (0 > lastStringIndex) {
+            result.add(new COSString(newContents.getBytes(UTF_8)));
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param anOperand The operand of a Tj or TJ operator
+     * @return The text displayed by anOperand ignoring any kerning
+     */
+    private static String displayedText(Object anOperand) {
+        String result;
+
+        if (anOperand instanceof COSArray) {
+            StringBuilder builder = new StringBuilder();
+            for (COSBase element : (COSArray) anOperand) {
+                if (element instanceof COSString) {
+                    builder.append(decoded((COSString) element));
+                }
+            }
+            result = builder.toString();
+        } else {
+            result = decoded((COSString) anOperand);
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param aString A string operand
+     * @return aString decoded with the encoding that replacements are written
+     * in
+     */
+    private static String decoded(COSString aString) {
+        return new String(aString.getBytes(), UTF_8);
+    }
+
 }
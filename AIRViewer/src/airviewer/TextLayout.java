@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package airviewer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+/**
+ * Instances of this class measure and lay out annotation text in one font.
+ * PDFont.getStringWidth() encodes the whole string and looks up every glyph
+ * each time it is called. This class looks up the advance of each character
+ * once and keeps it in a primitive array, so measuring and wrapping text
+ * does not allocate anything. Widths are the same as those returned by
+ * PDFont.getStringWidth(), which does not apply kerning either.
+ *
+ * Text is laid out in lines. A line ends at a line feed or, if the text is
+ * wider than the available width, after the last space that fits. A word
+ * that is wider than the available width by itself is broken between
+ * characters. Lines are found one at a time with getLineEnd() and
+ * getNextLineStart(), or drawn with showLines().
+ *
+ * Characters that the font can not encode are measured and shown as a
+ * question mark, or left out if the font can not encode that either, so
+ * that any text can be laid out and drawn.
+ */
+public final class TextLayout {
+
+    /**
+     * The recommended distance between baselines as a multiple of the font
+     * size
+     */
+    public static final float LEADING_FACTOR = 1.25f;
+
+    /**
+     * Marks characters whose advance has not been looked up yet
+     */
+    private static final float UNKNOWN = -1.0f;
+
+    /**
+     * Marks characters that the font can not encode
+     */
+    private static final float NOT_ENCODABLE = -2.0f;
+
+    /**
+     * Shown in place of characters that the font can not encode
+     */
+    private static final char SUBSTITUTE = '?';
+
+    private static final Map<PDFont, TextLayout> LAYOUTS = new IdentityHashMap<>();
+
+    private final PDFont font;
+
+    /**
+     * The advance of each character in thousandths of text space units
+     * indexed by char value, or UNKNOWN or NOT_ENCODABLE. Races between
+     * threads filling in the same element are harmless because they store
+     * the same value.
+     */
+    private final float[] advances;
+
+    private TextLayout(PDFont aFont) {
+        font = aFont;
+        advances = new float[Character.MAX_VALUE + 1];
+        Arrays.fill(advances, UNKNOWN);
+    }
+
+    /**
+     *
+     * @param aFont A font. Fonts are compared by identity, so this is
+     * intended for shared fonts such as the standard 14 fonts.
+     * @return The layout service for aFont
+     */
+    public static TextLayout forFont(PDFont aFont) {
+        assert null != aFont;
+
+        synchronized (LAYOUTS) {
+            return LAYOUTS.computeIfAbsent(aFont, TextLayout::new);
+        }
+    }
+
+    /**
+     *
+     * @param c A character other than a line feed
+     * @return The advance of c in thousandths of text space units or
+     * NOT_ENCODABLE
+     */
+    private float lookUpAdvance(char c) {
+        float result = advances[c];
+
+        if (UNKNOWN == result) {
+            try {
+                result = font.getStringWidth(String.valueOf(c));
+            } catch (IOException | IllegalArgumentException ex) {
+                result = NOT_ENCODABLE;
+            }
+            advances[c] = result;
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param c A character other than a line feed
+     * @return The advance of c, or of its substitute if the font can not
+     * encode c, in thousandths of text space units
+     */
+    private float getAdvance(char c) {
+        float result = lookUpAdvance(c);
+
+        if (NOT_ENCODABLE == result) {
+            result = lookUpAdvance(SUBSTITUTE);
+            if (NOT_ENCODABLE == result) {
+                result = 0; // Left out
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param text Some text
+     * @param start The index of the first character
+     * @param end The index after the last character
+     * @return The characters from start to end with every character that
+     * the font can not encode replaced as described in the class comment
+     */
+    private String toEncodable(String text, int start, int end) {
+        StringBuilder result = null;
+
+        for (int i = start; i < end; ++i) {
+            char c = text.charAt(i);
+            if (NOT_ENCODABLE == lookUpAdvance(c)) {
+                if (null == result) {
+                    result = new StringBuilder(end - start);
+                    result.append(text, start, i);
+                }
+                if (NOT_ENCODABLE != lookUpAdvance(SUBSTITUTE)) {
+                    result.append(SUBSTITUTE);
+                }
+            } else if (null != result) {
+                result.append(c);
+            }
+        }
+
+        return (null == result) ? text.substring(start, end) : result.toString();
+    }
+
+    /**
+     *
+     * @param text Some text
+     * @param start The index of the first character to measure
+     * @param end The index after the last character to measure
+     * @param fontSize The font size
+     * @return The width of the characters from start to end
+     */
+    public float getWidth(CharSequence text, int start, int end, float fontSize) {
+        float result = 0;
+
+        for (int i = start; i < end; ++i) {
+            result += getAdvance(text.charAt(i));
+        }
+
+        return result * fontSize / 1000.0f;
+    }
+
+    /**
+     *
+     * @param text A single line of text
+     * @param fontSize The font size
+     * @return The width of text
+     */
+    public float getWidth(CharSequence text, float fontSize) {
+        return getWidth(text, 0, text.length(), fontSize);
+    }
+
+    /**
+     * Finds the end of the line that starts at start.
+     *
+     * @param text Some text
+     * @param start The index of the first character of the line
+     * @param fontSize The font size
+     * @param maxWidth The available width
+     * @return The index after the last character of the line. Trailing
+     * spaces are not part of the line.
+     */
+    public int getLineEnd(CharSequence text, int start, float fontSize, float maxWidth) {
+        final int length = text.length();
+        float lineAdvance = 0;
+        int lastBreak = -1;
+        int i = start;
+
+        while (i < length) {
+            char c = text.charAt(i);
+            if ('\n' == c || '\r' == c) {
+                break;
+            }
+            if (' ' == c) {
+                lastBreak = i;
+            }
+            lineAdvance += getAdvance(c);
+            // Same arithmetic as getWidth() so that text measured by
+            // getWidth() fits in exactly its own width
+            if (lineAdvance * fontSize / 1000.0f > maxWidth && ' ' != c) {
+                if (0 <= lastBreak) {
+                    i = lastBreak;
+                } else if (i == start) {
+                    ++i; // At least one character per line
+                }
+                break;
+            }
+            ++i;
+        }
+        while (i > start && ' ' == text.charAt(i - 1)) {
+            --i;
+        }
+
+        return i;
+    }
+
+    /**
+     *
+     * @param text Some text
+     * @param lineEnd A value returned by getLineEnd()
+     * @return The index of the first character of the next line or a value
+     * greater than text.length() if there is no next line
+     */
+    public int getNextLineStart(CharSequence text, int lineEnd) {
+        final int length = text.length();
+        int i = lineEnd;
+
+        while (i < length && ' ' == text.charAt(i)) {
+            ++i;
+        }
+        if (i < length && '\r' == text.charAt(i)) {
+            ++i;
+            if (i < length && '\n' == text.charAt(i)) {
+                ++i;
+            }
+        } else if (i < length && '\n' == text.charAt(i)) {
+            ++i;
+        } else if (i >= length) {
+            i = length + 1;
+        }
+
+        return i;
+    }
+
+    /**
+     *
+     * @param text Some text
+     * @param fontSize The font size
+     * @param maxWidth The available width
+     * @return The number of lines needed to show text. Empty text needs one
+     * line.
+     */
+    public int getLineCount(CharSequence text, float fontSize, float maxWidth) {
+        int result = 0;
+
+        for (int start = 0; start <= text.length();) {
+            start = getNextLineStart(text, getLineEnd(text, start, fontSize, maxWidth));
+            ++result;
+        }
+
+        return result;
+    }
+
+    /**
+     *
+     * @param text Some text
+     * @param fontSize The font size
+     * @param maxWidth The available width
+     * @return The width of the widest line of text
+     */
+    public float getMaxLineWidth(CharSequence text, float fontSize, float maxWidth) {
+        float result = 0;
+
+        for (int start = 0; start <= text.length();) {
+            int end = getLineEnd(text, start, fontSize, maxWidth);
+            result = Math.max(result, getWidth(text, start, end, fontSize));
+            start = getNextLineStart(text, end);
+        }
+
+        return result;
+    }
+
+    /**
+     * Shows text as lines. The text object must have been begun, the font
+     * set, and the text position moved to the start of the first baseline.
+     *
+     * @param content The destination
+     * @param text Some text
+     * @param fontSize The font size
+     * @param maxWidth The available width
+     * @param leading The distance between baselines
+     * @throws IOException If content can not be written
+     */
+    public void showLines(PDPageContentStream content, String text,
+            float fontSize, float maxWidth, float leading) throws IOException {
+        for (int start = 0; start <= text.length();) {
+            int end = getLineEnd(text, start, fontSize, maxWidth);
+            if (0 < start) {
+                content.newLineAtOffset(0, -leading);
+            }
+            content.showText(toEncodable(text, start, end));
+            start = getNextLineStart(text, end);
+        }
+    }
+}